@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * A subsystem action that runs in the background.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * An action a subsystem carries out on its own while autonomous does something else, like
+ * spinning up the shooter during a drive. Start the action, make the blocking call, then
+ * {@link #await()} the action before depending on it.
+ *
+ * @author Powerstackers
+ */
+public interface AsyncAction {
+
+    /**
+     * @return True if the action has finished.
+     */
+    boolean isDone();
+
+    /**
+     * Wait for the action to finish, up to the action's own deadline.
+     *
+     * @return True if the action finished, false if it timed out.
+     * @throws InterruptedException If the OpMode is stopped while we wait.
+     */
+    boolean await() throws InterruptedException;
+}
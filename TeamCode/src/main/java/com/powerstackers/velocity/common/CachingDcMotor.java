@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * DcMotor wrapper that skips redundant writes.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorController;
+
+/**
+ * Wraps a {@link DcMotor} and only sends power, direction, mode, target and zero power behavior
+ * writes when the value changes. Every write is a transaction with the motor controller, and the
+ * OpMode loops set the same values over and over.
+ *
+ * <p>Anything that changes how the controller interprets power (direction, mode, float) makes the
+ * next power write go through, since the motor may no longer be doing what the cached value says.
+ *
+ * <p>{@link #getPower()} returns the last power sent, so reading it back every loop costs nothing.
+ * Every other read goes straight to the motor.
+ *
+ * @author Powerstackers
+ */
+public class CachingDcMotor implements DcMotor {
+
+    private final DcMotor motor;
+    private final WriteStats stats;
+    private final double epsilon;
+
+    private double lastPower = Double.NaN;
+    /** The power last sent, or NaN if unknown. Unlike lastPower, a mode change keeps it. */
+    private double sentPower = Double.NaN;
+    private Direction lastDirection = null;
+    private RunMode lastMode = null;
+    private ZeroPowerBehavior lastZeroPowerBehavior = null;
+    private int lastTargetPosition = 0;
+    private boolean hasTargetPosition = false;
+
+    /**
+     * Wrap a motor.
+     *
+     * @param motor   The motor.
+     * @param stats   Where to count writes.
+     * @param epsilon Power changes smaller than this are skipped.
+     */
+    public CachingDcMotor(DcMotor motor, WriteStats stats, double epsilon) {
+        this.motor = motor;
+        this.stats = stats;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * Wrap a motor using the epsilon in {@link VelRobotConstants}.
+     *
+     * @param motor The motor.
+     * @param stats Where to count writes.
+     */
+    public CachingDcMotor(DcMotor motor, WriteStats stats) {
+        this(motor, stats, VelRobotConstants.WRITE_CACHE_EPSILON);
+    }
+
+    @Override
+    public synchronized void setPower(double power) {
+        if (WriteStats.changed(lastPower, power, epsilon)) {
+            motor.setPower(power);
+            lastPower = power;
+            sentPower = power;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void setDirection(Direction direction) {
+        if (direction != lastDirection) {
+            motor.setDirection(direction);
+            lastDirection = direction;
+            lastPower = Double.NaN;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void setMode(RunMode mode) {
+        // Resetting the encoder is an action, not a setting, so always send it
+        if (mode != lastMode || mode == RunMode.STOP_AND_RESET_ENCODER) {
+            motor.setMode(mode);
+            lastMode = mode;
+            lastPower = Double.NaN;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void setZeroPowerBehavior(ZeroPowerBehavior zeroPowerBehavior) {
+        if (zeroPowerBehavior != lastZeroPowerBehavior) {
+            motor.setZeroPowerBehavior(zeroPowerBehavior);
+            lastZeroPowerBehavior = zeroPowerBehavior;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void setTargetPosition(int position) {
+        if (!hasTargetPosition || position != lastTargetPosition) {
+            motor.setTargetPosition(position);
+            lastTargetPosition = position;
+            hasTargetPosition = true;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public synchronized void setPowerFloat() {
+        motor.setPowerFloat();
+        lastPower = Double.NaN;
+        sentPower = Double.NaN;
+        stats.recordSent();
+    }
+
+    @Override
+    public synchronized void setMaxSpeed(int encoderTicksPerSecond) {
+        motor.setMaxSpeed(encoderTicksPerSecond);
+        stats.recordSent();
+    }
+
+    @Override
+    public synchronized void resetDeviceConfigurationForOpMode() {
+        motor.resetDeviceConfigurationForOpMode();
+        lastPower = Double.NaN;
+        sentPower = Double.NaN;
+        lastDirection = null;
+        lastMode = null;
+        lastZeroPowerBehavior = null;
+        hasTargetPosition = false;
+    }
+
+    @Override
+    public synchronized double getPower() {
+        // Nothing sent since the motor was set up or floated, so ask it
+        return Double.isNaN(sentPower) ? motor.getPower() : sentPower;
+    }
+
+    @Override
+    public Direction getDirection() {
+        return motor.getDirection();
+    }
+
+    @Override
+    public RunMode getMode() {
+        return motor.getMode();
+    }
+
+    @Override
+    public ZeroPowerBehavior getZeroPowerBehavior() {
+        return motor.getZeroPowerBehavior();
+    }
+
+    @Override
+    public int getTargetPosition() {
+        return motor.getTargetPosition();
+    }
+
+    @Override
+    public boolean getPowerFloat() {
+        return motor.getPowerFloat();
+    }
+
+    @Override
+    public int getMaxSpeed() {
+        return motor.getMaxSpeed();
+    }
+
+    @Override
+    public boolean isBusy() {
+        return motor.isBusy();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return motor.getCurrentPosition();
+    }
+
+    @Override
+    public DcMotorController getController() {
+        return motor.getController();
+    }
+
+    @Override
+    public int getPortNumber() {
+        return motor.getPortNumber();
+    }
+
+    @Override
+    public Manufacturer getManufacturer() {
+        return motor.getManufacturer();
+    }
+
+    @Override
+    public String getDeviceName() {
+        return motor.getDeviceName();
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return motor.getConnectionInfo();
+    }
+
+    @Override
+    public int getVersion() {
+        return motor.getVersion();
+    }
+
+    @Override
+    public void close() {
+        motor.close();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Color sensor LED switch that skips redundant writes.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.ColorSensor;
+
+/**
+ * Turns a color sensor's LED on and off, only sending the command when the state changes. Each
+ * enableLed call is an I2C write on the color sensor.
+ *
+ * @author Powerstackers
+ */
+public class CachingLed {
+
+    private final ColorSensor sensor;
+    private final WriteStats stats;
+    private Boolean lastEnabled = null;
+
+    /**
+     * Wrap a color sensor's LED.
+     *
+     * @param sensor The color sensor.
+     * @param stats  Where to count writes.
+     */
+    public CachingLed(ColorSensor sensor, WriteStats stats) {
+        this.sensor = sensor;
+        this.stats = stats;
+    }
+
+    /**
+     * Turn the LED on or off.
+     *
+     * @param enabled True for on.
+     */
+    public synchronized void enable(boolean enabled) {
+        if (lastEnabled == null || lastEnabled != enabled) {
+            sensor.enableLed(enabled);
+            lastEnabled = enabled;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Servo wrapper that skips redundant writes.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.Servo;
+import com.qualcomm.robotcore.hardware.ServoController;
+
+/**
+ * Wraps a {@link Servo} and only sends a position when it changes. Changing the direction or
+ * range makes the next position go through, since the same position now means something
+ * different. Reads always go straight to the servo.
+ *
+ * @author Powerstackers
+ */
+public class CachingServo implements Servo {
+
+    private final Servo servo;
+    private final WriteStats stats;
+    private final double epsilon;
+
+    private double lastPosition = Double.NaN;
+    private Direction lastDirection = null;
+
+    /**
+     * Wrap a servo.
+     *
+     * @param servo   The servo.
+     * @param stats   Where to count writes.
+     * @param epsilon Position changes smaller than this are skipped.
+     */
+    public CachingServo(Servo servo, WriteStats stats, double epsilon) {
+        this.servo = servo;
+        this.stats = stats;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * Wrap a servo using the epsilon in {@link VelRobotConstants}.
+     *
+     * @param servo The servo.
+     * @param stats Where to count writes.
+     */
+    public CachingServo(Servo servo, WriteStats stats) {
+        this(servo, stats, VelRobotConstants.WRITE_CACHE_EPSILON);
+    }
+
+    @Override
+    public synchronized void setPosition(double position) {
+        if (WriteStats.changed(lastPosition, position, epsilon)) {
+            servo.setPosition(position);
+            lastPosition = position;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void setDirection(Direction direction) {
+        if (direction != lastDirection) {
+            servo.setDirection(direction);
+            lastDirection = direction;
+            lastPosition = Double.NaN;
+            stats.recordSent();
+        } else {
+            stats.recordSuppressed();
+        }
+    }
+
+    @Override
+    public synchronized void scaleRange(double min, double max) {
+        servo.scaleRange(min, max);
+        lastPosition = Double.NaN;
+        stats.recordSent();
+    }
+
+    @Override
+    public synchronized void resetDeviceConfigurationForOpMode() {
+        servo.resetDeviceConfigurationForOpMode();
+        lastPosition = Double.NaN;
+        lastDirection = null;
+    }
+
+    @Override
+    public double getPosition() {
+        return servo.getPosition();
+    }
+
+    @Override
+    public Direction getDirection() {
+        return servo.getDirection();
+    }
+
+    @Override
+    public ServoController getController() {
+        return servo.getController();
+    }
+
+    @Override
+    public int getPortNumber() {
+        return servo.getPortNumber();
+    }
+
+    @Override
+    public Manufacturer getManufacturer() {
+        return servo.getManufacturer();
+    }
+
+    @Override
+    public String getDeviceName() {
+        return servo.getDeviceName();
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return servo.getConnectionInfo();
+    }
+
+    @Override
+    public int getVersion() {
+        return servo.getVersion();
+    }
+
+    @Override
+    public void close() {
+        servo.close();
+    }
+}
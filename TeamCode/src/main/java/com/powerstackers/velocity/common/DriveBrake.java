@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Plans a short reverse pulse to stop the drive quickly.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.util.Range;
+
+/**
+ * Works out the reverse pulse that stops the drive in the shortest distance. Shorting the motors
+ * with BRAKE only slows the robot as fast as its own back EMF allows; driving each wheel backward
+ * for a moment first takes most of the speed out much sooner.
+ *
+ * <p>The pulse on each wheel is proportional to how fast that wheel was turning, and it lasts
+ * longer the faster the robot was going. It is cut short as soon as any wheel starts turning
+ * backward, so a pulse that's too long can't send the robot back the way it came.
+ *
+ * <p>Call {@link #track} whenever the drive is commanded so the wheel speeds are known, then
+ * {@link #plan} when it's time to stop.
+ *
+ * @author Powerstackers
+ */
+public class DriveBrake {
+
+    private static final int WHEELS = MecanumKinematics.MOTOR_COUNT;
+
+    private final double pulseGain;
+    private final double maxPulsePower;
+    private final long pulseNanosAtFullSpeed;
+    private final double minSpeed;
+    private final int reverseTicks;
+    private final long periodNanos;
+
+    private final int[] lastPositions = new int[WHEELS];
+    private final double[] velocity = new double[WHEELS];
+    private final double[] pulse = new double[WHEELS];
+    private final int[] furthest = new int[WHEELS];
+    private final int[] direction = new int[WHEELS];
+    private long lastNanos = 0;
+    private boolean hasLast = false;
+    private long pulseStartNanos = 0;
+    private long pulseNanos = 0;
+
+    /**
+     * Construct a brake planner.
+     *
+     * @param pulseGain          Pulse power per fraction of top speed the wheel was turning at.
+     * @param maxPulsePower      Largest pulse power.
+     * @param pulseMsAtFullSpeed Length of the pulse when stopping from top speed, in milliseconds.
+     * @param minSpeed           Below this fraction of top speed, no pulse is used.
+     * @param reverseTicks       A wheel this far back from its furthest point is reversing.
+     * @param periodMs           Shortest time between speed measurements, in milliseconds.
+     */
+    public DriveBrake(double pulseGain, double maxPulsePower, long pulseMsAtFullSpeed,
+                      double minSpeed, int reverseTicks, long periodMs) {
+        this.pulseGain = pulseGain;
+        this.maxPulsePower = maxPulsePower;
+        this.pulseNanosAtFullSpeed = pulseMsAtFullSpeed * 1000000L;
+        this.minSpeed = minSpeed;
+        this.reverseTicks = reverseTicks;
+        this.periodNanos = periodMs * 1000000L;
+    }
+
+    /**
+     * Construct a brake planner using the settings in {@link VelRobotConstants}.
+     */
+    public DriveBrake() {
+        this(VelRobotConstants.DRIVE_BRAKE_PULSE_GAIN,
+                VelRobotConstants.DRIVE_BRAKE_PULSE_MAX_POWER,
+                VelRobotConstants.DRIVE_BRAKE_PULSE_MS_AT_FULL_SPEED,
+                VelRobotConstants.DRIVE_BRAKE_MIN_SPEED,
+                VelRobotConstants.DRIVE_BRAKE_REVERSE_TICKS,
+                VelRobotConstants.DRIVE_VELOCITY_PERIOD_MS);
+    }
+
+    /**
+     * Record the encoder positions, measuring the wheel speeds once per control period.
+     *
+     * @param nanos Current time from {@link System#nanoTime()}.
+     * @param pos1  Encoder position of motorDrive1.
+     * @param pos2  Encoder position of motorDrive2.
+     * @param pos3  Encoder position of motorDrive3.
+     * @param pos4  Encoder position of motorDrive4.
+     */
+    public void track(long nanos, int pos1, int pos2, int pos3, int pos4) {
+        if (hasLast && nanos - lastNanos < periodNanos) {
+            return;
+        }
+        double dtSec = (nanos - lastNanos) / 1e9;
+        measure(0, pos1, dtSec);
+        measure(1, pos2, dtSec);
+        measure(2, pos3, dtSec);
+        measure(3, pos4, dtSec);
+        lastNanos = nanos;
+        hasLast = true;
+    }
+
+    private void measure(int motor, int position, double dtSec) {
+        velocity[motor] = hasLast ? (position - lastPositions[motor]) / dtSec : 0.0;
+        lastPositions[motor] = position;
+    }
+
+    /**
+     * Plan the pulse for a stop starting now. Read the powers back with {@link #getPower(int)}
+     * until {@link #isPulseDone} says to brake.
+     *
+     * <p>If the drive hasn't been tracked recently, the speeds are averaged over the whole time
+     * since it was, which is still a fair guess for a robot that has been cruising.
+     *
+     * @param nanos     Current time from {@link System#nanoTime()}.
+     * @param pos1      Encoder position of motorDrive1.
+     * @param pos2      Encoder position of motorDrive2.
+     * @param pos3      Encoder position of motorDrive3.
+     * @param pos4      Encoder position of motorDrive4.
+     * @param fullSpeed Top speed of the drive, in ticks per second.
+     * @return True if there is a pulse to apply.
+     */
+    public boolean plan(long nanos, int pos1, int pos2, int pos3, int pos4, double fullSpeed) {
+        track(nanos, pos1, pos2, pos3, pos4);
+
+        double fastest = 0.0;
+        for (int i = 0; i < WHEELS; i++) {
+            fastest = Math.max(fastest, Math.abs(velocity[i]) / fullSpeed);
+        }
+        if (!(fastest >= minSpeed)) {
+            cancel();
+            return false;
+        }
+
+        for (int i = 0; i < WHEELS; i++) {
+            double speed = velocity[i] / fullSpeed;
+            pulse[i] = Range.clip(-pulseGain * speed, -maxPulsePower, maxPulsePower);
+            direction[i] = Math.abs(speed) >= minSpeed ? (int) Math.signum(speed) : 0;
+        }
+        furthest[0] = pos1;
+        furthest[1] = pos2;
+        furthest[2] = pos3;
+        furthest[3] = pos4;
+        pulseStartNanos = nanos;
+        pulseNanos = (long) (pulseNanosAtFullSpeed * Math.min(fastest, 1.0));
+        return true;
+    }
+
+    /**
+     * @param nanos Current time from {@link System#nanoTime()}.
+     * @param pos1  Encoder position of motorDrive1.
+     * @param pos2  Encoder position of motorDrive2.
+     * @param pos3  Encoder position of motorDrive3.
+     * @param pos4  Encoder position of motorDrive4.
+     * @return True once the pulse has run its length or a wheel has started to reverse.
+     */
+    public boolean isPulseDone(long nanos, int pos1, int pos2, int pos3, int pos4) {
+        if (nanos - pulseStartNanos >= pulseNanos) {
+            return true;
+        }
+        // Check every wheel, not just up to the first reversing one, so each furthest point
+        // stays up to date
+        return reversed(0, pos1) | reversed(1, pos2) | reversed(2, pos3) | reversed(3, pos4);
+    }
+
+    private boolean reversed(int motor, int position) {
+        if (direction[motor] == 0) {
+            return false;
+        }
+        int travel = (position - furthest[motor]) * direction[motor];
+        if (travel > 0) {
+            furthest[motor] = position;
+            return false;
+        }
+        return -travel >= reverseTicks;
+    }
+
+    /**
+     * @param motor Index of the motor, where motorDrive1 is 0.
+     * @return Pulse power for that motor.
+     */
+    public double getPower(int motor) {
+        return pulse[motor];
+    }
+
+    /**
+     * @param motor Index of the motor, where motorDrive1 is 0.
+     * @return Last measured speed of that motor, in ticks per second.
+     */
+    public double getVelocity(int motor) {
+        return velocity[motor];
+    }
+
+    /**
+     * Drop any planned pulse.
+     */
+    public void cancel() {
+        for (int i = 0; i < WHEELS; i++) {
+            pulse[i] = 0.0;
+            direction[i] = 0;
+        }
+        pulseNanos = 0;
+    }
+}
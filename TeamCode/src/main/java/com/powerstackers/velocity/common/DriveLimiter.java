@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Acceleration limiting and slip detection for the drive.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Sits between the {@link MecanumKinematics} and the drive motors.
+ *
+ * <p>Each wheel's power is only allowed to grow by a limited amount per second, so the rollers
+ * don't break traction when the stick is slammed forward. Slowing down and stopping are never
+ * limited.
+ *
+ * <p>Slip is caught by comparing each wheel's encoder speed per unit of power against the median
+ * of the four. A wheel turning much faster than the others for the power it's getting has lost
+ * traction, so its power is backed off until it matches again. This only works while the motors
+ * run on raw power, in RUN_WITHOUT_ENCODER. Under the motor controllers' speed control every wheel
+ * is held to the same speed per power, a slipping one included, so nothing would ever stand out.
+ * Slip detection is therefore off until {@link #setSlipDetection} turns it on.
+ *
+ * <p>Call {@link #update} every loop; the output only ramps when it is called.
+ *
+ * @author Powerstackers
+ */
+public class DriveLimiter {
+
+    private static final int WHEELS = MecanumKinematics.MOTOR_COUNT;
+    /** Longest time step used, so a long pause between calls doesn't allow a jump. */
+    private static final double MAX_DT_SEC = 0.1;
+
+    private final double accelPerSec;
+    private final double slipRatio;
+    private final double slipMinPower;
+    private final double slipBackoffPerSec;
+    private final double slipRecoverPerSec;
+    private final double slipMinScale;
+
+    private final double[] output = new double[WHEELS];
+    private final double[] slipScale = new double[WHEELS];
+    private final boolean[] slipping = new boolean[WHEELS];
+    private final int[] positions = new int[WHEELS];
+    private final int[] lastPositions = new int[WHEELS];
+    private final double[] speedPerPower = new double[WHEELS];
+    private final double[] sorted = new double[WHEELS];
+    private long lastNanos = 0;
+    private boolean hasLast = false;
+    private boolean slipDetection = false;
+
+    /**
+     * Construct a drive limiter.
+     *
+     * @param accelPerSec       Most a wheel's power may grow per second.
+     * @param slipRatio         How many times the median speed per power counts as slipping.
+     * @param slipMinPower      Wheels below this power aren't checked for slip.
+     * @param slipBackoffPerSec How fast a slipping wheel's power is scaled back, per second.
+     * @param slipRecoverPerSec How fast a wheel's power comes back once it grips, per second.
+     * @param slipMinScale      Smallest fraction of its power a slipping wheel is cut to.
+     */
+    public DriveLimiter(double accelPerSec, double slipRatio, double slipMinPower,
+                        double slipBackoffPerSec, double slipRecoverPerSec, double slipMinScale) {
+        this.accelPerSec = accelPerSec;
+        this.slipRatio = slipRatio;
+        this.slipMinPower = slipMinPower;
+        this.slipBackoffPerSec = slipBackoffPerSec;
+        this.slipRecoverPerSec = slipRecoverPerSec;
+        this.slipMinScale = slipMinScale;
+        reset();
+    }
+
+    /**
+     * Construct a drive limiter using the settings in {@link VelRobotConstants}.
+     */
+    public DriveLimiter() {
+        this(VelRobotConstants.DRIVE_ACCEL_PER_SEC,
+                VelRobotConstants.DRIVE_SLIP_RATIO,
+                VelRobotConstants.DRIVE_SLIP_MIN_POWER,
+                VelRobotConstants.DRIVE_SLIP_BACKOFF_PER_SEC,
+                VelRobotConstants.DRIVE_SLIP_RECOVER_PER_SEC,
+                VelRobotConstants.DRIVE_SLIP_MIN_SCALE);
+    }
+
+    /**
+     * Start over from a stopped drive. Call this whenever the motors were set some other way, or
+     * the encoders were reset or swapped around.
+     */
+    public void reset() {
+        for (int i = 0; i < WHEELS; i++) {
+            output[i] = 0.0;
+            slipScale[i] = 1.0;
+            slipping[i] = false;
+        }
+        hasLast = false;
+    }
+
+    /**
+     * Turn slip detection on or off. Only turn it on while the drive motors are in
+     * RUN_WITHOUT_ENCODER. Turning it off lets any backed off wheel have its full power again.
+     *
+     * @param enabled True to check the wheels for slip on every update.
+     */
+    public void setSlipDetection(boolean enabled) {
+        slipDetection = enabled;
+        if (!enabled) {
+            for (int i = 0; i < WHEELS; i++) {
+                slipScale[i] = 1.0;
+                slipping[i] = false;
+            }
+        }
+    }
+
+    /**
+     * Move the output one step toward the kinematics' powers.
+     *
+     * @param timeNanos Time now, from {@link System#nanoTime()}.
+     * @param target    Kinematics holding the powers we want.
+     * @param position1 Encoder position of motorDrive1.
+     * @param position2 Encoder position of motorDrive2.
+     * @param position3 Encoder position of motorDrive3.
+     * @param position4 Encoder position of motorDrive4.
+     */
+    public void update(long timeNanos, MecanumKinematics target, int position1, int position2,
+                       int position3, int position4) {
+        positions[0] = position1;
+        positions[1] = position2;
+        positions[2] = position3;
+        positions[3] = position4;
+
+        double dt = 0.0;
+        if (hasLast) {
+            dt = Math.min((timeNanos - lastNanos) / 1e9, MAX_DT_SEC);
+            if (dt > 0.0 && slipDetection) {
+                detectSlip(dt);
+            }
+        }
+        for (int i = 0; i < WHEELS; i++) {
+            lastPositions[i] = positions[i];
+        }
+        lastNanos = timeNanos;
+        hasLast = true;
+
+        double maxStep = accelPerSec * dt;
+        for (int i = 0; i < WHEELS; i++) {
+            double want = target.getPower(i) * slipScale[i];
+            double have = output[i];
+            if (want * have < 0.0) {
+                // Reversing: drop to zero right away, then accelerate the other way
+                have = 0.0;
+            }
+            if (Math.abs(want) > Math.abs(have)) {
+                double step = Math.min(Math.abs(want) - Math.abs(have), maxStep);
+                output[i] = have + Math.signum(want) * step;
+            } else {
+                output[i] = want;
+            }
+        }
+    }
+
+    private void detectSlip(double dt) {
+        int count = 0;
+        for (int i = 0; i < WHEELS; i++) {
+            double power = Math.abs(output[i]);
+            if (power >= slipMinPower) {
+                speedPerPower[i] = Math.abs(positions[i] - lastPositions[i]) / dt / power;
+                sorted[count++] = speedPerPower[i];
+            } else {
+                speedPerPower[i] = -1.0;
+            }
+        }
+
+        // Need at least three wheels to tell which one is the odd one out
+        double median = -1.0;
+        if (count >= 3) {
+            for (int i = 1; i < count; i++) {
+                double value = sorted[i];
+                int j = i - 1;
+                while (j >= 0 && sorted[j] > value) {
+                    sorted[j + 1] = sorted[j];
+                    j--;
+                }
+                sorted[j + 1] = value;
+            }
+            median = count % 2 == 1 ? sorted[count / 2]
+                    : (sorted[count / 2 - 1] + sorted[count / 2]) / 2.0;
+        }
+
+        for (int i = 0; i < WHEELS; i++) {
+            slipping[i] = median > 0.0 && speedPerPower[i] > median * slipRatio;
+            if (slipping[i]) {
+                slipScale[i] = Math.max(slipMinScale, slipScale[i] - slipBackoffPerSec * dt);
+            } else {
+                slipScale[i] = Math.min(1.0, slipScale[i] + slipRecoverPerSec * dt);
+            }
+        }
+    }
+
+    /**
+     * @param motor Index of the drive motor, where motorDrive1 is 0.
+     * @return Power to send to that motor.
+     */
+    public double getPower(int motor) {
+        return output[motor];
+    }
+
+    /**
+     * @param motor Index of the drive motor, where motorDrive1 is 0.
+     * @return True if that wheel was slipping at the last update.
+     */
+    public boolean isSlipping(int motor) {
+        return slipping[motor];
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Finds the robot on the field from all of its sensors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cGyro;
+import com.qualcomm.robotcore.hardware.OpticalDistanceSensor;
+import com.qualcomm.robotcore.hardware.UltrasonicSensor;
+import com.qualcomm.robotcore.util.ThreadPool;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link PoseFilter} on its own thread, feeding it every sensor that knows something about
+ * where the robot is:
+ *
+ * <ul>
+ *     <li>the {@link MecanumOdometry} moves the estimate every period,</li>
+ *     <li>the gyro corrects the heading whenever it has a new reading,</li>
+ *     <li>the two beacon ultrasonic sensors correct the distance to whichever wall they face,</li>
+ *     <li>and the two ground ODS sensors correct the position across a white line each time one
+ *     of their {@link LineDetector}s finds one.</li>
+ * </ul>
+ *
+ * <p>Each of these is only a partial fix on its own, but together they keep the estimate within a
+ * few centimeters of the truth, so the autonomous doesn't have to creep back and forth to find
+ * each line.
+ *
+ * <p>The ultrasonic sensors are read less often than the others, since they take a new reading
+ * far less often than the odometry period.
+ *
+ * @author Powerstackers
+ */
+public class FieldLocalizer implements Runnable {
+
+    private final MecanumOdometry odometry;
+    private final ModernRoboticsI2cGyro gyro;
+    private final GyroBiasEstimator gyroBias;
+    private final UltrasonicSensor leftUS;
+    private final UltrasonicSensor rightUS;
+    private final OpticalDistanceSensor frontODS;
+    private final OpticalDistanceSensor backODS;
+    private final LineDetector frontLine;
+    private final LineDetector backLine;
+    private final FieldMap map;
+    private final PoseFilter filter;
+    private final long rangePeriodNanos;
+
+    // Only touched on the localizer thread
+    private final Pose odometryPose = new Pose();
+    private long lastRangeNanos = 0;
+    private int lastRawGyro = 0;
+    private boolean hasRawGyro = false;
+
+    // Only touched while holding the lock
+    private final Pose lastOdometryPose = new Pose();
+    private final Pose estimate = new Pose();
+    private boolean hasOdometry = false;
+    private boolean hasGyro = false;
+    private double gyroOffset = 0.0;
+    private long frontRiseNanos = 0;
+    private long backRiseNanos = 0;
+    private long timeNanos = 0;
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Construct a localizer.
+     *
+     * @param odometry      Encoder odometry, already running.
+     * @param gyro          The gyro.
+     * @param gyroBias      Takes the drift out of the gyro, kept up to date by the odometry.
+     * @param leftUS        Front ultrasonic sensor on the beacon side.
+     * @param rightUS       Back ultrasonic sensor on the beacon side.
+     * @param frontODS      Front ground light sensor.
+     * @param backODS       Back ground light sensor.
+     * @param frontLine     Finds lines with the front ODS. The robot may feed it too.
+     * @param backLine      Finds lines with the back ODS. The robot may feed it too.
+     * @param map           The field.
+     */
+    public FieldLocalizer(MecanumOdometry odometry, ModernRoboticsI2cGyro gyro,
+                          GyroBiasEstimator gyroBias,
+                          UltrasonicSensor leftUS, UltrasonicSensor rightUS,
+                          OpticalDistanceSensor frontODS, OpticalDistanceSensor backODS,
+                          LineDetector frontLine, LineDetector backLine, FieldMap map) {
+        this.odometry = odometry;
+        this.gyro = gyro;
+        this.gyroBias = gyroBias;
+        this.leftUS = leftUS;
+        this.rightUS = rightUS;
+        this.frontODS = frontODS;
+        this.backODS = backODS;
+        this.frontLine = frontLine;
+        this.backLine = backLine;
+        this.map = map;
+        this.filter = new PoseFilter();
+        this.rangePeriodNanos = VelRobotConstants.LOCALIZER_US_PERIOD_MS * 1000000L;
+    }
+
+    /**
+     * Start the localizer thread, running every {@link VelRobotConstants#LOCALIZER_PERIOD_MS}.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = ThreadPool.newSingleThreadScheduledExecutor();
+        executor.scheduleAtFixedRate(this, 0, VelRobotConstants.LOCALIZER_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the localizer thread. The last pose stays readable.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * One step of the localizer. Called by the localizer thread; don't call it directly.
+     */
+    @Override
+    public void run() {
+        try {
+            // Read the hardware outside the lock, so readers never wait on an I2C transaction
+            long nanos = System.nanoTime();
+            odometry.getPose(odometryPose);
+            double gyroHeading = Double.NaN;
+            if (gyro.isCalibrating()) {
+                realignGyro();
+                hasRawGyro = false;
+            } else {
+                // Only a new reading is news; the drift correction alone doesn't count
+                int rawGyro = gyro.getIntegratedZValue();
+                if (!hasRawGyro || rawGyro != lastRawGyro) {
+                    gyroHeading = gyroBias.correct(Math.toRadians(rawGyro));
+                    lastRawGyro = rawGyro;
+                    hasRawGyro = true;
+                }
+            }
+            double leftRange = Double.NaN;
+            double rightRange = Double.NaN;
+            if (nanos - lastRangeNanos >= rangePeriodNanos) {
+                leftRange = leftUS.getUltrasonicLevel();
+                rightRange = rightUS.getUltrasonicLevel();
+                lastRangeNanos = nanos;
+            }
+            frontLine.update(nanos, frontODS.getLightDetected());
+            backLine.update(nanos, backODS.getLightDetected());
+            update(nanos, odometryPose, gyroHeading, leftRange, rightRange,
+                    frontLine.getRiseNanos(), backLine.getRiseNanos());
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled task, so log it and try again next period
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fuse one set of readings.
+     *
+     * @param nanos       Time of the readings, from {@link System#nanoTime()}.
+     * @param reading     Pose from the encoder odometry.
+     * @param gyroHeading New gyro heading in radians counterclockwise with the drift taken out,
+     *                    or NaN if the gyro hasn't changed.
+     * @param leftRange   Front ultrasonic range in centimeters, or NaN if it wasn't read.
+     * @param rightRange  Back ultrasonic range in centimeters, or NaN if it wasn't read.
+     * @param frontRise   When the front ODS last found a line, or 0 if it hasn't.
+     * @param backRise    When the back ODS last found a line, or 0 if it hasn't.
+     */
+    public synchronized void update(long nanos, Pose reading, double gyroHeading,
+                                    double leftRange, double rightRange,
+                                    long frontRise, long backRise) {
+        if (hasOdometry) {
+            // Turn the odometry's motion back into the robot's frame, then replay it in ours
+            double dx = reading.x - lastOdometryPose.x;
+            double dy = reading.y - lastOdometryPose.y;
+            double deltaHeading = reading.heading - lastOdometryPose.heading;
+            double midHeading = lastOdometryPose.heading + deltaHeading / 2.0;
+            double cos = Math.cos(midHeading);
+            double sin = Math.sin(midHeading);
+            filter.predict(dx * cos + dy * sin, -dx * sin + dy * cos, deltaHeading);
+        }
+        lastOdometryPose.set(reading.x, reading.y, reading.heading, reading.timeNanos);
+        hasOdometry = true;
+
+        if (!Double.isNaN(gyroHeading)) {
+            if (!hasGyro) {
+                gyroOffset = filter.getPose(estimate).heading - gyroHeading;
+                hasGyro = true;
+            } else {
+                filter.correctHeading(gyroHeading + gyroOffset,
+                        VelRobotConstants.LOCALIZER_GYRO_SIGMA);
+            }
+        }
+
+        correctRange(VelRobotConstants.LOCALIZER_LEFT_US_MOUNT, leftRange);
+        correctRange(VelRobotConstants.LOCALIZER_RIGHT_US_MOUNT, rightRange);
+
+        // A new edge time is a new line, whichever thread's reading found it
+        if (frontRise != frontRiseNanos) {
+            filter.correctLine(map, VelRobotConstants.LOCALIZER_FRONT_ODS_MOUNT,
+                    VelRobotConstants.LOCALIZER_LINE_SIGMA_CM);
+            frontRiseNanos = frontRise;
+        }
+        if (backRise != backRiseNanos) {
+            filter.correctLine(map, VelRobotConstants.LOCALIZER_BACK_ODS_MOUNT,
+                    VelRobotConstants.LOCALIZER_LINE_SIGMA_CM);
+            backRiseNanos = backRise;
+        }
+
+        timeNanos = nanos;
+    }
+
+    private void correctRange(double[] mount, double range) {
+        // The sensor reads 0 or 255 when it has no echo
+        if (range > 0.0 && range <= VelRobotConstants.LOCALIZER_US_MAX_RANGE_CM) {
+            filter.correctRange(map, mount, range, VelRobotConstants.LOCALIZER_US_SIGMA_CM);
+        }
+    }
+
+    /**
+     * Line the next gyro reading up with the estimate instead of correcting toward it. Called
+     * while the gyro is calibrating, since its heading comes back from zero.
+     */
+    private synchronized void realignGyro() {
+        hasGyro = false;
+    }
+
+    /**
+     * Tell the localizer where the robot is, for example its starting position on the field.
+     *
+     * @param pose Where the robot is now. Its time is ignored.
+     */
+    public synchronized void setPose(Pose pose) {
+        filter.reset(pose, VelRobotConstants.LOCALIZER_START_SIGMA_CM,
+                VelRobotConstants.LOCALIZER_START_SIGMA_HEADING);
+        hasGyro = false;
+    }
+
+    /**
+     * Copy the latest estimate.
+     *
+     * @param out Pose to fill in.
+     * @return The same pose, for chaining.
+     */
+    public synchronized Pose getPose(Pose out) {
+        filter.getPose(out);
+        out.timeNanos = timeNanos;
+        return out;
+    }
+
+    /**
+     * @return Standard deviation of the position, along its worse axis, in centimeters.
+     */
+    public synchronized double getPositionSigma() {
+        return filter.getPositionSigma();
+    }
+
+    /**
+     * @return The field the localizer is matching readings against.
+     */
+    public FieldMap getMap() {
+        return map;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Where the walls and white lines are on the field.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.AllianceColor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of the field the robot's sensors can see: the walls, which the ultrasonic sensors
+ * range off, and the white lines in front of the beacons, which the ODS sensors cross.
+ *
+ * <p>Positions are in the same frame as {@link Pose}, in centimeters with the origin at the
+ * center of the field. The map is drawn from our alliance's side: the wall with our beacons is
+ * along +x, and the blue alliance's map is the red one mirrored in y, the same way the blue
+ * autonomous mirrors the red one.
+ *
+ * <p>Every wall and line is parallel to an axis, which keeps the ranges and offsets simple.
+ *
+ * @author Powerstackers
+ */
+public class FieldMap {
+
+    /** A wall, seen from inside the field. */
+    public static class Wall {
+        /** True if the wall runs along the y axis, at a constant x. */
+        public final boolean alongY;
+        /** The x or y coordinate of the wall, in centimeters. */
+        public final double position;
+
+        Wall(boolean alongY, double position) {
+            this.alongY = alongY;
+            this.position = position;
+        }
+
+        /**
+         * Distance from a point along a ray to this wall.
+         *
+         * @param x               Start of the ray, in centimeters.
+         * @param y               Start of the ray, in centimeters.
+         * @param heading         Direction of the ray, in radians counterclockwise from +y.
+         * @param minCosIncidence Smallest cosine of the angle between the ray and the wall's
+         *                        normal that still gives an echo.
+         * @return The distance in centimeters, or NaN if the ray misses or glances off the wall.
+         */
+        public double range(double x, double y, double heading, double minCosIncidence) {
+            double along = alongY ? -Math.sin(heading) : Math.cos(heading);
+            double gap = position - (alongY ? x : y);
+            if (Math.abs(along) < minCosIncidence || gap * along <= 0.0) {
+                return Double.NaN;
+            }
+            return gap / along;
+        }
+    }
+
+    /** A strip of white tape. */
+    public static class Line {
+        /** True if the line runs along the y axis, at a constant x. */
+        public final boolean alongY;
+        /** The x or y coordinate of the middle of the tape, in centimeters. */
+        public final double position;
+        /** Where the line starts along its length, in centimeters. */
+        public final double start;
+        /** Where the line ends along its length, in centimeters. */
+        public final double end;
+
+        Line(boolean alongY, double position, double start, double end) {
+            this.alongY = alongY;
+            this.position = position;
+            this.start = Math.min(start, end);
+            this.end = Math.max(start, end);
+        }
+
+        /**
+         * @param x Point, in centimeters.
+         * @param y Point, in centimeters.
+         * @return How far the point is across the line from its middle, in centimeters.
+         */
+        public double offset(double x, double y) {
+            return (alongY ? x : y) - position;
+        }
+
+        /**
+         * @param x      Point, in centimeters.
+         * @param y      Point, in centimeters.
+         * @param margin Extra length allowed past each end, in centimeters.
+         * @return True if the point is beside the line, somewhere along its length.
+         */
+        public boolean isBeside(double x, double y, double margin) {
+            double along = alongY ? y : x;
+            return along >= start - margin && along <= end + margin;
+        }
+    }
+
+    private final List<Wall> walls = new ArrayList<Wall>();
+    private final List<Line> lines = new ArrayList<Line>();
+    private double mirror = 1.0;
+
+    /**
+     * Construct an empty map.
+     */
+    public FieldMap() {
+    }
+
+    /**
+     * Build the map for one alliance from the measurements in {@link VelRobotConstants}.
+     *
+     * @param alliance Our alliance. Blue is red mirrored in y.
+     * @return The map.
+     */
+    public static FieldMap forAlliance(AllianceColor alliance) {
+        double mirror = alliance == AllianceColor.BLUE ? -1.0 : 1.0;
+        double half = VelRobotConstants.FIELD_SIZE_CM / 2.0;
+        double lineStart = half - VelRobotConstants.FIELD_BEACON_LINE_LENGTH_CM;
+
+        FieldMap map = new FieldMap();
+        map.mirror = mirror;
+        map.addWall(true, half);
+        map.addWall(true, -half);
+        map.addWall(false, half);
+        map.addWall(false, -half);
+        for (double beaconY : VelRobotConstants.FIELD_BEACON_LINE_Y_CM) {
+            map.addLine(false, beaconY * mirror, lineStart, half);
+        }
+        return map;
+    }
+
+    /**
+     * Place a pose measured on the red side onto this map. On blue, y and the heading change
+     * sign; the robot still faces +y with its beacon side toward the wall.
+     *
+     * @param red The pose on red, as {x cm, y cm, heading rad}.
+     * @param out Pose to fill in.
+     * @return The same pose, for chaining.
+     */
+    public Pose placeFromRed(double[] red, Pose out) {
+        out.set(red[0], red[1] * mirror, red[2] * mirror, 0);
+        return out;
+    }
+
+    /**
+     * Add a wall.
+     *
+     * @param alongY   True if the wall runs along the y axis, at a constant x.
+     * @param position The x or y coordinate of the wall, in centimeters.
+     */
+    public void addWall(boolean alongY, double position) {
+        walls.add(new Wall(alongY, position));
+    }
+
+    /**
+     * Add a line of tape.
+     *
+     * @param alongY   True if the line runs along the y axis, at a constant x.
+     * @param position The x or y coordinate of the middle of the tape, in centimeters.
+     * @param start    Where the line starts along its length, in centimeters.
+     * @param end      Where the line ends along its length, in centimeters.
+     */
+    public void addLine(boolean alongY, double position, double start, double end) {
+        lines.add(new Line(alongY, position, start, end));
+    }
+
+    /**
+     * @return Every wall on the map.
+     */
+    public List<Wall> getWalls() {
+        return Collections.unmodifiableList(walls);
+    }
+
+    /**
+     * @return Every line on the map.
+     */
+    public List<Line> getLines() {
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Find the wall an ultrasonic sensor would see.
+     *
+     * @param x               Position of the sensor, in centimeters.
+     * @param y               Position of the sensor, in centimeters.
+     * @param heading         Direction the sensor faces, in radians counterclockwise from +y.
+     * @param minCosIncidence Smallest cosine of the angle between the beam and the wall's normal
+     *                        that still gives an echo.
+     * @return The closest wall the beam hits, or null if none would echo.
+     */
+    public Wall findWall(double x, double y, double heading, double minCosIncidence) {
+        Wall closest = null;
+        double closestRange = Double.POSITIVE_INFINITY;
+        // Indexed, so no iterator is allocated on the localizer thread
+        for (int i = 0; i < walls.size(); i++) {
+            Wall wall = walls.get(i);
+            double range = wall.range(x, y, heading, minCosIncidence);
+            if (range < closestRange) {
+                closest = wall;
+                closestRange = range;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Find the line an ODS sensor has most likely just crossed.
+     *
+     * @param x      Position of the sensor, in centimeters.
+     * @param y      Position of the sensor, in centimeters.
+     * @param margin Extra length allowed past each end of a line, in centimeters.
+     * @return The line closest to the sensor, or null if the sensor isn't beside any line.
+     */
+    public Line findLine(double x, double y, double margin) {
+        Line closest = null;
+        double closestOffset = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            double offset = Math.abs(line.offset(x, y));
+            if (line.isBeside(x, y, margin) && offset < closestOffset) {
+                closest = line;
+                closestOffset = offset;
+            }
+        }
+        return closest;
+    }
+}
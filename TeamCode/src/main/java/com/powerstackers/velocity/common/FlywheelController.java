@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Velocity controller for the shooter flywheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.util.Range;
+
+/**
+ * PIDF velocity controller for a flywheel. The feedforward term supplies the power we expect the
+ * wheel to need at the target speed, and the PID terms make up the difference when a ball pulls
+ * the wheel down.
+ *
+ * <p>The integral term is clamped, and it stops accumulating while the output is saturated in the
+ * direction the error is pushing. That keeps it from winding up during spin-up.
+ *
+ * @author Powerstackers
+ */
+public class FlywheelController {
+
+    private final double kS;
+    private final double kV;
+    private final double kP;
+    private final double kI;
+    private final double kD;
+    private final double integralLimit;
+
+    private double minOutput = 0.0;
+    private double maxOutput = 1.0;
+
+    private double integral = 0.0;
+    private double lastMeasurement = 0.0;
+    private boolean hasLastMeasurement = false;
+
+    /**
+     * Construct a controller.
+     *
+     * @param kS            Static friction feedforward, in power.
+     * @param kV            Velocity feedforward, in power per RPM.
+     * @param kP            Proportional gain, in power per RPM of error.
+     * @param kI            Integral gain, in power per RPM-second of error.
+     * @param kD            Derivative gain, in power per RPM/second.
+     * @param integralLimit Largest amount of power the integral term is allowed to contribute.
+     */
+    public FlywheelController(double kS, double kV, double kP, double kI, double kD,
+                              double integralLimit) {
+        this.kS = kS;
+        this.kV = kV;
+        this.kP = kP;
+        this.kI = kI;
+        this.kD = kD;
+        this.integralLimit = integralLimit;
+    }
+
+    /**
+     * Construct a controller using the shooter gains in {@link VelRobotConstants}.
+     */
+    public FlywheelController() {
+        this(VelRobotConstants.SHOOTER_KS,
+                VelRobotConstants.SHOOTER_KV,
+                VelRobotConstants.SHOOTER_KP,
+                VelRobotConstants.SHOOTER_KI,
+                VelRobotConstants.SHOOTER_KD,
+                VelRobotConstants.SHOOTER_INTEGRAL_LIMIT);
+    }
+
+    /**
+     * Construct a controller whose feedforward comes from a fitted flywheel model, using the PID
+     * gains in {@link VelRobotConstants}.
+     *
+     * @param model          The flywheel model.
+     * @param nominalVoltage Battery voltage that full power corresponds to.
+     */
+    public FlywheelController(FlywheelModel model, double nominalVoltage) {
+        this(model.kS / nominalVoltage,
+                model.kV / nominalVoltage,
+                VelRobotConstants.SHOOTER_KP,
+                VelRobotConstants.SHOOTER_KI,
+                VelRobotConstants.SHOOTER_KD,
+                VelRobotConstants.SHOOTER_INTEGRAL_LIMIT);
+    }
+
+    /**
+     * Set the range the output is clipped to.
+     *
+     * @param min Lowest power the controller may command.
+     * @param max Highest power the controller may command.
+     */
+    public void setOutputLimits(double min, double max) {
+        minOutput = min;
+        maxOutput = max;
+    }
+
+    /**
+     * Run one step of the controller.
+     *
+     * @param targetRpm   The speed we want.
+     * @param measuredRpm The speed we have.
+     * @param dtSeconds   Time since the last step, in seconds.
+     * @return Motor power, clipped to the output limits.
+     */
+    public double calculate(double targetRpm, double measuredRpm, double dtSeconds) {
+        if (targetRpm == 0.0) {
+            reset();
+            return 0.0;
+        }
+
+        double error = targetRpm - measuredRpm;
+        double feedforward = kS * Math.signum(targetRpm) + kV * targetRpm;
+
+        // Differentiate the measurement, not the error, so target changes don't kick the output
+        double derivative = 0.0;
+        if (hasLastMeasurement && dtSeconds > 0.0) {
+            derivative = -(measuredRpm - lastMeasurement) / dtSeconds;
+        }
+        lastMeasurement = measuredRpm;
+        hasLastMeasurement = true;
+
+        double output = feedforward + kP * error + kI * integral + kD * derivative;
+
+        boolean pushingHigh = output >= maxOutput && error > 0.0;
+        boolean pushingLow = output <= minOutput && error < 0.0;
+        if (kI != 0.0 && !pushingHigh && !pushingLow) {
+            integral += error * dtSeconds;
+            double maxIntegral = integralLimit / Math.abs(kI);
+            integral = Range.clip(integral, -maxIntegral, maxIntegral);
+            output = feedforward + kP * error + kI * integral + kD * derivative;
+        }
+
+        return Range.clip(output, minOutput, maxOutput);
+    }
+
+    /**
+     * Clear the integral and derivative history.
+     */
+    public void reset() {
+        integral = 0.0;
+        hasLastMeasurement = false;
+    }
+}
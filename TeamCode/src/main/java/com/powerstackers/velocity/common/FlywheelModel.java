@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Fitted model of the shooter flywheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Model of the flywheel: volts = kS * sign(rpm) + kV * rpm + kA * (rpm per second).
+ *
+ * <p>With a constant voltage the wheel approaches its free speed exponentially, with a time
+ * constant of kA / kV. That lets us predict how long a spin-up will take.
+ *
+ * <p>This class only uses plain Java so that {@link FlywheelModelFitter} can run on a desktop.
+ *
+ * @author Powerstackers
+ */
+public class FlywheelModel {
+
+    private static final String KEY_KS = "kS";
+    private static final String KEY_KV = "kV";
+    private static final String KEY_KA = "kA";
+
+    /** Voltage needed to overcome friction. */
+    public final double kS;
+    /** Volts per RPM of steady speed. */
+    public final double kV;
+    /** Volts per RPM/second of acceleration. */
+    public final double kA;
+
+    /**
+     * Construct a model.
+     *
+     * @param kS Static friction, in volts.
+     * @param kV Velocity gain, in volts per RPM.
+     * @param kA Acceleration gain, in volts per RPM/second.
+     */
+    public FlywheelModel(double kS, double kV, double kA) {
+        this.kS = kS;
+        this.kV = kV;
+        this.kA = kA;
+    }
+
+    /**
+     * @return The hand-tuned model from {@link VelRobotConstants}, for when nothing has been fit.
+     */
+    public static FlywheelModel defaults() {
+        double kV = VelRobotConstants.NOMINAL_BATTERY_VOLTAGE * VelRobotConstants.SHOOTER_KV;
+        return new FlywheelModel(
+                VelRobotConstants.NOMINAL_BATTERY_VOLTAGE * VelRobotConstants.SHOOTER_KS,
+                kV,
+                kV * VelRobotConstants.SHOOTER_DEFAULT_TIME_CONSTANT_SEC);
+    }
+
+    /**
+     * @return Time constant of the spin-up curve, in seconds.
+     */
+    public double getTimeConstantSec() {
+        return kA / kV;
+    }
+
+    /**
+     * @param volts Voltage across the motor.
+     * @return The speed the wheel settles at with that voltage.
+     */
+    public double getFreeSpeedRpm(double volts) {
+        return Math.max(0.0, (volts - kS) / kV);
+    }
+
+    /**
+     * Predict how long it takes to spin up from rest.
+     *
+     * @param targetRpm Speed to reach.
+     * @param volts     Voltage across the motor while spinning up.
+     * @return Time in seconds, or infinity if that voltage can't reach the target.
+     */
+    public double getSpinUpSec(double targetRpm, double volts) {
+        double freeSpeed = getFreeSpeedRpm(volts);
+        if (targetRpm >= freeSpeed) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return -getTimeConstantSec() * Math.log(1.0 - targetRpm / freeSpeed);
+    }
+
+    /**
+     * @param rpm   Flywheel speed.
+     * @param accel Flywheel acceleration, in RPM per second.
+     * @return Voltage needed to hold that speed and acceleration.
+     */
+    public double getVolts(double rpm, double accel) {
+        return kS * Math.signum(rpm) + kV * rpm + kA * accel;
+    }
+
+    /**
+     * Write the model to a file.
+     *
+     * @param file File to write.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_KS, Double.toString(kS));
+        properties.setProperty(KEY_KV, Double.toString(kV));
+        properties.setProperty(KEY_KA, Double.toString(kA));
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Shooter flywheel model, volts = kS + kV * rpm + kA * rpm/s");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a model from a file.
+     *
+     * @param file File written by {@link #save(File)}.
+     * @return The model.
+     * @throws IOException If the file can't be read or is missing a value.
+     */
+    public static FlywheelModel load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        try {
+            return new FlywheelModel(
+                    Double.parseDouble(properties.getProperty(KEY_KS)),
+                    Double.parseDouble(properties.getProperty(KEY_KV)),
+                    Double.parseDouble(properties.getProperty(KEY_KA)));
+        } catch (NullPointerException e) {
+            throw new IOException("Flywheel model is missing a value: " + file, e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Flywheel model has a bad value: " + file, e);
+        }
+    }
+
+    /**
+     * Read a model from a file, falling back to {@link #defaults()} if there isn't a good one.
+     *
+     * @param file File written by {@link #save(File)}.
+     * @return The model.
+     */
+    public static FlywheelModel loadOrDefault(File file) {
+        if (!file.exists()) {
+            return defaults();
+        }
+        try {
+            FlywheelModel model = load(file);
+            if (model.kV > 0.0 && model.kA > 0.0) {
+                return model;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return defaults();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("kS=%.4f V, kV=%.6f V/rpm, kA=%.6f V/(rpm/s), tau=%.3f s",
+                kS, kV, kA, getTimeConstantSec());
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Fits a flywheel model to recorded shooter runs.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Least squares fit of {@link FlywheelModel} to recorded samples of time, commanded power,
+ * battery voltage and encoder position. The shooter characterization OpMode uses this on the
+ * robot, and the {@link #main(String[])} method runs the same fit on a desktop against the CSV
+ * files the OpMode writes:
+ *
+ * <pre>
+ * java -cp classes com.powerstackers.velocity.common.FlywheelModelFitter run1.csv [run2.csv ...] [-o shooter_model.txt]
+ * </pre>
+ *
+ * <p>Only plain Java is used here, so none of the FTC libraries are needed to run it.
+ *
+ * @author Powerstackers
+ */
+public class FlywheelModelFitter {
+
+    /** First line of every sample file. */
+    public static final String CSV_HEADER = "time_s,power,battery_v,position";
+
+    /** Samples on each side used to estimate speed and acceleration. */
+    private static final int DIFF_SPAN = 5;
+    /** Samples slower than this are left out, since friction there isn't well modeled. */
+    private static final double MIN_FIT_RPM = 30.0;
+
+    // Normal equations for volts = kS * sign + kV * rpm + kA * accel
+    private final double[][] ata = new double[3][3];
+    private final double[] atb = new double[3];
+    private int rows = 0;
+
+    /**
+     * Fit a model to a single run.
+     *
+     * @param timeSec  Sample times, in seconds.
+     * @param power    Commanded motor power for each sample.
+     * @param battery  Battery voltage for each sample.
+     * @param position Encoder position for each sample, in ticks.
+     * @param count    Number of samples to use from the start of the arrays.
+     * @return The fitted model.
+     * @throws IllegalArgumentException If there isn't enough moving data to fit, or the fit
+     *                                  doesn't make physical sense.
+     */
+    public static FlywheelModel fit(double[] timeSec, double[] power, double[] battery,
+                                    double[] position, int count) {
+        FlywheelModelFitter fitter = new FlywheelModelFitter();
+        fitter.addRun(timeSec, power, battery, position, count);
+        return fitter.fit();
+    }
+
+    /**
+     * Add the samples from one run to the fit.
+     *
+     * @param timeSec  Sample times, in seconds.
+     * @param power    Commanded motor power for each sample.
+     * @param battery  Battery voltage for each sample.
+     * @param position Encoder position for each sample, in ticks.
+     * @param count    Number of samples to use from the start of the arrays.
+     */
+    public void addRun(double[] timeSec, double[] power, double[] battery, double[] position,
+                       int count) {
+        double[] rpm = new double[count];
+        boolean[] valid = new boolean[count];
+
+        double ticksToRpm = 60.0 / ShooterVelocityEstimator.SHOOTER_TICKS_PER_REV;
+        for (int i = DIFF_SPAN; i < count - DIFF_SPAN; i++) {
+            double dt = timeSec[i + DIFF_SPAN] - timeSec[i - DIFF_SPAN];
+            if (dt > 0.0) {
+                rpm[i] = (position[i + DIFF_SPAN] - position[i - DIFF_SPAN]) / dt * ticksToRpm;
+                valid[i] = true;
+            }
+        }
+
+        for (int i = 2 * DIFF_SPAN; i < count - 2 * DIFF_SPAN; i++) {
+            int before = i - DIFF_SPAN;
+            int after = i + DIFF_SPAN;
+            if (!valid[i] || !valid[before] || !valid[after] || Math.abs(rpm[i]) < MIN_FIT_RPM) {
+                continue;
+            }
+            // The differences smear a power step across the window, so skip steps. This looks at
+            // the commanded power, since the battery voltage is noisy from one sample to the next
+            if (power[i - 2 * DIFF_SPAN] != power[i + 2 * DIFF_SPAN]) {
+                continue;
+            }
+            double volts = power[i] * battery[i];
+            double dt = timeSec[after] - timeSec[before];
+            double accel = (rpm[after] - rpm[before]) / dt;
+
+            double[] row = {Math.signum(rpm[i]), rpm[i], accel};
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++) {
+                    ata[r][c] += row[r] * row[c];
+                }
+                atb[r] += row[r] * volts;
+            }
+            rows++;
+        }
+    }
+
+    /**
+     * @return The model that best fits every run added so far.
+     * @throws IllegalArgumentException If there isn't enough moving data to fit, or the fit
+     *                                  doesn't make physical sense.
+     */
+    public FlywheelModel fit() {
+        if (rows < 10) {
+            throw new IllegalArgumentException("Not enough moving samples to fit: " + rows);
+        }
+        double[] k = solve(ata, atb);
+        FlywheelModel model = new FlywheelModel(k[0], k[1], k[2]);
+        // A wheel that speeds up with no voltage, or instantly, is a bad fit, not a model
+        if (!(model.kV > 0.0) || !(model.kA > 0.0)
+                || Double.isInfinite(model.getTimeConstantSec())
+                || Double.isNaN(model.getTimeConstantSec())) {
+            throw new IllegalArgumentException("Fit doesn't make physical sense: " + model);
+        }
+        return model;
+    }
+
+    /**
+     * Solve a 3x3 linear system with Gaussian elimination and partial pivoting.
+     */
+    private static double[] solve(double[][] a, double[] b) {
+        int n = b.length;
+        double[][] m = new double[n][];
+        double[] x = Arrays.copyOf(b, n);
+        for (int i = 0; i < n; i++) {
+            m[i] = Arrays.copyOf(a[i], n);
+        }
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < n; r++) {
+                if (Math.abs(m[r][col]) > Math.abs(m[pivot][col])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(m[pivot][col]) < 1e-12) {
+                throw new IllegalArgumentException("Samples don't excite the model; try more power steps");
+            }
+            double[] rowSwap = m[col];
+            m[col] = m[pivot];
+            m[pivot] = rowSwap;
+            double valueSwap = x[col];
+            x[col] = x[pivot];
+            x[pivot] = valueSwap;
+
+            for (int r = col + 1; r < n; r++) {
+                double factor = m[r][col] / m[col][col];
+                for (int c = col; c < n; c++) {
+                    m[r][c] -= factor * m[col][c];
+                }
+                x[r] -= factor * x[col];
+            }
+        }
+
+        for (int r = n - 1; r >= 0; r--) {
+            for (int c = r + 1; c < n; c++) {
+                x[r] -= m[r][c] * x[c];
+            }
+            x[r] /= m[r][r];
+        }
+        return x;
+    }
+
+    /**
+     * Write samples to a CSV file in the format {@link #main(String[])} reads.
+     *
+     * @param file     File to write.
+     * @param timeSec  Sample times, in seconds.
+     * @param power    Motor power for each sample.
+     * @param battery  Battery voltage for each sample.
+     * @param position Encoder position for each sample, in ticks.
+     * @param count    Number of samples to write.
+     * @throws IOException If the file can't be written.
+     */
+    public static void writeSamples(File file, double[] timeSec, double[] power, double[] battery,
+                                    double[] position, int count) throws IOException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println(CSV_HEADER);
+            for (int i = 0; i < count; i++) {
+                out.println(timeSec[i] + "," + power[i] + "," + battery[i] + "," + position[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Fit a model to one or more recorded runs and save it.
+     *
+     * @param args Sample CSV files, optionally followed by -o and the model file to write.
+     * @throws IOException If a file can't be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        File output = new File(VelRobotConstants.SHOOTER_MODEL_FILE);
+        int fileCount = args.length;
+        if (fileCount >= 2 && "-o".equals(args[fileCount - 2])) {
+            output = new File(args[fileCount - 1]);
+            fileCount -= 2;
+        }
+        if (fileCount == 0) {
+            System.err.println("Usage: FlywheelModelFitter samples.csv [more.csv ...] [-o model.txt]");
+            System.exit(1);
+        }
+
+        FlywheelModelFitter combined = new FlywheelModelFitter();
+        int skipped = 0;
+        for (int f = 0; f < fileCount; f++) {
+            File input = new File(args[f]);
+            int count = countLines(input) - 1;
+            double[] time = new double[count];
+            double[] power = new double[count];
+            double[] battery = new double[count];
+            double[] position = new double[count];
+
+            BufferedReader in = new BufferedReader(new FileReader(input));
+            try {
+                in.readLine();
+                for (int i = 0; i < count; i++) {
+                    String[] fields = in.readLine().split(",");
+                    time[i] = Double.parseDouble(fields[0]);
+                    power[i] = Double.parseDouble(fields[1]);
+                    battery[i] = Double.parseDouble(fields[2]);
+                    position[i] = Double.parseDouble(fields[3]);
+                }
+            } finally {
+                in.close();
+            }
+
+            try {
+                FlywheelModel model = fit(time, power, battery, position, count);
+                System.out.println(input.getName() + ": " + model);
+            } catch (IllegalArgumentException e) {
+                // One short or bad run shouldn't throw away the others
+                System.err.println(input.getName() + ": skipped, " + e.getMessage());
+                skipped++;
+                continue;
+            }
+            combined.addRun(time, power, battery, position, count);
+        }
+        if (skipped == fileCount) {
+            System.err.println("No usable runs; nothing saved");
+            System.exit(1);
+        }
+
+        FlywheelModel model;
+        try {
+            model = combined.fit();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Combined fit failed, nothing saved: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println("Combined: " + model
+                + (skipped > 0 ? " (" + skipped + " of " + fileCount + " runs skipped)" : ""));
+        System.out.printf("  free speed at %.1f V: %.0f rpm, spin-up to %d rpm: %.2f s%n",
+                VelRobotConstants.NOMINAL_BATTERY_VOLTAGE,
+                model.getFreeSpeedRpm(VelRobotConstants.NOMINAL_BATTERY_VOLTAGE),
+                VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM,
+                model.getSpinUpSec(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM,
+                        VelRobotConstants.NOMINAL_BATTERY_VOLTAGE));
+        model.save(output);
+        System.out.println("Saved " + output.getPath());
+    }
+
+    private static int countLines(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (in.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            in.close();
+        }
+    }
+}
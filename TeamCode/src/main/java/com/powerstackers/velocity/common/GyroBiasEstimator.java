@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Learns and removes the gyro's drift.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Removes the drift from the gyro's integrated heading. The gyro zeroes itself once, when it's
+ * calibrated, and from then on any change in its bias shows up as the heading slowly creeping.
+ *
+ * <p>Whenever the robot is sitting still, the heading can't really be changing, so:
+ *
+ * <ul>
+ *     <li>any change in the gyro's heading is drift, and is taken straight back out, and</li>
+ *     <li>the drift is divided by how long the robot has been still to learn the drift rate,
+ *     which is then taken out while the robot moves.</li>
+ * </ul>
+ *
+ * <p>The robot counts as still once the drive encoders haven't moved for a moment and the raw Z
+ * rate is as quiet as it is at rest. The rest level of the raw rate is learned while the robot
+ * sits still during init, so a robot being spun by another robot with its wheels stopped isn't
+ * mistaken for a still one.
+ *
+ * <p>Only the most recent stretch of still time is remembered, so the drift rate follows the
+ * gyro as it warms up over a match.
+ *
+ * @author Powerstackers
+ */
+public class GyroBiasEstimator {
+
+    private static final int WHEELS = MecanumKinematics.MOTOR_COUNT;
+
+    private final long settleNanos;
+    private final double minStillSec;
+    private final double memorySec;
+    private final double rawStillSigmas;
+    private final double rawStillMin;
+    private final int rawInitSamples;
+
+    private final int[] lastPositions = new int[WHEELS];
+    private boolean hasLast = false;
+    private long lastNanos = 0;
+    private double lastGyro = 0.0;
+    private long stillSinceNanos = 0;
+
+    private double correction = 0.0;
+    private double stillDrift = 0.0;
+    private double stillSec = 0.0;
+    private double driftRate = 0.0;
+
+    private int rawCount = 0;
+    private double rawMean = 0.0;
+    private double rawVariance = 0.0;
+
+    /**
+     * Construct an estimator.
+     *
+     * @param settleMs       How long the encoders must stay still before the robot counts as
+     *                       still, in milliseconds.
+     * @param minStillSec    Still time needed before the drift rate is trusted, in seconds.
+     * @param memorySec      How much still time the drift rate is averaged over, in seconds.
+     * @param rawStillSigmas The raw rate must be within this many standard deviations of its
+     *                       rest level for the robot to count as still.
+     * @param rawStillMin    Smallest allowed band around the rest level, in raw units.
+     * @param rawInitSamples Rest samples averaged evenly before switching to a running average.
+     */
+    public GyroBiasEstimator(long settleMs, double minStillSec, double memorySec,
+                             double rawStillSigmas, double rawStillMin, int rawInitSamples) {
+        this.settleNanos = settleMs * 1000000L;
+        this.minStillSec = minStillSec;
+        this.memorySec = memorySec;
+        this.rawStillSigmas = rawStillSigmas;
+        this.rawStillMin = rawStillMin;
+        this.rawInitSamples = rawInitSamples;
+    }
+
+    /**
+     * Construct an estimator using the settings in {@link VelRobotConstants}.
+     */
+    public GyroBiasEstimator() {
+        this(VelRobotConstants.GYRO_BIAS_SETTLE_MS,
+                VelRobotConstants.GYRO_BIAS_MIN_STILL_SEC,
+                VelRobotConstants.GYRO_BIAS_MEMORY_SEC,
+                VelRobotConstants.GYRO_RAW_STILL_SIGMAS,
+                VelRobotConstants.GYRO_RAW_STILL_MIN,
+                VelRobotConstants.GYRO_RAW_INIT_SAMPLES);
+    }
+
+    /**
+     * Take in a gyro reading. Call this every loop, including while waiting for the start.
+     *
+     * @param nanos       Time of the reading, from {@link System#nanoTime()}.
+     * @param gyroHeading The gyro's integrated heading, in radians counterclockwise.
+     * @param rawZ        The gyro's raw Z rate.
+     * @param pos1        Encoder position of motorDrive1.
+     * @param pos2        Encoder position of motorDrive2.
+     * @param pos3        Encoder position of motorDrive3.
+     * @param pos4        Encoder position of motorDrive4.
+     */
+    public synchronized void update(long nanos, double gyroHeading, int rawZ,
+                                    int pos1, int pos2, int pos3, int pos4) {
+        if (!hasLast) {
+            stillSinceNanos = nanos;
+        } else {
+            boolean wheelsStill = pos1 == lastPositions[0] && pos2 == lastPositions[1]
+                    && pos3 == lastPositions[2] && pos4 == lastPositions[3];
+            if (!wheelsStill || !isRawQuiet(rawZ)) {
+                stillSinceNanos = nanos;
+            }
+
+            double dtSec = (nanos - lastNanos) / 1e9;
+            if (nanos - stillSinceNanos >= settleNanos) {
+                // Not turning, so whatever the gyro says is drift
+                double drift = gyroHeading - lastGyro;
+                correction += drift;
+                learnDrift(drift, dtSec);
+                learnRest(rawZ);
+            } else {
+                correction += driftRate * dtSec;
+            }
+        }
+
+        lastPositions[0] = pos1;
+        lastPositions[1] = pos2;
+        lastPositions[2] = pos3;
+        lastPositions[3] = pos4;
+        lastNanos = nanos;
+        lastGyro = gyroHeading;
+        hasLast = true;
+    }
+
+    private void learnDrift(double drift, double dtSec) {
+        stillDrift += drift;
+        stillSec += dtSec;
+        if (stillSec > memorySec) {
+            // Forget the oldest still time, keeping the same rate
+            stillDrift *= memorySec / stillSec;
+            stillSec = memorySec;
+        }
+        if (stillSec >= minStillSec) {
+            driftRate = stillDrift / stillSec;
+        }
+    }
+
+    private void learnRest(int rawZ) {
+        double weight = rawCount < rawInitSamples ? 1.0 / (rawCount + 1) : 1.0 / rawInitSamples;
+        double error = rawZ - rawMean;
+        rawMean += weight * error;
+        rawVariance += weight * (error * error * (1.0 - weight) - rawVariance);
+        rawCount++;
+    }
+
+    private boolean isRawQuiet(int rawZ) {
+        if (rawCount < rawInitSamples) {
+            // Haven't learned the rest level yet, so go by the encoders alone
+            return true;
+        }
+        double band = Math.max(rawStillMin, rawStillSigmas * Math.sqrt(rawVariance));
+        return Math.abs(rawZ - rawMean) <= band;
+    }
+
+    /**
+     * @param gyroHeading A gyro integrated heading, in radians counterclockwise.
+     * @return That heading with the drift taken out.
+     */
+    public synchronized double correct(double gyroHeading) {
+        return gyroHeading - correction;
+    }
+
+    /**
+     * @return The latest gyro heading with the drift taken out, in radians counterclockwise.
+     */
+    public synchronized double getHeading() {
+        return lastGyro - correction;
+    }
+
+    /**
+     * @return How fast the gyro is drifting, in radians per second counterclockwise.
+     */
+    public synchronized double getDriftRate() {
+        return driftRate;
+    }
+
+    /**
+     * @return True once the robot has been still long enough to learn from.
+     */
+    public synchronized boolean isStill() {
+        return hasLast && lastNanos - stillSinceNanos >= settleNanos;
+    }
+
+    /**
+     * Start over after the gyro has been calibrated, which zeroes its heading and its bias. The
+     * raw rest level is kept.
+     */
+    public synchronized void reset() {
+        hasLast = false;
+        correction = 0.0;
+        stillDrift = 0.0;
+        stillSec = 0.0;
+        driftRate = 0.0;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Blends encoder and gyro headings.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Complementary filter for the robot's heading. The drive encoders are read every odometry period
+ * and say right away how far the robot has turned, but they drift when the wheels slip. The
+ * Modern Robotics gyro doesn't slip, but its reading only changes every few loops over I2C. So
+ * the encoder turn is added in every step, and every time the gyro has a new reading the
+ * estimate is pulled part of the way toward it:
+ *
+ * <pre>
+ * heading += encoder turn                               every step
+ * heading += dt / (timeConstant + dt) * (gyro - heading)   on each new gyro reading
+ * </pre>
+ *
+ * <p>A short time constant trusts the gyro more; a long one trusts the encoders more.
+ *
+ * <p>The heading, turn rate and time are published together through a sequence lock, so turn and
+ * straight-drive loops can read a consistent estimate from any thread without blocking.
+ *
+ * @author Powerstackers
+ */
+public class HeadingEstimator {
+
+    /** A heading estimate. Filled in place so it can be reused every loop. */
+    public static class Reading {
+        /** Heading, in radians counterclockwise. */
+        public double heading;
+        /** Turn rate, in radians per second counterclockwise. */
+        public double rate;
+        /** When the estimate was made, from {@link System#nanoTime()}. */
+        public long timeNanos;
+    }
+
+    private final double timeConstantSec;
+    private final double rateSmoothing;
+    private final long staleNanos;
+
+    // Only touched while holding the lock
+    private double heading = 0.0;
+    private double rate = 0.0;
+    private long lastNanos = 0;
+    private boolean hasLast = false;
+    private double gyroOffset = 0.0;
+    private boolean hasGyro = false;
+    private double lastGyro = 0.0;
+    private long lastGyroNanos = 0;
+
+    private volatile int sequence = 0;
+    private volatile double publishedHeading = 0.0;
+    private volatile double publishedRate = 0.0;
+    private volatile long publishedNanos = 0;
+
+    /**
+     * Construct an estimator.
+     *
+     * @param timeConstantSec How long the estimate takes to settle onto the gyro, in seconds.
+     * @param rateSmoothing   Low pass filter gain on the turn rate, 1.0 means no filtering.
+     * @param staleMs         A gyro reading that hasn't changed in this long is used anyway,
+     *                        since the robot is probably holding still, in milliseconds.
+     */
+    public HeadingEstimator(double timeConstantSec, double rateSmoothing, long staleMs) {
+        this.timeConstantSec = timeConstantSec;
+        this.rateSmoothing = rateSmoothing;
+        this.staleNanos = staleMs * 1000000L;
+    }
+
+    /**
+     * Construct an estimator using the settings in {@link VelRobotConstants}.
+     */
+    public HeadingEstimator() {
+        this(VelRobotConstants.HEADING_FILTER_TIME_CONSTANT_SEC,
+                VelRobotConstants.HEADING_RATE_SMOOTHING,
+                VelRobotConstants.HEADING_GYRO_STALE_MS);
+    }
+
+    /**
+     * Add the turn measured by the encoders since the last step.
+     *
+     * @param nanos        Time of the step, from {@link System#nanoTime()}.
+     * @param deltaHeading Turn since the last step, in radians counterclockwise.
+     */
+    public synchronized void predict(long nanos, double deltaHeading) {
+        heading += deltaHeading;
+        if (hasLast && nanos > lastNanos) {
+            double measured = deltaHeading / ((nanos - lastNanos) / 1e9);
+            rate += rateSmoothing * (measured - rate);
+        }
+        lastNanos = nanos;
+        hasLast = true;
+        publish(nanos);
+    }
+
+    /**
+     * Pull the estimate toward a gyro reading. Readings that haven't changed since the last call
+     * are skipped until they go stale, so a slow gyro doesn't drag the estimate back in time.
+     *
+     * @param nanos       Time of the reading, from {@link System#nanoTime()}.
+     * @param gyroHeading Gyro heading, in radians counterclockwise. Any offset is fine; the first
+     *                    reading is lined up with the current estimate.
+     */
+    public synchronized void correct(long nanos, double gyroHeading) {
+        if (!hasGyro) {
+            gyroOffset = heading - gyroHeading;
+            lastGyro = gyroHeading;
+            lastGyroNanos = nanos;
+            hasGyro = true;
+            return;
+        }
+        if (gyroHeading == lastGyro && nanos - lastGyroNanos < staleNanos) {
+            return;
+        }
+
+        double dt = (nanos - lastGyroNanos) / 1e9;
+        double gain = dt / (timeConstantSec + dt);
+        heading += gain * (gyroHeading + gyroOffset - heading);
+        lastGyro = gyroHeading;
+        lastGyroNanos = nanos;
+        publish(nanos);
+    }
+
+    /**
+     * Set the heading, keeping the gyro lined up with it.
+     *
+     * @param newHeading The heading, in radians counterclockwise.
+     */
+    public synchronized void setHeading(double newHeading) {
+        gyroOffset += newHeading - heading;
+        heading = newHeading;
+        publish(lastNanos);
+    }
+
+    /**
+     * Line the next gyro reading up with the current estimate instead of correcting toward it.
+     * Call this while the gyro is calibrating, since its reading jumps back to zero afterward.
+     */
+    public synchronized void realignGyro() {
+        hasGyro = false;
+    }
+
+    /**
+     * @return The heading, in radians counterclockwise.
+     */
+    public double getHeading() {
+        return publishedHeading;
+    }
+
+    private void publish(long nanos) {
+        // Only one writer at a time, since every caller holds the lock
+        sequence++;
+        publishedHeading = heading;
+        publishedRate = rate;
+        publishedNanos = nanos;
+        sequence++;
+    }
+
+    /**
+     * Copy the latest estimate. Safe to call from any thread; it never waits on the writer.
+     *
+     * @param out Reading to fill in.
+     * @return The same reading, for chaining.
+     */
+    public Reading read(Reading out) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                double readHeading = publishedHeading;
+                double readRate = publishedRate;
+                long readNanos = publishedNanos;
+                if (sequence == before) {
+                    out.heading = readHeading;
+                    out.rate = readRate;
+                    out.timeNanos = readNanos;
+                    return out;
+                }
+            }
+            Thread.yield();
+        }
+    }
+}
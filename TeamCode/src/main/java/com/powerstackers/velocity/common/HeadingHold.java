@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Holds the robot's heading while the driver translates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.util.Range;
+
+import static java.lang.Math.PI;
+
+/**
+ * Keeps the robot pointed the same way while the driver translates without rotating. When the
+ * rotation stick is let go, the heading is latched once the robot has had a moment to stop
+ * turning, and from then on a PD controller supplies the rotation term to hold it. Any rotation
+ * input from the driver passes straight through and releases the hold.
+ *
+ * <p>Rotation follows the joystick convention: positive turns clockwise.
+ *
+ * @author Powerstackers
+ */
+public class HeadingHold {
+
+    private final double kP;
+    private final double kD;
+    private final double maxRotation;
+    private final long settleNanos;
+
+    private boolean holding = false;
+    private double targetHeading = 0.0;
+    private long releasedNanos = 0;
+    private double lastHeading = 0.0;
+    private long lastNanos = 0;
+    private boolean hasLast = false;
+
+    /**
+     * Construct a heading hold.
+     *
+     * @param kP          Rotation per radian of heading error.
+     * @param kD          Rotation per radian/second of turn rate.
+     * @param maxRotation Largest correction applied, from 0:1.
+     * @param settleMs    How long after the driver lets go of rotation before latching, in ms.
+     */
+    public HeadingHold(double kP, double kD, double maxRotation, long settleMs) {
+        this.kP = kP;
+        this.kD = kD;
+        this.maxRotation = maxRotation;
+        this.settleNanos = settleMs * 1000000L;
+    }
+
+    /**
+     * Construct a heading hold using the gains in {@link VelRobotConstants}.
+     */
+    public HeadingHold() {
+        this(VelRobotConstants.HEADING_HOLD_KP,
+                VelRobotConstants.HEADING_HOLD_KD,
+                VelRobotConstants.HEADING_HOLD_MAX_ROTATION,
+                VelRobotConstants.HEADING_HOLD_SETTLE_MS);
+    }
+
+    /**
+     * Work out the rotation to drive with.
+     *
+     * @param timeNanos Time of the heading reading, from {@link System#nanoTime()}.
+     * @param heading   Robot heading, counterclockwise positive, in radians.
+     * @param speed     Translation speed the driver is asking for.
+     * @param rotation  Rotation the driver is asking for.
+     * @return Rotation to pass to the drive.
+     */
+    public double update(long timeNanos, double heading, double speed, double rotation) {
+        double rate = 0.0;
+        if (hasLast && timeNanos > lastNanos) {
+            rate = wrap(heading - lastHeading) / ((timeNanos - lastNanos) / 1e9);
+        }
+        lastHeading = heading;
+        lastNanos = timeNanos;
+        hasLast = true;
+
+        // The driver is turning, or isn't driving at all: don't fight them, and relatch later
+        if (rotation != 0.0 || speed == 0.0) {
+            holding = false;
+            releasedNanos = timeNanos;
+            return rotation;
+        }
+
+        if (!holding) {
+            if (timeNanos - releasedNanos < settleNanos) {
+                return 0.0;
+            }
+            targetHeading = heading;
+            holding = true;
+        }
+
+        // Positive rotation turns clockwise, which lowers the heading
+        double error = wrap(heading - targetHeading);
+        return Range.clip(kP * error + kD * rate, -maxRotation, maxRotation);
+    }
+
+    /**
+     * Forget the held heading, for example after the gyro is re-zeroed.
+     */
+    public void reset() {
+        holding = false;
+        hasLast = false;
+    }
+
+    /**
+     * @return True while a heading is being held.
+     */
+    public boolean isHolding() {
+        return holding;
+    }
+
+    private static double wrap(double angle) {
+        while (angle > PI) {
+            angle -= 2 * PI;
+        }
+        while (angle < -PI) {
+            angle += 2 * PI;
+        }
+        return angle;
+    }
+}
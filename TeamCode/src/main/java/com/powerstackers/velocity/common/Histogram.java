@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Fixed-size histogram for shooter statistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram with evenly spaced bins over a fixed range. Values outside the range are counted in
+ * the first or last bin. All the storage is allocated up front, so adding a value never allocates
+ * and is safe to do from the shooter's control thread.
+ *
+ * <p>This class is not thread safe; {@link ShotMetrics} guards it.
+ *
+ * @author Powerstackers
+ */
+public class Histogram {
+
+    private final double min;
+    private final double binWidth;
+    private final int[] bins;
+    private int count = 0;
+    private double sum = 0.0;
+
+    /**
+     * Construct a histogram.
+     *
+     * @param min      Low edge of the first bin.
+     * @param max      High edge of the last bin.
+     * @param binCount Number of bins.
+     */
+    public Histogram(double min, double max, int binCount) {
+        this.min = min;
+        this.binWidth = (max - min) / binCount;
+        this.bins = new int[binCount];
+    }
+
+    /**
+     * Count a value.
+     *
+     * @param value The value.
+     */
+    public void add(double value) {
+        int bin = (int) Math.floor((value - min) / binWidth);
+        if (bin < 0) {
+            bin = 0;
+        } else if (bin >= bins.length) {
+            bin = bins.length - 1;
+        }
+        bins[bin]++;
+        count++;
+        sum += value;
+    }
+
+    /**
+     * @return Number of values counted.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean of the values counted, or zero if there are none.
+     */
+    public double getMean() {
+        return count == 0 ? 0.0 : sum / count;
+    }
+
+    /**
+     * Estimate a percentile, interpolating within the bin it falls in.
+     *
+     * @param percentile Percentile from 0 to 100.
+     * @return The estimated value, or zero if nothing has been counted.
+     */
+    public double getPercentile(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        double rank = percentile / 100.0 * count;
+        int seen = 0;
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] > 0 && seen + bins[i] >= rank) {
+                double fraction = (rank - seen) / bins[i];
+                return min + (i + fraction) * binWidth;
+            }
+            seen += bins[i];
+        }
+        return min + bins.length * binWidth;
+    }
+
+    /**
+     * Forget every value counted.
+     */
+    public void reset() {
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = 0;
+        }
+        count = 0;
+        sum = 0.0;
+    }
+
+    /**
+     * Write the non-empty bins, one per line, as the low edge of the bin and its count.
+     *
+     * @param out Where to write.
+     */
+    public void writeBins(PrintWriter out) {
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] > 0) {
+                out.println((min + i * binWidth) + "," + bins[i]);
+            }
+        }
+    }
+}
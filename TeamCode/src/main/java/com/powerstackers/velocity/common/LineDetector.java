@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Finds the white lines with a ground light sensor.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Finds white lines under an ODS sensor by comparing each reading against what the mat looks like.
+ *
+ * <p>The mat's reading isn't a single number: it changes from tile to tile, with the lighting in
+ * each venue, and as the sensor's height changes when the robot rocks. So instead of one reading
+ * taken during init, the detector keeps a running mean and variance of the mat, learned from
+ * every reading that isn't a line. A line is a reading well above that, by several standard
+ * deviations or a minimum step, whichever is more.
+ *
+ * <p>The variance is taken from the change between one mat reading and the next, so it measures
+ * the sensor's noise. Taken around the mean, it would also count how far the mean lags behind
+ * a mat that's getting brighter, and the threshold would climb out of reach of the tape.
+ *
+ * <p>The line ends at a lower threshold than it starts, so a reading that wobbles around one
+ * threshold at the edge of the tape doesn't count as several lines.
+ *
+ * <p>The times where the sensor reached each edge are kept, found between the two readings on
+ * either side of the threshold. At speed the sensor can be well past the edge by the time
+ * anyone looks, and the time says how far.
+ *
+ * <p>More than one thread may feed and read a detector, so all of its methods are synchronized.
+ *
+ * @author Powerstackers
+ */
+public class LineDetector {
+
+    private final double matTimeConstantSec;
+    private final double riseSigmas;
+    private final double fallSigmas;
+    private final double minRise;
+    private final double minFall;
+
+    private int matCount = 0;
+    private double matMean = 0.0;
+    private double matVariance = 0.0;
+    private boolean onLine = false;
+    private boolean lastOnMat = false;
+    private boolean hasLast = false;
+    private double lastLight = 0.0;
+    private long lastNanos = 0;
+    private long riseNanos = 0;
+    private long fallNanos = 0;
+
+    /**
+     * Construct a detector.
+     *
+     * @param matTimeConstantSec How long the mat level takes to follow a change, in seconds.
+     * @param riseSigmas         A line starts this many standard deviations above the mat.
+     * @param fallSigmas         A line ends this many standard deviations above the mat.
+     * @param minRise            A line starts at least this far above the mat.
+     * @param minFall            A line ends at least this far above the mat. Less than minRise.
+     */
+    public LineDetector(double matTimeConstantSec, double riseSigmas, double fallSigmas,
+                        double minRise, double minFall) {
+        this.matTimeConstantSec = matTimeConstantSec;
+        this.riseSigmas = riseSigmas;
+        this.fallSigmas = fallSigmas;
+        this.minRise = minRise;
+        this.minFall = minFall;
+    }
+
+    /**
+     * Construct a detector using the settings in {@link VelRobotConstants}.
+     */
+    public LineDetector() {
+        this(VelRobotConstants.LINE_MAT_TIME_CONSTANT_SEC,
+                VelRobotConstants.LINE_RISE_SIGMAS,
+                VelRobotConstants.LINE_FALL_SIGMAS,
+                VelRobotConstants.LINE_MIN_RISE,
+                VelRobotConstants.LINE_MIN_FALL);
+    }
+
+    /**
+     * Take in a reading.
+     *
+     * @param nanos Time of the reading, from {@link System#nanoTime()}.
+     * @param light The ODS reading.
+     * @return True if this reading started a new line.
+     */
+    public synchronized boolean update(long nanos, double light) {
+        if (matCount == 0) {
+            // Nothing to compare against yet, so this is the mat
+            matMean = light;
+            matCount++;
+            remember(nanos, light, true);
+            return false;
+        }
+
+        boolean rose = false;
+        boolean onMat = false;
+        if (!onLine) {
+            double rise = getRiseLevel();
+            if (light > rise) {
+                onLine = true;
+                riseNanos = crossing(nanos, light, rise);
+                rose = true;
+            } else if (nanos > lastNanos) {
+                learnMat(nanos, light);
+                onMat = true;
+            }
+        } else {
+            double fall = getFallLevel();
+            if (light < fall) {
+                onLine = false;
+                fallNanos = crossing(nanos, light, fall);
+            }
+        }
+        remember(nanos, light, onMat);
+        return rose;
+    }
+
+    private void learnMat(long nanos, double light) {
+        double dtSec = (nanos - lastNanos) / 1e9;
+        // Even average of the first few readings, then a running one
+        double weight = Math.max(1.0 / (matCount + 1), dtSec / (matTimeConstantSec + dtSec));
+        matMean += weight * (light - matMean);
+        if (lastOnMat) {
+            // Half the squared step, since both readings carry noise
+            double step = light - lastLight;
+            matVariance += weight * (step * step / 2.0 - matVariance);
+        }
+        matCount++;
+    }
+
+    private void remember(long nanos, double light, boolean onMat) {
+        if (!hasLast || nanos >= lastNanos) {
+            lastNanos = nanos;
+            lastLight = light;
+            lastOnMat = onMat;
+            hasLast = true;
+        }
+    }
+
+    /**
+     * When between the last reading and this one the light passed a threshold.
+     */
+    private long crossing(long nanos, double light, double threshold) {
+        if (!hasLast || nanos <= lastNanos || light == lastLight) {
+            return nanos;
+        }
+        double fraction = (threshold - lastLight) / (light - lastLight);
+        fraction = Math.max(0.0, Math.min(1.0, fraction));
+        return lastNanos + (long) ((nanos - lastNanos) * fraction);
+    }
+
+    /**
+     * @return True if the sensor is over a line.
+     */
+    public synchronized boolean isOnLine() {
+        return onLine;
+    }
+
+    /**
+     * @return When the sensor last reached a line, from {@link System#nanoTime()}, or 0 if it
+     * hasn't yet.
+     */
+    public synchronized long getRiseNanos() {
+        return riseNanos;
+    }
+
+    /**
+     * @return When the sensor last left a line, from {@link System#nanoTime()}, or 0 if it hasn't
+     * yet.
+     */
+    public synchronized long getFallNanos() {
+        return fallNanos;
+    }
+
+    /**
+     * @return What the sensor reads over the mat, on average.
+     */
+    public synchronized double getMatLevel() {
+        return matMean;
+    }
+
+    /**
+     * @return Standard deviation of what the sensor reads over the mat.
+     */
+    public synchronized double getMatSigma() {
+        return Math.sqrt(matVariance);
+    }
+
+    /**
+     * @return The reading above which a line starts.
+     */
+    public synchronized double getRiseLevel() {
+        return matMean + Math.max(minRise, riseSigmas * Math.sqrt(matVariance));
+    }
+
+    /**
+     * @return The reading below which a line ends.
+     */
+    public synchronized double getFallLevel() {
+        return matMean + Math.max(minFall, fallSigmas * Math.sqrt(matVariance));
+    }
+
+    /**
+     * Forget the mat and any line, for example after the sensor has been moved.
+     */
+    public synchronized void reset() {
+        matCount = 0;
+        matMean = 0.0;
+        matVariance = 0.0;
+        onLine = false;
+        hasLast = false;
+        lastOnMat = false;
+        riseNanos = 0;
+        fallNanos = 0;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Mecanum drive kinematics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
+import com.powerstackers.velocity.common.enums.PublicEnums.Direction;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+/**
+ * Turns a direction, speed and rotation into powers for the four drive motors. The outputs are
+ * kept in a preallocated array, so nothing is allocated per call, and sine and cosine can
+ * optionally come from a lookup table.
+ *
+ * <p>The math produces four wheel terms. Which drive motor each term goes to is given by a motor
+ * order, so the wiring lives in {@link VelRobotConstants#DRIVE_MOTOR_ORDER} instead of in the
+ * order of the setPower calls.
+ *
+ * @author Powerstackers
+ */
+public class MecanumKinematics {
+
+    /** Number of drive motors. */
+    public static final int MOTOR_COUNT = 4;
+
+    private static final int TRIG_TABLE_SIZE = 4096;
+    private static final double TRIG_TABLE_STEP = 2 * PI / TRIG_TABLE_SIZE;
+    private static final double SQRT_2 = sqrt(2);
+
+    /** sin over one full turn, with one extra entry so interpolation never wraps. */
+    private static double[] sinTable = null;
+
+    private final int[] motorOrder;
+    private final boolean useTrigTable;
+    private Desaturation desaturation;
+    private Direction orientation = Direction.N;
+    private double orientationOffset = 0.0;
+    private final double[] powers = new double[MOTOR_COUNT];
+
+    /**
+     * Construct the kinematics.
+     *
+     * @param motorOrder   For each wheel term, the index of the drive motor it goes to, where
+     *                     motorDrive1 is 0.
+     * @param useTrigTable True to use a lookup table instead of {@link Math#sin} and
+     *                     {@link Math#cos}.
+     * @param desaturation How to bring powers over 1 back down.
+     */
+    public MecanumKinematics(int[] motorOrder, boolean useTrigTable, Desaturation desaturation) {
+        if (motorOrder.length != MOTOR_COUNT) {
+            throw new IllegalArgumentException("Need an order for " + MOTOR_COUNT + " motors");
+        }
+        this.motorOrder = motorOrder.clone();
+        this.useTrigTable = useTrigTable;
+        this.desaturation = desaturation;
+        if (useTrigTable) {
+            buildTrigTable();
+        }
+    }
+
+    /**
+     * Construct the kinematics using the settings in {@link VelRobotConstants}.
+     */
+    public MecanumKinematics() {
+        this(VelRobotConstants.DRIVE_MOTOR_ORDER, VelRobotConstants.DRIVE_USE_TRIG_TABLE,
+                VelRobotConstants.DRIVE_DESATURATION);
+    }
+
+    /**
+     * @param desaturation How to bring powers over 1 back down.
+     */
+    public void setDesaturation(Desaturation desaturation) {
+        this.desaturation = desaturation;
+    }
+
+    /**
+     * @return How powers over 1 are brought back down.
+     */
+    public Desaturation getDesaturation() {
+        return desaturation;
+    }
+
+    /**
+     * Treat another side of the robot as the front. Angles passed to {@link #calculate} are turned
+     * so that pi/2 drives toward that side. Rotation isn't affected.
+     *
+     * @param orientation The side of the robot to treat as the front.
+     */
+    public void setOrientation(Direction orientation) {
+        this.orientation = orientation;
+        switch (orientation) {
+            case E:
+                orientationOffset = -PI / 2;
+                break;
+            case S:
+                orientationOffset = PI;
+                break;
+            case W:
+                orientationOffset = PI / 2;
+                break;
+            case N:
+            default:
+                orientationOffset = 0.0;
+                break;
+        }
+    }
+
+    /**
+     * @return The side of the robot treated as the front.
+     */
+    public Direction getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return How far angles passed to {@link #calculate} are turned for the orientation, in
+     * radians.
+     */
+    public double getOrientationOffset() {
+        return orientationOffset;
+    }
+
+    private static synchronized void buildTrigTable() {
+        if (sinTable != null) {
+            return;
+        }
+        double[] table = new double[TRIG_TABLE_SIZE + 1];
+        for (int i = 0; i <= TRIG_TABLE_SIZE; i++) {
+            table[i] = sin(i * TRIG_TABLE_STEP);
+        }
+        sinTable = table;
+    }
+
+    /**
+     * Calculate the motor powers. Read them back with {@link #getPower(int)}.
+     *
+     * @param angle    The angle we want the robot to move, in radians, where "forward" is pi/2
+     * @param speed    The movement speed we want, ranging from -1:1
+     * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power after normalizing, from 0:1
+     */
+    public void calculate(double angle, double speed, double rotation, double scale) {
+        // Turn the angle to the front we're using, then shift it by 45 degrees, since our drive
+        // train is x-shaped and not cross-shaped
+        angle += orientationOffset + PI / 4;
+
+        // Cut rotation in half because we don't want to spin THAT fast
+        rotation *= 0.5;
+
+        // Normalize magnitudes so that "straight forward" has a magnitude of 1
+        speed *= SQRT_2;
+
+        // None of this stuff should happen if the speed is 0.
+        if (speed == 0.0 && rotation == 0.0) {
+            for (int i = 0; i < MOTOR_COUNT; i++) {
+                powers[i] = 0.0;
+            }
+            return;
+        }
+
+        double sinDir;
+        double cosDir;
+        if (useTrigTable) {
+            sinDir = tableSin(angle);
+            cosDir = tableSin(angle + PI / 2);
+        } else {
+            sinDir = sin(angle);
+            cosDir = cos(angle);
+        }
+
+        double translate0 = speed * sinDir;
+        double translate1 = speed * cosDir;
+
+        if (desaturation == Desaturation.ROTATION_PRIORITY) {
+            // Give rotation what it asks for, and fit the translation into what's left. The
+            // translation terms come in +/- pairs, so the largest wheel is |translate| + |rotation|.
+            rotation = Math.max(-1.0, Math.min(1.0, rotation));
+            double available = 1.0 - abs(rotation);
+            double largest = Math.max(abs(translate0), abs(translate1));
+            if (largest > available) {
+                double shrink = largest > 0.0 ? available / largest : 0.0;
+                translate0 *= shrink;
+                translate1 *= shrink;
+            }
+            setPowers(translate0 + rotation, translate1 + rotation,
+                    -translate1 + rotation, -translate0 + rotation, scale);
+            return;
+        }
+
+        double term0 = translate0 + rotation;
+        double term1 = translate1 + rotation;
+        double term2 = -translate1 + rotation;
+        double term3 = -translate0 + rotation;
+
+        // Only normalize if the largest term exceeds 1.0
+        double largest = Math.max(Math.max(abs(term0), abs(term1)), Math.max(abs(term2), abs(term3)));
+        setPowers(term0, term1, term2, term3, largest > 1.0 ? scale / largest : scale);
+    }
+
+    private void setPowers(double term0, double term1, double term2, double term3,
+                           double multiplier) {
+        powers[motorOrder[0]] = term0 * multiplier;
+        powers[motorOrder[1]] = term1 * multiplier;
+        powers[motorOrder[2]] = term2 * multiplier;
+        powers[motorOrder[3]] = term3 * multiplier;
+    }
+
+    /**
+     * @param motor Index of the drive motor, where motorDrive1 is 0.
+     * @return Power for that motor from the last {@link #calculate} call.
+     */
+    public double getPower(int motor) {
+        return powers[motor];
+    }
+
+    private static double tableSin(double angle) {
+        double turns = angle / TRIG_TABLE_STEP;
+        double wrapped = turns - TRIG_TABLE_SIZE * Math.floor(turns / TRIG_TABLE_SIZE);
+        int index = (int) wrapped;
+        if (index >= TRIG_TABLE_SIZE) {
+            index = TRIG_TABLE_SIZE - 1;
+        }
+        double fraction = wrapped - index;
+        return sinTable[index] + (sinTable[index + 1] - sinTable[index]) * fraction;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tracks the robot's position from the drive encoders.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cGyro;
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.util.ThreadPool;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dead reckoning from all four drive encoders. Every period the encoder changes are turned back
+ * into a robot motion with the inverse of {@link MecanumKinematics}, and the motion is added onto
+ * the pose at the heading halfway through the step.
+ *
+ * <p>With motorDrive1 to motorDrive4 as front left, front right, back left and back right, the
+ * kinematics give
+ *
+ * <pre>
+ * fl =  right + forward + turn     bl = -right + forward + turn
+ * fr = -right - forward + turn     br =  right - forward + turn
+ * </pre>
+ *
+ * <p>where turn is clockwise, so each of right, forward and turn can be solved for from the four
+ * wheel distances.
+ *
+ * <p>If a gyro is given with {@link #useGyro}, the encoder turn and the gyro are blended by a
+ * {@link HeadingEstimator} on this thread, and the blended heading is the one the motion is
+ * added along. The gyro's drift is taken out first by a {@link GyroBiasEstimator}.
+ *
+ * <p>The pose is published through a sequence lock: the writer makes the sequence odd while it
+ * copies the pose out and even again when it's done, and a reader retries if the sequence was odd
+ * or changed under it. Readers never block the odometry thread and nothing is allocated once the
+ * thread is running.
+ *
+ * @author Powerstackers
+ */
+public class MecanumOdometry implements Runnable {
+
+    private static final int WHEELS = MecanumKinematics.MOTOR_COUNT;
+
+    private final DcMotor[] motors;
+    private final double cmPerTick;
+    private final double turnRadiusCm;
+
+    // Only touched while holding the lock
+    private final int[] lastPositions = new int[WHEELS];
+    private boolean hasLast = false;
+    private boolean suspended = false;
+    private double x = 0.0;
+    private double y = 0.0;
+    private double heading = 0.0;
+    private ScheduledExecutorService executor = null;
+    private ModernRoboticsI2cGyro gyro = null;
+    private HeadingEstimator headingEstimator = null;
+    private GyroBiasEstimator gyroBias = null;
+
+    private volatile int sequence = 0;
+    private volatile double publishedX = 0.0;
+    private volatile double publishedY = 0.0;
+    private volatile double publishedHeading = 0.0;
+    private volatile long publishedNanos = 0;
+
+    /**
+     * Construct the odometry.
+     *
+     * @param motor1       motorDrive1, the front left motor. Null if {@link #update} is called
+     *                     directly instead of running the thread.
+     * @param motor2       motorDrive2, the front right motor.
+     * @param motor3       motorDrive3, the back left motor.
+     * @param motor4       motorDrive4, the back right motor.
+     * @param cmPerTick    Distance a wheel rolls per encoder tick, in centimeters.
+     * @param turnRadiusCm Half the track width plus half the wheelbase, in centimeters.
+     */
+    public MecanumOdometry(DcMotor motor1, DcMotor motor2, DcMotor motor3, DcMotor motor4,
+                           double cmPerTick, double turnRadiusCm) {
+        this.motors = new DcMotor[] {motor1, motor2, motor3, motor4};
+        this.cmPerTick = cmPerTick;
+        this.turnRadiusCm = turnRadiusCm;
+    }
+
+    /**
+     * Blend a gyro into the heading. The gyro is read on the odometry thread along with the
+     * encoders.
+     *
+     * @param gyro      The gyro. Null if {@link #update} is called directly.
+     * @param estimator Filter that blends the gyro with the encoder turn.
+     * @param gyroBias  Takes the drift out of the gyro before it's blended.
+     */
+    public synchronized void useGyro(ModernRoboticsI2cGyro gyro, HeadingEstimator estimator,
+                                     GyroBiasEstimator gyroBias) {
+        this.gyro = gyro;
+        this.headingEstimator = estimator;
+        this.gyroBias = gyroBias;
+        estimator.setHeading(heading);
+        estimator.realignGyro();
+    }
+
+    /**
+     * Start reading the encoders every {@link VelRobotConstants#ODOMETRY_PERIOD_MS}.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        hasLast = false;
+        executor = ThreadPool.newSingleThreadScheduledExecutor();
+        executor.scheduleAtFixedRate(this, 0, VelRobotConstants.ODOMETRY_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the odometry thread. The last pose stays readable.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Take one last reading and stop tracking, so the encoders can be reset without the jump
+     * being counted as motion. Call {@link #resume()} once they have been.
+     */
+    public synchronized void suspend() {
+        if (!suspended && executor != null) {
+            step();
+        }
+        suspended = true;
+    }
+
+    /**
+     * Start tracking again after {@link #suspend()}, from wherever the encoders are now.
+     */
+    public synchronized void resume() {
+        suspended = false;
+        hasLast = false;
+    }
+
+    /**
+     * One step of the odometry. Called by the odometry thread; don't call it directly.
+     */
+    @Override
+    public synchronized void run() {
+        if (suspended) {
+            return;
+        }
+        try {
+            step();
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled task, so log it and try again next period
+            e.printStackTrace();
+        }
+    }
+
+    private void step() {
+        long nanos = System.nanoTime();
+        int pos1 = motors[0].getCurrentPosition();
+        int pos2 = motors[1].getCurrentPosition();
+        int pos3 = motors[2].getCurrentPosition();
+        int pos4 = motors[3].getCurrentPosition();
+        double gyroHeading = Double.NaN;
+        if (gyro != null) {
+            if (gyro.isCalibrating()) {
+                headingEstimator.realignGyro();
+                gyroBias.reset();
+            } else {
+                gyroBias.update(nanos, Math.toRadians(gyro.getIntegratedZValue()), gyro.rawZ(),
+                        pos1, pos2, pos3, pos4);
+                gyroHeading = gyroBias.getHeading();
+            }
+        }
+        update(nanos, pos1, pos2, pos3, pos4, gyroHeading);
+    }
+
+    /**
+     * Add the motion since the last update onto the pose.
+     *
+     * @param nanos Time of the reading, from {@link System#nanoTime()}.
+     * @param pos1  Encoder position of motorDrive1.
+     * @param pos2  Encoder position of motorDrive2.
+     * @param pos3  Encoder position of motorDrive3.
+     * @param pos4  Encoder position of motorDrive4.
+     */
+    public synchronized void update(long nanos, int pos1, int pos2, int pos3, int pos4) {
+        update(nanos, pos1, pos2, pos3, pos4, Double.NaN);
+    }
+
+    /**
+     * Add the motion since the last update onto the pose, blending in a gyro reading if a
+     * {@link HeadingEstimator} has been given with {@link #useGyro}.
+     *
+     * @param nanos       Time of the reading, from {@link System#nanoTime()}.
+     * @param pos1        Encoder position of motorDrive1.
+     * @param pos2        Encoder position of motorDrive2.
+     * @param pos3        Encoder position of motorDrive3.
+     * @param pos4        Encoder position of motorDrive4.
+     * @param gyroHeading Gyro heading in radians counterclockwise, or NaN if there's no reading.
+     */
+    public synchronized void update(long nanos, int pos1, int pos2, int pos3, int pos4,
+                                    double gyroHeading) {
+        if (!hasLast) {
+            hasLast = true;
+            if (headingEstimator != null) {
+                headingEstimator.predict(nanos, 0.0);
+                if (!Double.isNaN(gyroHeading)) {
+                    headingEstimator.correct(nanos, gyroHeading);
+                }
+                heading = headingEstimator.getHeading();
+            }
+        } else {
+            double fl = (pos1 - lastPositions[0]) * cmPerTick;
+            double fr = (pos2 - lastPositions[1]) * cmPerTick;
+            double bl = (pos3 - lastPositions[2]) * cmPerTick;
+            double br = (pos4 - lastPositions[3]) * cmPerTick;
+
+            double right = (fl - fr - bl + br) / 4.0;
+            double forward = (fl - fr + bl - br) / 4.0;
+            double turn = (fl + fr + bl + br) / 4.0;
+            double deltaHeading = -turn / turnRadiusCm;
+            if (headingEstimator != null) {
+                headingEstimator.predict(nanos, deltaHeading);
+                if (!Double.isNaN(gyroHeading)) {
+                    headingEstimator.correct(nanos, gyroHeading);
+                }
+                deltaHeading = headingEstimator.getHeading() - heading;
+            }
+
+            double midHeading = heading + deltaHeading / 2.0;
+            double cos = Math.cos(midHeading);
+            double sin = Math.sin(midHeading);
+            x += right * cos - forward * sin;
+            y += right * sin + forward * cos;
+            heading += deltaHeading;
+        }
+        lastPositions[0] = pos1;
+        lastPositions[1] = pos2;
+        lastPositions[2] = pos3;
+        lastPositions[3] = pos4;
+        publish(nanos);
+    }
+
+    /**
+     * Move the pose, for example to the robot's starting position on the field.
+     *
+     * @param pose The new pose. Its time is ignored.
+     */
+    public synchronized void setPose(Pose pose) {
+        x = pose.x;
+        y = pose.y;
+        heading = pose.heading;
+        if (headingEstimator != null) {
+            headingEstimator.setHeading(heading);
+        }
+        publish(System.nanoTime());
+    }
+
+    private void publish(long nanos) {
+        // Only one writer at a time, since every caller holds the lock
+        sequence++;
+        publishedX = x;
+        publishedY = y;
+        publishedHeading = heading;
+        publishedNanos = nanos;
+        sequence++;
+    }
+
+    /**
+     * Copy the latest pose. Safe to call from any thread; it never waits on the odometry thread.
+     *
+     * @param out Pose to fill in.
+     * @return The same pose, for chaining.
+     */
+    public Pose getPose(Pose out) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                double readX = publishedX;
+                double readY = publishedY;
+                double readHeading = publishedHeading;
+                long readNanos = publishedNanos;
+                if (sequence == before) {
+                    out.set(readX, readY, readHeading, readNanos);
+                    return out;
+                }
+            }
+            Thread.yield();
+        }
+    }
+}
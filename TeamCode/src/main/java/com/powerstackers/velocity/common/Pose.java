@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Where the robot is on the field.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * A position and heading on the field. Positions are in centimeters. The heading is in radians,
+ * counterclockwise, with 0 facing along the y axis, the same sense as the gyro's integrated Z.
+ *
+ * <p>Poses are filled in place so they can be reused every loop without allocating.
+ *
+ * @author Powerstackers
+ */
+public class Pose {
+
+    /** Distance to the right of the origin, in centimeters. */
+    public double x;
+    /** Distance forward of the origin, in centimeters. */
+    public double y;
+    /** Heading, in radians counterclockwise. */
+    public double heading;
+    /** When the pose was measured, from {@link System#nanoTime()}. */
+    public long timeNanos;
+
+    /**
+     * Construct a pose at the origin.
+     */
+    public Pose() {
+    }
+
+    /**
+     * Construct a pose.
+     *
+     * @param x       Distance to the right of the origin, in centimeters.
+     * @param y       Distance forward of the origin, in centimeters.
+     * @param heading Heading, in radians counterclockwise.
+     */
+    public Pose(double x, double y, double heading) {
+        set(x, y, heading, 0);
+    }
+
+    /**
+     * Set every field at once.
+     *
+     * @param x         Distance to the right of the origin, in centimeters.
+     * @param y         Distance forward of the origin, in centimeters.
+     * @param heading   Heading, in radians counterclockwise.
+     * @param timeNanos When the pose was measured, from {@link System#nanoTime()}.
+     */
+    public void set(double x, double y, double heading, long timeNanos) {
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        this.timeNanos = timeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%.1f cm, %.1f cm, %.1f deg)", x, y, Math.toDegrees(heading));
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Extended Kalman filter for the robot's pose.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Extended Kalman filter over the robot's x, y and heading. Odometry moves the estimate and
+ * grows its uncertainty; each sensor reading that can be matched to the {@link FieldMap} pulls it
+ * back toward where that reading says the robot is, weighted by how much each side is trusted.
+ *
+ * <p>Sensors are placed on the robot with a mount of {right, forward, facing}: centimeters to the
+ * right of and forward of the center of the robot, and the direction the sensor faces in radians
+ * counterclockwise from the front.
+ *
+ * <p>A reading that is further from what the filter expects than the gate allows is thrown out
+ * instead of being used, so an ultrasonic echo off another robot or a beacon doesn't drag the
+ * estimate across the field.
+ *
+ * <p>Nothing is allocated after construction.
+ *
+ * @author Powerstackers
+ */
+public class PoseFilter {
+
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int HEADING = 2;
+    private static final int STATES = 3;
+
+    private final double driveNoise;
+    private final double turnNoise;
+    private final double gateSigmas;
+    private final double minCosIncidence;
+    private final double lineMargin;
+
+    private final double[] state = new double[STATES];
+    private final double[][] covariance = new double[STATES][STATES];
+    private final double[][] scratch = new double[STATES][STATES];
+    private final double[] jacobian = new double[STATES];
+    private final double[] gain = new double[STATES];
+
+    /**
+     * Construct a filter.
+     *
+     * @param driveNoise      Standard deviation of the odometry's position error, in centimeters
+     *                        per square root of a centimeter driven.
+     * @param turnNoise       Standard deviation of the odometry's heading error, in radians per
+     *                        square root of a radian turned.
+     * @param gateSigmas      Readings more than this many standard deviations from what's
+     *                        expected are thrown out.
+     * @param minCosIncidence Smallest cosine of the angle between an ultrasonic beam and a wall's
+     *                        normal that still gives a trustworthy echo.
+     * @param lineMargin      How far past the end of a line a crossing is still matched to it, in
+     *                        centimeters.
+     */
+    public PoseFilter(double driveNoise, double turnNoise, double gateSigmas,
+                      double minCosIncidence, double lineMargin) {
+        this.driveNoise = driveNoise;
+        this.turnNoise = turnNoise;
+        this.gateSigmas = gateSigmas;
+        this.minCosIncidence = minCosIncidence;
+        this.lineMargin = lineMargin;
+    }
+
+    /**
+     * Construct a filter using the settings in {@link VelRobotConstants}.
+     */
+    public PoseFilter() {
+        this(VelRobotConstants.LOCALIZER_DRIVE_NOISE,
+                VelRobotConstants.LOCALIZER_TURN_NOISE,
+                VelRobotConstants.LOCALIZER_GATE_SIGMAS,
+                Math.cos(VelRobotConstants.LOCALIZER_US_MAX_INCIDENCE),
+                VelRobotConstants.LOCALIZER_LINE_MARGIN_CM);
+    }
+
+    /**
+     * Start over from a known pose.
+     *
+     * @param pose         Where the robot is.
+     * @param sigmaCm      Standard deviation of the position, in centimeters.
+     * @param sigmaHeading Standard deviation of the heading, in radians.
+     */
+    public void reset(Pose pose, double sigmaCm, double sigmaHeading) {
+        state[X] = pose.x;
+        state[Y] = pose.y;
+        state[HEADING] = pose.heading;
+        for (int i = 0; i < STATES; i++) {
+            for (int j = 0; j < STATES; j++) {
+                covariance[i][j] = 0.0;
+            }
+        }
+        covariance[X][X] = sigmaCm * sigmaCm;
+        covariance[Y][Y] = sigmaCm * sigmaCm;
+        covariance[HEADING][HEADING] = sigmaHeading * sigmaHeading;
+    }
+
+    /**
+     * Move the estimate by one odometry step.
+     *
+     * @param right        Distance moved to the robot's right, in centimeters.
+     * @param forward      Distance moved forward, in centimeters.
+     * @param deltaHeading Turn, in radians counterclockwise.
+     */
+    public void predict(double right, double forward, double deltaHeading) {
+        double midHeading = state[HEADING] + deltaHeading / 2.0;
+        double cos = Math.cos(midHeading);
+        double sin = Math.sin(midHeading);
+        double dx = right * cos - forward * sin;
+        double dy = right * sin + forward * cos;
+        state[X] += dx;
+        state[Y] += dy;
+        state[HEADING] += deltaHeading;
+
+        // P = F P F^T, where F is the identity plus how x and y move with the heading
+        double[][] p = covariance;
+        double fx = -dy;
+        double fy = dx;
+        double pxh = p[X][HEADING] + fx * p[HEADING][HEADING];
+        double pyh = p[Y][HEADING] + fy * p[HEADING][HEADING];
+        double pxx = p[X][X] + 2.0 * fx * p[X][HEADING] + fx * fx * p[HEADING][HEADING];
+        double pyy = p[Y][Y] + 2.0 * fy * p[Y][HEADING] + fy * fy * p[HEADING][HEADING];
+        double pxy = p[X][Y] + fx * p[Y][HEADING] + fy * p[X][HEADING]
+                + fx * fy * p[HEADING][HEADING];
+
+        // Plus Q, with the drive error spread along the direction the robot moved
+        double distance = Math.hypot(right, forward);
+        double driveVariance = driveNoise * driveNoise * distance;
+        double turnVariance = turnNoise * turnNoise * Math.abs(deltaHeading);
+        pxx += driveVariance;
+        pyy += driveVariance;
+
+        p[X][X] = pxx;
+        p[Y][Y] = pyy;
+        p[X][Y] = pxy;
+        p[Y][X] = pxy;
+        p[X][HEADING] = pxh;
+        p[HEADING][X] = pxh;
+        p[Y][HEADING] = pyh;
+        p[HEADING][Y] = pyh;
+        p[HEADING][HEADING] += turnVariance;
+    }
+
+    /**
+     * Correct the heading with a gyro reading.
+     *
+     * @param heading Heading, in radians counterclockwise, in the same frame as the estimate.
+     * @param sigma   Standard deviation of the reading, in radians.
+     * @return True if the reading was used.
+     */
+    public boolean correctHeading(double heading, double sigma) {
+        jacobian[X] = 0.0;
+        jacobian[Y] = 0.0;
+        jacobian[HEADING] = 1.0;
+        return correct(wrapAngle(heading - state[HEADING]), sigma * sigma);
+    }
+
+    /**
+     * Correct the estimate with an ultrasonic range to a wall.
+     *
+     * @param map   The field.
+     * @param mount Where the sensor is on the robot, as {right, forward, facing}.
+     * @param range Distance the sensor measured, in centimeters.
+     * @param sigma Standard deviation of the reading, in centimeters.
+     * @return True if the reading matched a wall and was used.
+     */
+    public boolean correctRange(FieldMap map, double[] mount, double range, double sigma) {
+        double heading = state[HEADING];
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+        double sensorX = state[X] + mount[0] * cos - mount[1] * sin;
+        double sensorY = state[Y] + mount[0] * sin + mount[1] * cos;
+        double beam = heading + mount[2];
+
+        FieldMap.Wall wall = map.findWall(sensorX, sensorY, beam, minCosIncidence);
+        if (wall == null) {
+            return false;
+        }
+        double expected = wall.range(sensorX, sensorY, beam, minCosIncidence);
+
+        // How the sensor's position moves as the robot turns
+        double sensorXPerHeading = -(sensorY - state[Y]);
+        double sensorYPerHeading = sensorX - state[X];
+        if (wall.alongY) {
+            // range = (sensorX - wall) / sin(beam)
+            double beamSin = Math.sin(beam);
+            jacobian[X] = 1.0 / beamSin;
+            jacobian[Y] = 0.0;
+            jacobian[HEADING] = (sensorXPerHeading - expected * Math.cos(beam)) / beamSin;
+        } else {
+            // range = (wall - sensorY) / cos(beam)
+            double beamCos = Math.cos(beam);
+            jacobian[X] = 0.0;
+            jacobian[Y] = -1.0 / beamCos;
+            jacobian[HEADING] = (expected * Math.sin(beam) - sensorYPerHeading) / beamCos;
+        }
+        return correct(range - expected, sigma * sigma);
+    }
+
+    /**
+     * Correct the estimate with an ODS sensor that has just found a line.
+     *
+     * @param map   The field.
+     * @param mount Where the sensor is on the robot, as {right, forward, facing}.
+     * @param sigma Standard deviation of where the sensor is across the line, in centimeters.
+     * @return True if the crossing matched a line and was used.
+     */
+    public boolean correctLine(FieldMap map, double[] mount, double sigma) {
+        double heading = state[HEADING];
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+        double sensorX = state[X] + mount[0] * cos - mount[1] * sin;
+        double sensorY = state[Y] + mount[0] * sin + mount[1] * cos;
+
+        FieldMap.Line line = map.findLine(sensorX, sensorY, lineMargin);
+        if (line == null) {
+            return false;
+        }
+        if (line.alongY) {
+            jacobian[X] = 1.0;
+            jacobian[Y] = 0.0;
+            jacobian[HEADING] = -(sensorY - state[Y]);
+        } else {
+            jacobian[X] = 0.0;
+            jacobian[Y] = 1.0;
+            jacobian[HEADING] = sensorX - state[X];
+        }
+        // The sensor is on the line, so the measured offset is zero
+        return correct(-line.offset(sensorX, sensorY), sigma * sigma);
+    }
+
+    /**
+     * One scalar Kalman update, using the Jacobian already filled in.
+     */
+    private boolean correct(double innovation, double variance) {
+        double[][] p = covariance;
+        double s = variance;
+        for (int i = 0; i < STATES; i++) {
+            double ph = 0.0;
+            for (int j = 0; j < STATES; j++) {
+                ph += p[i][j] * jacobian[j];
+            }
+            gain[i] = ph;
+            s += jacobian[i] * ph;
+        }
+        if (innovation * innovation > gateSigmas * gateSigmas * s) {
+            return false;
+        }
+
+        for (int i = 0; i < STATES; i++) {
+            gain[i] /= s;
+            state[i] += gain[i] * innovation;
+        }
+
+        // Joseph form, P = (I - KH) P (I - KH)^T + K R K^T, which stays symmetric and positive
+        for (int i = 0; i < STATES; i++) {
+            for (int j = 0; j < STATES; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < STATES; k++) {
+                    double a = (i == k ? 1.0 : 0.0) - gain[i] * jacobian[k];
+                    sum += a * p[k][j];
+                }
+                scratch[i][j] = sum;
+            }
+        }
+        for (int i = 0; i < STATES; i++) {
+            for (int j = 0; j < STATES; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < STATES; k++) {
+                    double a = (j == k ? 1.0 : 0.0) - gain[j] * jacobian[k];
+                    sum += scratch[i][k] * a;
+                }
+                p[i][j] = sum + gain[i] * variance * gain[j];
+            }
+        }
+        return true;
+    }
+
+    private static double wrapAngle(double angle) {
+        return Math.atan2(Math.sin(angle), Math.cos(angle));
+    }
+
+    /**
+     * Copy the estimate.
+     *
+     * @param out Pose to fill in. Its time is left alone.
+     * @return The same pose, for chaining.
+     */
+    public Pose getPose(Pose out) {
+        out.x = state[X];
+        out.y = state[Y];
+        out.heading = state[HEADING];
+        return out;
+    }
+
+    /**
+     * @return Standard deviation of the position, along its worse axis, in centimeters.
+     */
+    public double getPositionSigma() {
+        return Math.sqrt(Math.max(covariance[X][X], covariance[Y][Y]));
+    }
+
+    /**
+     * @return Standard deviation of the heading, in radians.
+     */
+    public double getHeadingSigma() {
+        return Math.sqrt(covariance[HEADING][HEADING]);
+    }
+}
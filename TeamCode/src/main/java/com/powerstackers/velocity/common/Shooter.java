@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Shooter flywheel subsystem.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.Servo;
+import com.qualcomm.robotcore.hardware.VoltageSensor;
+import com.qualcomm.robotcore.util.ThreadPool;
+
+import org.firstinspires.ftc.robotcore.internal.AppUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the shooter flywheel on its own thread. Every control period the thread samples the
+ * encoder, updates the RPM estimate, and sets the motor power from the flywheel controller. This
+ * keeps the control rate the same no matter how fast or slow the OpMode loop is running.
+ *
+ * <p>The controller works in terms of power at nominal battery voltage, and the
+ * {@link VoltageCompensator} scales its output for the actual battery, so spin-up and launch speed
+ * stay the same as the battery drains.
+ *
+ * <p>The same thread runs the {@link ShotCycle}, opening the shoot servo when the wheel is ready
+ * and closing it as soon as a shot is detected. An idle speed set with {@link #setIdleRpm} is
+ * never ready, so the servo stays closed until a shooting speed is set.
+ *
+ * <p>The OpMode only sets the target and reads back the speed, so none of the calls here block.
+ * The control thread reads the encoder and battery and writes the motor and servo outside the
+ * lock, holding it only to take in the latest settings and publish what it decided, so callers
+ * never wait on the bus.
+ *
+ * @author Powerstackers
+ */
+public class Shooter implements Runnable {
+
+    private final DcMotor motor;
+    private final Servo feedServo;
+    private final ShooterVelocityEstimator velocity = new ShooterVelocityEstimator();
+    private final FlywheelModel model;
+    private final FlywheelController controller;
+    private final ShotCycle shotCycle = new ShotCycle();
+    private final ShotMetrics metrics = new ShotMetrics();
+    private final VoltageCompensator voltage;
+
+    private ScheduledExecutorService executor = null;
+    private long lastStepNanos = 0;
+    private boolean feedOpen = false;
+    private double lastTarget = 0.0;
+    private int samplesInTolerance = 0;
+
+    private volatile double targetRpm = 0.0;
+    private volatile boolean idling = false;
+    private volatile boolean ready = false;
+    private volatile double power = 0.0;
+    private boolean powerStale = false;
+    private volatile double maxPower = 1.0;
+    private volatile boolean feeding = false;
+
+    /**
+     * Construct a shooter.
+     *
+     * @param motor     The flywheel motor. Its encoder must be plugged in.
+     * @param feedServo The servo that lets balls into the flywheel.
+     * @param battery   Battery voltage sensor, or null to skip voltage compensation.
+     * @param model     The flywheel model the feedforward is based on.
+     */
+    public Shooter(DcMotor motor, Servo feedServo, VoltageSensor battery, FlywheelModel model) {
+        this.motor = motor;
+        this.feedServo = feedServo;
+        this.voltage = new VoltageCompensator(battery);
+        this.model = model;
+        this.controller = new FlywheelController(model, VelRobotConstants.NOMINAL_BATTERY_VOLTAGE);
+    }
+
+    /**
+     * @return Where the characterization OpMode saves the flywheel model.
+     */
+    public static File getModelFile() {
+        return new File(AppUtil.FIRST_FOLDER, VelRobotConstants.SHOOTER_MODEL_FILE);
+    }
+
+    /**
+     * @return The saved flywheel model, or the hand-tuned defaults if there isn't one.
+     */
+    public static FlywheelModel loadModel() {
+        return FlywheelModel.loadOrDefault(getModelFile());
+    }
+
+    /**
+     * Start the control thread. The motor is put into open loop mode, since we close the loop
+     * ourselves.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        motor.setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
+        feedServo.setPosition(VelRobotConstants.SHOOT_SERVO_CLOSED);
+        feedOpen = false;
+        lastStepNanos = System.nanoTime();
+        executor = ThreadPool.newSingleThreadScheduledExecutor();
+        executor.scheduleAtFixedRate(this, 0, VelRobotConstants.SHOOTER_CONTROL_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the control thread and cut power to the flywheel.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            targetRpm = 0.0;
+            idling = false;
+            feeding = false;
+            ready = false;
+            power = 0.0;
+            feedOpen = false;
+            notifyAll();
+        }
+        motor.setPower(0.0);
+        feedServo.setPosition(VelRobotConstants.SHOOT_SERVO_CLOSED);
+        saveMetrics();
+    }
+
+    private void saveMetrics() {
+        if (metrics.getShotCount() == 0) {
+            return;
+        }
+        try {
+            metrics.save(new File(AppUtil.FIRST_FOLDER, VelRobotConstants.SHOT_STATS_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Set the speed the flywheel should hold to shoot.
+     *
+     * @param rpm Target RPM. Zero lets the wheel coast down.
+     */
+    public synchronized void setTargetRpm(double rpm) {
+        targetRpm = rpm;
+        idling = false;
+    }
+
+    /**
+     * Keep the flywheel spinning between volleys. The wheel holds the speed, but it never counts
+     * as ready, so feeding waits for {@link #setTargetRpm}.
+     *
+     * @param rpm Idle RPM.
+     */
+    public synchronized void setIdleRpm(double rpm) {
+        targetRpm = rpm;
+        idling = true;
+    }
+
+    /**
+     * Let the flywheel coast to a stop.
+     */
+    public void stop() {
+        synchronized (this) {
+            targetRpm = 0.0;
+            idling = false;
+            controller.reset();
+            power = 0.0;
+            // A step already past the lock may send its older power after our zero, so make the
+            // next step send its power whether or not it changed
+            powerStale = true;
+        }
+        motor.setPower(0.0);
+    }
+
+    /**
+     * Limit the power the controller may use, for example to stay inside a current budget.
+     *
+     * @param maxPower Highest power, as if the battery were at nominal voltage.
+     */
+    public void setMaxPower(double maxPower) {
+        this.maxPower = maxPower;
+    }
+
+    /**
+     * Ask for balls to be fed. While the flywheel has a shooting target, the shot cycle opens the
+     * servo only when the wheel is ready, and while it idles the servo stays closed. With the
+     * flywheel stopped the servo simply follows this.
+     *
+     * @param feeding True to feed balls, false to hold them.
+     */
+    public void setFeeding(boolean feeding) {
+        this.feeding = feeding;
+    }
+
+    /**
+     * @return True once the flywheel has been within tolerance of its target for
+     * {@link VelRobotConstants#SHOT_READY_SAMPLES} control periods in a row.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Block until the flywheel is ready to shoot, or until the timeout runs out.
+     *
+     * @param timeoutMs Longest time to wait, in milliseconds.
+     * @return True if the flywheel is ready, false if we timed out or it has no shooting target.
+     * @throws InterruptedException If the OpMode is stopped while we wait.
+     */
+    public synchronized boolean awaitReady(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (!ready && targetRpm != 0.0 && !idling) {
+            long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if (remainingMs <= 0) {
+                break;
+            }
+            wait(remainingMs);
+        }
+        return ready;
+    }
+
+    /**
+     * @return Number of shots detected since the robot was initialized.
+     */
+    public int getShotCount() {
+        return shotCycle.getShotCount();
+    }
+
+    /**
+     * @return Release speed, dip and recovery statistics for every shot so far.
+     */
+    public ShotMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Time between the last two shots, in milliseconds.
+     */
+    public double getLastShotCycleMs() {
+        return shotCycle.getLastCycleMs();
+    }
+
+    /**
+     * @return The speed the flywheel is trying to hold.
+     */
+    public double getTargetRpm() {
+        return targetRpm;
+    }
+
+    /**
+     * @return The latest filtered flywheel speed.
+     */
+    public double getRpm() {
+        return velocity.getRpm();
+    }
+
+    /**
+     * @return The power the controller last commanded.
+     */
+    public double getPower() {
+        return power;
+    }
+
+    /**
+     * @return The flywheel model the shooter is using.
+     */
+    public FlywheelModel getModel() {
+        return model;
+    }
+
+    /**
+     * Predict how long the flywheel takes to reach a speed from rest at full power.
+     *
+     * @param rpm Speed to reach.
+     * @return Time in milliseconds.
+     */
+    public long getSpinUpMs(double rpm) {
+        double seconds = model.getSpinUpSec(rpm, VelRobotConstants.NOMINAL_BATTERY_VOLTAGE);
+        return Double.isInfinite(seconds) ? Long.MAX_VALUE : (long) Math.ceil(seconds * 1000.0);
+    }
+
+    /**
+     * @return The filtered battery voltage the shooter is compensating for.
+     */
+    public double getBatteryVoltage() {
+        return voltage.getVoltage();
+    }
+
+    /**
+     * The control thread updates this every period for as long as the shooter is running, so the
+     * drive can share it instead of reading the battery itself.
+     *
+     * @return The battery voltage compensator.
+     */
+    public VoltageCompensator getVoltageCompensator() {
+        return voltage;
+    }
+
+    /**
+     * @return True if the flywheel has a target speed.
+     */
+    public boolean isRunning() {
+        return targetRpm != 0.0;
+    }
+
+    /**
+     * One step of the control loop. Called by the control thread; don't call it directly.
+     */
+    @Override
+    public void run() {
+        step(System.nanoTime());
+    }
+
+    /**
+     * One step of the control loop at a given time. Package-private so tests can run the loop on
+     * their own clock.
+     *
+     * @param now Current time, from {@link System#nanoTime()}.
+     */
+    void step(long now) {
+        try {
+            // Only this thread touches the estimator and the compensator's filter, so the bus
+            // reads can happen before taking the lock
+            velocity.addSample(now, motor.getCurrentPosition());
+            voltage.update(now);
+            double rpm = velocity.getRpm();
+
+            double sendPower = Double.NaN;
+            double sendServo;
+            synchronized (this) {
+                double dt = (now - lastStepNanos) / 1e9;
+                lastStepNanos = now;
+
+                double target = targetRpm;
+                // Idling holds the wheel at speed, but for the shot cycle there is nothing to
+                // shoot at
+                double shotTarget = idling ? 0.0 : target;
+                updateReady(shotTarget, rpm);
+
+                // Let the controller know where full power really is, so anti-windup still works
+                controller.setOutputLimits(0.0, Math.min(maxPower, 1.0 / voltage.getScale()));
+                double newPower = voltage.compensate(controller.calculate(target, rpm, dt));
+                if (newPower != power || powerStale) {
+                    power = newPower;
+                    powerStale = false;
+                    sendPower = newPower;
+                }
+
+                boolean open = shotCycle.update(now, rpm, shotTarget, feeding);
+                metrics.update(now, rpm, shotTarget, shotCycle.getShotCount());
+                sendServo = changeFeed(target == 0.0 ? feeding : open);
+            }
+
+            if (!Double.isNaN(sendPower)) {
+                motor.setPower(sendPower);
+            }
+            if (!Double.isNaN(sendServo)) {
+                feedServo.setPosition(sendServo);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled task, so log it and try again next period
+            e.printStackTrace();
+        }
+    }
+
+    private void updateReady(double target, double rpm) {
+        if (target != lastTarget) {
+            lastTarget = target;
+            samplesInTolerance = 0;
+        }
+        if (target != 0.0
+                && Math.abs(target - rpm) <= VelRobotConstants.SHOT_READY_TOLERANCE_RPM) {
+            samplesInTolerance++;
+        } else {
+            samplesInTolerance = 0;
+        }
+
+        boolean nowReady = samplesInTolerance >= VelRobotConstants.SHOT_READY_SAMPLES;
+        if (nowReady != ready) {
+            ready = nowReady;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record where the feed should be. Call while holding the lock, and send the result to the
+     * servo after letting go of it.
+     *
+     * @return The servo position to send, or NaN if the servo is already there.
+     */
+    private double changeFeed(boolean open) {
+        if (open == feedOpen) {
+            return Double.NaN;
+        }
+        feedOpen = open;
+        return open ? VelRobotConstants.SHOOT_SERVO_OPEN : VelRobotConstants.SHOOT_SERVO_CLOSED;
+    }
+}
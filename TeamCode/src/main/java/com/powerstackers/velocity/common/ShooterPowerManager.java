@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Idle spin and current budgeting for the shooter.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.ShooterPowerState;
+
+/**
+ * Keeps the flywheel spinning at an idle speed between volleys, so a volley only has to spin up
+ * from idle instead of from rest, and keeps the flywheel and drive inside a shared current budget.
+ *
+ * <p>The drive gets priority. Its current is estimated from the commanded powers, and the
+ * flywheel gets whatever is left. A DC motor draws current in proportion to the applied voltage
+ * minus its back EMF, so the flywheel limit is the power that just matches its back EMF at the
+ * current speed, plus the headroom in the budget. That lets the wheel spin up as fast as the
+ * budget allows without ever stalling it.
+ *
+ * @author Powerstackers
+ */
+public class ShooterPowerManager {
+
+    private final Shooter shooter;
+    private final double idleRpm;
+    private final double readyRpm;
+    private final double budgetAmps;
+    private final double shooterStallAmps;
+    private final double driveAmpsAtFullPower;
+
+    private ShooterPowerState state = ShooterPowerState.OFF;
+
+    /**
+     * Construct a power manager.
+     *
+     * @param shooter              The shooter to manage.
+     * @param idleRpm              Speed to hold in the IDLE state.
+     * @param readyRpm             Speed to hold in the READY state.
+     * @param budgetAmps           Current the drive and flywheel may draw together.
+     * @param shooterStallAmps     Current the flywheel motor draws at stall.
+     * @param driveAmpsAtFullPower Current a drive motor draws at full power.
+     */
+    public ShooterPowerManager(Shooter shooter, double idleRpm, double readyRpm, double budgetAmps,
+                               double shooterStallAmps, double driveAmpsAtFullPower) {
+        this.shooter = shooter;
+        this.idleRpm = idleRpm;
+        this.readyRpm = readyRpm;
+        this.budgetAmps = budgetAmps;
+        this.shooterStallAmps = shooterStallAmps;
+        this.driveAmpsAtFullPower = driveAmpsAtFullPower;
+    }
+
+    /**
+     * Construct a power manager using the settings in {@link VelRobotConstants}.
+     *
+     * @param shooter The shooter to manage.
+     */
+    public ShooterPowerManager(Shooter shooter) {
+        this(shooter,
+                VelRobotConstants.SHOOTER_IDLE_RPM,
+                VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM,
+                VelRobotConstants.CURRENT_BUDGET_AMPS,
+                VelRobotConstants.SHOOTER_STALL_AMPS,
+                VelRobotConstants.DRIVE_MOTOR_AMPS_AT_FULL_POWER);
+    }
+
+    /**
+     * Change the flywheel state. Does nothing if the state hasn't changed.
+     *
+     * @param newState The state to go to.
+     */
+    public void setState(ShooterPowerState newState) {
+        if (newState == state) {
+            return;
+        }
+        state = newState;
+        switch (newState) {
+            case READY:
+                shooter.setTargetRpm(readyRpm);
+                break;
+            case IDLE:
+                shooter.setIdleRpm(idleRpm);
+                break;
+            case OFF:
+            default:
+                shooter.stop();
+                break;
+        }
+    }
+
+    /**
+     * @return The flywheel state.
+     */
+    public ShooterPowerState getState() {
+        return state;
+    }
+
+    /**
+     * Update the flywheel power limit for what the drive is using. Call this every loop, after
+     * the drive powers are set.
+     *
+     * @param drivePowerSum Sum of the absolute powers of the drive motors.
+     */
+    public void update(double drivePowerSum) {
+        double headroomAmps = Math.max(0.0, budgetAmps - drivePowerSum * driveAmpsAtFullPower);
+        FlywheelModel model = shooter.getModel();
+        double backEmfPower = model.kV * shooter.getRpm() / VelRobotConstants.NOMINAL_BATTERY_VOLTAGE;
+        shooter.setMaxPower(backEmfPower + headroomAmps / shooterStallAmps);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Background spin-up of the shooter flywheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Spins the flywheel up to its target. The shooter's control thread does the work, so this only
+ * keeps track of when the spin-up started. The deadline is measured from then, so time spent
+ * driving counts toward it and awaiting after a long drive returns right away.
+ *
+ * @author Powerstackers
+ */
+public class ShooterSpinUp implements AsyncAction {
+
+    private final Shooter shooter;
+    private final long deadlineNanos;
+
+    /**
+     * Start spinning the flywheel up.
+     *
+     * @param shooter   The shooter.
+     * @param targetRpm Speed to spin up to.
+     */
+    public ShooterSpinUp(Shooter shooter, double targetRpm) {
+        this.shooter = shooter;
+
+        // Predicted spin-up time plus a margin, but never longer than the ready timeout
+        long spinUpMs = shooter.getSpinUpMs(targetRpm);
+        long timeoutMs = VelRobotConstants.SHOOTER_READY_TIMEOUT_MS;
+        if (spinUpMs < timeoutMs - VelRobotConstants.SHOOTER_READY_MARGIN_MS) {
+            timeoutMs = spinUpMs + VelRobotConstants.SHOOTER_READY_MARGIN_MS;
+        }
+        deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+
+        shooter.setTargetRpm(targetRpm);
+    }
+
+    @Override
+    public boolean isDone() {
+        return shooter.isReady();
+    }
+
+    @Override
+    public boolean await() throws InterruptedException {
+        long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+        return shooter.awaitReady(Math.max(0, remainingMs));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Continuous velocity estimate for the shooter flywheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Estimates the shooter RPM from timestamped encoder samples. Every call to
+ * {@link #addSample(long, int)} stores the sample in a fixed size ring buffer and updates the
+ * estimate, so reading the RPM never has to wait for the wheel to turn.
+ *
+ * <p>The raw estimate is the slope between the newest sample and the oldest sample that is still
+ * inside the averaging window. That raw value is then smoothed with a low pass filter.
+ *
+ * @author Powerstackers
+ */
+public class ShooterVelocityEstimator {
+
+    /**
+     * Encoder ticks in one revolution of the shooter. The old measurement counted ticks for 100 ms
+     * and multiplied by 600 / 44.4, so one revolution is 44.4 ticks.
+     */
+    public static final double SHOOTER_TICKS_PER_REV = 44.4;
+
+    private static final double NANOS_PER_MINUTE = 60.0 * 1e9;
+
+    private final long[] sampleTimes;
+    private final int[] samplePositions;
+    private final long windowNanos;
+    private final double smoothing;
+
+    /** Index of the oldest sample in the buffer. */
+    private int tail = 0;
+    /** Number of samples currently held. */
+    private int count = 0;
+
+    private volatile double filteredRpm = 0.0;
+    private boolean hasEstimate = false;
+
+    /**
+     * Construct an estimator.
+     *
+     * @param capacity  Maximum number of samples kept in the ring buffer.
+     * @param windowMs  Length of the averaging window, in milliseconds.
+     * @param smoothing Low pass filter gain from 0:1. 1 means no extra filtering.
+     */
+    public ShooterVelocityEstimator(int capacity, double windowMs, double smoothing) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Need room for at least two samples");
+        }
+        this.sampleTimes = new long[capacity];
+        this.samplePositions = new int[capacity];
+        this.windowNanos = (long) (windowMs * 1e6);
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Construct an estimator using the shooter settings in {@link VelRobotConstants}.
+     */
+    public ShooterVelocityEstimator() {
+        this(VelRobotConstants.SHOOTER_RPM_SAMPLES,
+                VelRobotConstants.SHOOTER_RPM_WINDOW_MS,
+                VelRobotConstants.SHOOTER_RPM_SMOOTHING);
+    }
+
+    /**
+     * Record an encoder reading and update the RPM estimate.
+     *
+     * @param timeNanos Time the reading was taken, from {@link System#nanoTime()}.
+     * @param position  Encoder position in ticks.
+     */
+    public void addSample(long timeNanos, int position) {
+        if (count > 0) {
+            long newestTime = sampleTimes[index(count - 1)];
+            // Samples older than the whole window tell us nothing about the current speed
+            if (timeNanos - newestTime > windowNanos || timeNanos <= newestTime) {
+                count = 0;
+            }
+        }
+
+        if (count == sampleTimes.length) {
+            tail = index(1);
+            count--;
+        }
+        int slot = index(count);
+        sampleTimes[slot] = timeNanos;
+        samplePositions[slot] = position;
+        count++;
+
+        // Drop samples that have fallen out of the window, but always keep two to measure with
+        while (count > 2 && timeNanos - sampleTimes[index(1)] >= windowNanos) {
+            tail = index(1);
+            count--;
+        }
+        if (count < 2) {
+            return;
+        }
+
+        long elapsed = timeNanos - sampleTimes[tail];
+        double rawRpm = (position - samplePositions[tail]) * NANOS_PER_MINUTE
+                / (elapsed * SHOOTER_TICKS_PER_REV);
+
+        if (hasEstimate) {
+            filteredRpm += smoothing * (rawRpm - filteredRpm);
+        } else {
+            filteredRpm = rawRpm;
+            hasEstimate = true;
+        }
+    }
+
+    /**
+     * @return The filtered RPM from the samples seen so far.
+     */
+    public double getRpm() {
+        return filteredRpm;
+    }
+
+    /**
+     * Forget all samples and the current estimate.
+     */
+    public void reset() {
+        tail = 0;
+        count = 0;
+        filteredRpm = 0.0;
+        hasEstimate = false;
+    }
+
+    private int index(int offset) {
+        return (tail + offset) % sampleTimes.length;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Automatic feed cycling for the shooter.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.FeedState;
+
+/**
+ * Decides when the shoot servo should be open. While feeding is requested, the servo opens once
+ * the flywheel has held its target for a few samples. When a ball leaves, the flywheel speed dips;
+ * we count that as a shot and close the servo until the wheel is back in tolerance.
+ *
+ * <p>This class only does the bookkeeping. {@link Shooter} calls {@link #update} from its control
+ * thread and moves the servo.
+ *
+ * @author Powerstackers
+ */
+public class ShotCycle {
+
+    private final double readyTolerance;
+    private final int readySamples;
+    private final double dipThreshold;
+
+    private volatile FeedState state = FeedState.CLOSED;
+    private int samplesInTolerance = 0;
+
+    private volatile int shotCount = 0;
+    private long lastShotNanos = 0;
+    private volatile double lastCycleMs = 0.0;
+
+    /**
+     * Construct a shot cycle.
+     *
+     * @param readyTolerance How close to the target the flywheel must be to feed, in RPM.
+     * @param readySamples   Consecutive samples in tolerance needed to feed.
+     * @param dipThreshold   How far below the target counts as a shot, in RPM.
+     */
+    public ShotCycle(double readyTolerance, int readySamples, double dipThreshold) {
+        this.readyTolerance = readyTolerance;
+        this.readySamples = readySamples;
+        this.dipThreshold = dipThreshold;
+    }
+
+    /**
+     * Construct a shot cycle using the settings in {@link VelRobotConstants}.
+     */
+    public ShotCycle() {
+        this(VelRobotConstants.SHOT_READY_TOLERANCE_RPM,
+                VelRobotConstants.SHOT_READY_SAMPLES,
+                VelRobotConstants.SHOT_DIP_RPM);
+    }
+
+    /**
+     * Advance the cycle by one flywheel sample.
+     *
+     * @param timeNanos Time of the sample, from {@link System#nanoTime()}.
+     * @param rpm       Measured flywheel speed.
+     * @param targetRpm Speed the flywheel is trying to hold.
+     * @param feeding   True if the driver or autonomous wants to shoot.
+     * @return True if the shoot servo should be open.
+     */
+    public boolean update(long timeNanos, double rpm, double targetRpm, boolean feeding) {
+        if (!feeding || targetRpm == 0.0) {
+            state = FeedState.CLOSED;
+            samplesInTolerance = 0;
+            return false;
+        }
+
+        switch (state) {
+            case OPEN:
+                if (rpm < targetRpm - dipThreshold) {
+                    if (shotCount > 0) {
+                        lastCycleMs = (timeNanos - lastShotNanos) / 1e6;
+                    }
+                    lastShotNanos = timeNanos;
+                    shotCount++;
+                    samplesInTolerance = 0;
+                    state = FeedState.RECOVERING;
+                }
+                break;
+            case CLOSED:
+            case RECOVERING:
+            default:
+                if (Math.abs(targetRpm - rpm) <= readyTolerance) {
+                    samplesInTolerance++;
+                } else {
+                    samplesInTolerance = 0;
+                }
+                if (samplesInTolerance >= readySamples) {
+                    state = FeedState.OPEN;
+                }
+                break;
+        }
+        return state == FeedState.OPEN;
+    }
+
+    /**
+     * @return Where the cycle is right now.
+     */
+    public FeedState getState() {
+        return state;
+    }
+
+    /**
+     * @return Number of shots detected since the robot was initialized.
+     */
+    public int getShotCount() {
+        return shotCount;
+    }
+
+    /**
+     * @return Time between the last two shots, in milliseconds. Zero until two shots are fired.
+     */
+    public double getLastCycleMs() {
+        return lastCycleMs;
+    }
+}
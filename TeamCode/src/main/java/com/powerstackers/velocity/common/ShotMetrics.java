@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Per-shot statistics for the shooter.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Measures every shot the {@link ShotCycle} detects: the flywheel speed when the ball left, how
+ * far the speed dipped, and how long the flywheel took to get back within tolerance of its
+ * target. Each measurement goes into a {@link Histogram}, so we can see the spread over a match
+ * without keeping every shot.
+ *
+ * <p>{@link Shooter} feeds this from its control thread. The getters can be called from the OpMode
+ * at the same time.
+ *
+ * @author Powerstackers
+ */
+public class ShotMetrics {
+
+    private final Histogram releaseRpm = new Histogram(0.0, VelRobotConstants.MOTOR_SHOOTER_MAX_RPM,
+            (int) (VelRobotConstants.MOTOR_SHOOTER_MAX_RPM / 10));
+    private final Histogram dipRpm = new Histogram(0.0, 500.0, 100);
+    private final Histogram recoveryMs = new Histogram(0.0, 2000.0, 100);
+
+    private final double readyTolerance;
+
+    private double lastRpm = 0.0;
+    private int lastShotCount = 0;
+    private boolean recovering = false;
+    private long shotNanos = 0;
+    private double minRpm = 0.0;
+
+    /**
+     * Construct shot metrics.
+     *
+     * @param readyTolerance How close to the target counts as recovered, in RPM.
+     */
+    public ShotMetrics(double readyTolerance) {
+        this.readyTolerance = readyTolerance;
+    }
+
+    /**
+     * Construct shot metrics using the tolerance in {@link VelRobotConstants}.
+     */
+    public ShotMetrics() {
+        this(VelRobotConstants.SHOT_READY_TOLERANCE_RPM);
+    }
+
+    /**
+     * Advance by one flywheel sample. Call this after {@link ShotCycle#update}.
+     *
+     * @param timeNanos Time of the sample, from {@link System#nanoTime()}.
+     * @param rpm       Measured flywheel speed.
+     * @param targetRpm Speed the flywheel is trying to hold.
+     * @param shotCount Shots the shot cycle has counted so far.
+     */
+    public synchronized void update(long timeNanos, double rpm, double targetRpm, int shotCount) {
+        if (shotCount != lastShotCount) {
+            // The sample before the dip was detected is the best guess at the speed at release
+            lastShotCount = shotCount;
+            releaseRpm.add(lastRpm);
+            recovering = true;
+            shotNanos = timeNanos;
+            minRpm = rpm;
+        } else if (recovering) {
+            if (targetRpm == 0.0) {
+                recovering = false;
+            } else if (rpm < minRpm) {
+                minRpm = rpm;
+            } else if (Math.abs(targetRpm - rpm) <= readyTolerance) {
+                dipRpm.add(targetRpm - minRpm);
+                recoveryMs.add((timeNanos - shotNanos) / 1e6);
+                recovering = false;
+            }
+        }
+        lastRpm = rpm;
+    }
+
+    /**
+     * @return Number of shots measured.
+     */
+    public synchronized int getShotCount() {
+        return releaseRpm.getCount();
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100.
+     * @return Flywheel speed when the ball left.
+     */
+    public synchronized double getReleaseRpm(double percentile) {
+        return releaseRpm.getPercentile(percentile);
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100.
+     * @return How far below the target the flywheel dipped after a shot, in RPM.
+     */
+    public synchronized double getDipRpm(double percentile) {
+        return dipRpm.getPercentile(percentile);
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100.
+     * @return How long the flywheel took to get back to its target after a shot, in milliseconds.
+     */
+    public synchronized double getRecoveryMs(double percentile) {
+        return recoveryMs.getPercentile(percentile);
+    }
+
+    /**
+     * Write percentile summaries and the histograms to a file.
+     *
+     * @param file File to write.
+     * @throws IOException If the file can't be written.
+     */
+    public synchronized void save(File file) throws IOException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            writeSummary(out, "release_rpm", releaseRpm);
+            writeSummary(out, "dip_rpm", dipRpm);
+            writeSummary(out, "recovery_ms", recoveryMs);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeSummary(PrintWriter out, String name, Histogram histogram) {
+        out.printf("# %s n=%d mean=%.1f p10=%.1f p50=%.1f p90=%.1f p99=%.1f%n", name,
+                histogram.getCount(), histogram.getMean(), histogram.getPercentile(10),
+                histogram.getPercentile(50), histogram.getPercentile(90),
+                histogram.getPercentile(99));
+        histogram.writeBins(out);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Cleans up the readings from an ultrasonic range sensor.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+/**
+ * Median filter for a Modern Robotics ultrasonic sensor. The sensor reads 0 or 255 when it misses
+ * an echo, and now and then picks up a stray echo that's nowhere near the real range, so a single
+ * reading can't be trusted to stop the robot.
+ *
+ * <p>Readings go through three checks:
+ *
+ * <ul>
+ *     <li>0, 255 and anything else outside the sensor's range are dropped,</li>
+ *     <li>a reading too far from the current median is dropped, unless several in a row agree
+ *     with each other, which means the robot really has moved,</li>
+ *     <li>and the range is a median of the last few readings that are still recent.</li>
+ * </ul>
+ *
+ * <p>A plain median lags behind a robot driving toward a wall by half the window, which is several
+ * centimeters at speed. So the median is taken with the trend removed: the rate is the median of
+ * the slopes between every pair of readings, each reading is carried forward to now at that rate,
+ * and the range is the median of those. A stray reading can't move either median, and a steady
+ * approach is tracked with no lag.
+ *
+ * <p>Each reading is stamped with when it was taken, so a sensor that has stopped answering gives
+ * no range instead of an old one. The sensor only pings every few tens of milliseconds, so the
+ * same reading seen again within the sample period is the same ping and isn't counted twice.
+ *
+ * <p>The readings are kept in a ring buffer of primitives, so nothing is allocated per reading.
+ *
+ * @author Powerstackers
+ */
+public class UltrasonicFilter {
+
+    private final double minRange;
+    private final double maxRange;
+    private final double gate;
+    private final int maxRejects;
+    private final long sampleNanos;
+    private final long staleNanos;
+
+    private final double[] ranges;
+    private final long[] times;
+    private final double[] sorted;
+    private final double[] freshRanges;
+    private final long[] freshTimes;
+    private final double[] slopes;
+    private final double[] rejected;
+    private final long[] rejectedTimes;
+    private int next = 0;
+    private int count = 0;
+    private int rejectCount = 0;
+    private double lastRange = Double.NaN;
+    private long lastNanos = 0;
+
+    /**
+     * Construct a filter.
+     *
+     * @param size       How many readings the median is taken over.
+     * @param minRange   Smallest real reading, in centimeters.
+     * @param maxRange   Largest real reading, in centimeters.
+     * @param gate       Readings further than this from the median are dropped, in centimeters.
+     * @param maxRejects This many dropped readings in a row that agree are taken as the new range.
+     * @param sampleMs   The same reading within this long is the same ping, in milliseconds.
+     * @param staleMs    Readings older than this are forgotten, in milliseconds.
+     */
+    public UltrasonicFilter(int size, double minRange, double maxRange, double gate,
+                            int maxRejects, long sampleMs, long staleMs) {
+        this.minRange = minRange;
+        this.maxRange = maxRange;
+        this.gate = gate;
+        this.maxRejects = maxRejects;
+        this.sampleNanos = sampleMs * 1000000L;
+        this.staleNanos = staleMs * 1000000L;
+        this.ranges = new double[size];
+        this.times = new long[size];
+        this.sorted = new double[size];
+        this.freshRanges = new double[size];
+        this.freshTimes = new long[size];
+        this.slopes = new double[size * (size - 1) / 2];
+        this.rejected = new double[maxRejects];
+        this.rejectedTimes = new long[maxRejects];
+    }
+
+    /**
+     * Construct a filter using the settings in {@link VelRobotConstants}.
+     */
+    public UltrasonicFilter() {
+        this(VelRobotConstants.US_FILTER_SIZE,
+                VelRobotConstants.US_MIN_RANGE_CM,
+                VelRobotConstants.US_MAX_RANGE_CM,
+                VelRobotConstants.US_GATE_CM,
+                VelRobotConstants.US_MAX_REJECTS,
+                VelRobotConstants.US_SAMPLE_MS,
+                VelRobotConstants.US_STALE_MS);
+    }
+
+    /**
+     * Take in a reading.
+     *
+     * @param nanos Time of the reading, from {@link System#nanoTime()}.
+     * @param range The reading, in centimeters.
+     * @return True if the reading was kept.
+     */
+    public boolean add(long nanos, double range) {
+        if (!(range >= minRange && range <= maxRange)) {
+            return false;
+        }
+        if (range == lastRange && nanos - lastNanos < sampleNanos) {
+            return false;
+        }
+        lastRange = range;
+        lastNanos = nanos;
+
+        double median = getRange(nanos);
+        if (!Double.isNaN(median) && Math.abs(range - median) > gate) {
+            if (rejectCount > 0 && Math.abs(range - rejected[rejectCount - 1]) > gate) {
+                // Not agreeing with the last rejected reading either, so start counting again
+                rejectCount = 0;
+            }
+            rejected[rejectCount] = range;
+            rejectedTimes[rejectCount] = nanos;
+            rejectCount++;
+            if (rejectCount < maxRejects) {
+                return false;
+            }
+            // Enough readings agree that the robot has moved; start over from them
+            count = 0;
+            for (int i = 0; i < rejectCount; i++) {
+                store(rejectedTimes[i], rejected[i]);
+            }
+            rejectCount = 0;
+            return true;
+        }
+
+        rejectCount = 0;
+        store(nanos, range);
+        return true;
+    }
+
+    private void store(long nanos, double range) {
+        ranges[next] = range;
+        times[next] = nanos;
+        next = (next + 1) % ranges.length;
+        count = Math.min(count + 1, ranges.length);
+    }
+
+    /**
+     * @param nanos Current time from {@link System#nanoTime()}.
+     * @return The range now in centimeters, from the recent readings, or NaN if there are none.
+     */
+    public double getRange(long nanos) {
+        int fresh = collectFresh(nanos);
+        if (fresh == 0) {
+            return Double.NaN;
+        }
+        double rate = fresh < 3 ? 0.0 : findRate(fresh);
+        for (int i = 0; i < fresh; i++) {
+            sorted[i] = freshRanges[i] + rate * (nanos - freshTimes[i]) / 1e9;
+        }
+        return median(sorted, fresh);
+    }
+
+    /**
+     * @param nanos Current time from {@link System#nanoTime()}.
+     * @return How fast the range is changing in centimeters per second, or 0 if there aren't
+     * enough recent readings to tell.
+     */
+    public double getRate(long nanos) {
+        int fresh = collectFresh(nanos);
+        return fresh < 3 ? 0.0 : findRate(fresh);
+    }
+
+    private int collectFresh(long nanos) {
+        int fresh = 0;
+        for (int k = 1; k <= count; k++) {
+            int i = (next - k + ranges.length) % ranges.length;
+            if (nanos - times[i] <= staleNanos) {
+                freshRanges[fresh] = ranges[i];
+                freshTimes[fresh] = times[i];
+                fresh++;
+            }
+        }
+        return fresh;
+    }
+
+    private double findRate(int fresh) {
+        int pairs = 0;
+        for (int i = 0; i < fresh; i++) {
+            for (int j = i + 1; j < fresh; j++) {
+                long dt = freshTimes[i] - freshTimes[j];
+                if (dt != 0) {
+                    slopes[pairs++] = (freshRanges[i] - freshRanges[j]) / (dt / 1e9);
+                }
+            }
+        }
+        return pairs == 0 ? 0.0 : median(slopes, pairs);
+    }
+
+    private static double median(double[] values, int length) {
+        // Insertion sort, since there are only a handful
+        for (int i = 1; i < length; i++) {
+            double value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+        if (length % 2 == 1) {
+            return values[length / 2];
+        }
+        return (values[length / 2 - 1] + values[length / 2]) / 2.0;
+    }
+
+    /**
+     * @return When the newest kept reading was taken, from {@link System#nanoTime()}, or 0 if
+     * there hasn't been one.
+     */
+    public long getLastSampleNanos() {
+        if (count == 0) {
+            return 0;
+        }
+        return times[(next + ranges.length - 1) % ranges.length];
+    }
+
+    /**
+     * Forget every reading.
+     */
+    public void reset() {
+        count = 0;
+        next = 0;
+        rejectCount = 0;
+        lastRange = Double.NaN;
+    }
+}
@@ -50,117 +50,102 @@ public class VelAutonomousProgram extends LinearOpMode {
         robot = new VelRobotAuto(this);
         robot.initializeRobot();
         // Wait for the start of the match!Thread.interrupted()
-        this.waitForStart();
-
-        if (allianceColor == BLUE && startingPosition == StartingPosition.FAR_FROM_RAMP) {
-
-        } else if (allianceColor == BLUE && startingPosition == StartingPosition.MIDDLE) {
-            robot.zeroEncoders();
-            // TODO: make shooter shoot using new method
-            robot.calibrateGyro();
-            sleep(5000);
-            robot.goTicks(robot.inchesToTicks(24),0.3);
-            robot.setShooter(MotorSetting.FORWARD);
-            sleep(1400);
-//            robot.setBallPickup(MotorSetting.FORWARD);
-//            sleep(1500);
-//            robot.setBallPickup(MotorSetting.STOP);
-            robot.setShooter(MotorSetting.STOP);
+        try {
+            this.waitForStart();
+
+            if (allianceColor == BLUE && startingPosition == StartingPosition.FAR_FROM_RAMP) {
+
+            } else if (allianceColor == BLUE && startingPosition == StartingPosition.MIDDLE) {
+                robot.zeroEncoders();
+                robot.calibrateGyro();
+                sleep(5000);
+                // Spin the shooter up on the way to the shooting position
+                AsyncAction spinUp = robot.startShooterSpinUp();
+                robot.goTicks(robot.inchesToTicks(24),0.3);
+                spinUp.await();
+                robot.shootParticles(2, VelRobotConstants.SHOT_BURST_TIMEOUT_MS);
+                robot.setShooter(MotorSetting.STOP);
+
+                robot.goTicks(robot.inchesToTicks(26),0.3);
+
+            } else if (allianceColor == RED && startingPosition == StartingPosition.FAR_FROM_RAMP) {
+
+            } else if (allianceColor == RED && startingPosition == StartingPosition.MIDDLE) {
+                robot.zeroEncoders();
+                robot.calibrateGyro();
+                sleep(5000);
+                // Spin the shooter up on the way to the shooting position
+                AsyncAction spinUp = robot.startShooterSpinUp();
+                robot.goTicks(robot.inchesToTicks(24),0.3);
+                spinUp.await();
+                robot.shootParticles(1, VelRobotConstants.SHOT_BURST_TIMEOUT_MS);
+//                robot.setBallPickup(MotorSetting.FORWARD);
+//                sleep(1500);
+//                robot.setBallPickup(MotorSetting.STOP);
+//                robot.setShooter(MotorSetting.STOP);
+//
+//                sleep(1500);
+//
+//                robot.setShooter(MotorSetting.FORWARD);
+//                sleep(1200);
+//                robot.setBallPickup(MotorSetting.FORWARD);
+//                sleep(2000);
+                robot.setShooter(MotorSetting.STOP);
 
-            sleep(1500);
+                robot.goTicks(robot.inchesToTicks(26),0.3);
 
-            robot.setShooter(MotorSetting.FORWARD);
-            sleep(1200);
-//            robot.setBallPickup(MotorSetting.FORWARD);
-//            sleep(2000);
-//            robot.setShooter(MotorSetting.STOP);
+            } else if (allianceColor == RED && startingPosition == StartingPosition.BACKUP) {
 
-            robot.goTicks(robot.inchesToTicks(26),0.3);
+                robot.driveTankFor(-0.3, -0.3, 1800);
+                robot.driveTankFor(+0.3, -0.3, 500);
+                robot.driveTankFor(-0.3, -0.3, 1800);
 
-        } else if (allianceColor == RED && startingPosition == StartingPosition.FAR_FROM_RAMP) {
+            } else if (allianceColor == BLUE && startingPosition == StartingPosition.BACKUP) {
 
-        } else if (allianceColor == RED && startingPosition == StartingPosition.MIDDLE) {
-            robot.zeroEncoders();
-            // TODO: make shooter shoot using new method
-            robot.calibrateGyro();
-            sleep(5000);
-            robot.goTicks(robot.inchesToTicks(24),0.3);
-            robot.setShooter(MotorSetting.FORWARD);
-            sleep(1400);
-//            robot.setBallPickup(MotorSetting.FORWARD);
-//            sleep(1500);
-//            robot.setBallPickup(MotorSetting.STOP);
-//            robot.setShooter(MotorSetting.STOP);
-//
-//            sleep(1500);
-//
-//            robot.setShooter(MotorSetting.FORWARD);
-//            sleep(1200);
-//            robot.setBallPickup(MotorSetting.FORWARD);
-//            sleep(2000);
-            robot.setShooter(MotorSetting.STOP);
-
-            robot.goTicks(robot.inchesToTicks(26),0.3);
-
-        } else if (allianceColor == RED && startingPosition == StartingPosition.BACKUP) {
-
-            robot.setPowerLeft(-0.3 * 0.75);
-            robot.setPowerRight(-0.3 * 1.0);
-            sleep(1800);
-            robot.stopAllMotors();
-            robot.setPowerLeft(+0.3 * 0.75);
-            robot.setPowerRight(-0.3 * 1.0);
-            sleep(500);
-            robot.stopAllMotors();
-            robot.setPowerLeft(-0.3 * 0.75);
-            robot.setPowerRight(-0.3 * 1.0);
-            sleep(1800);
-
-        } else if (allianceColor == BLUE && startingPosition == StartingPosition.BACKUP) {
-
-            robot.setPowerLeft(-0.3 * 0.75);
-            robot.setPowerRight(-0.3 * 1.0);
-            sleep(1800);
-            robot.stopAllMotors();
-
-        } else if (allianceColor == RED) {
-
-        } else if (allianceColor == BLUE) {
-//            robot.setPowerLeft(-0.3 * 0.75);
-//            robot.setPowerRight(-0.3 * 1.0);
-//            sleep(1800);
-//            robot.stopAllMotors();
-
-//            robot.calibrateGyro();
-//            sleep(5000);
-////            robot.goTicks(robot.inchesToTicks(23),0.8);
-//            robot.setShooter(MotorSetting.FORWARD);
-//            sleep(3000);
-//            robot.setBallPickup(MotorSetting.FORWARD);
-//            sleep(10000);
-//            robot.goTicks(robot.inchesToTicks(35.5),0.8);
+                robot.driveTankFor(-0.3, -0.3, 1800);
+                robot.stopAllMotors();
 
-        } else {
+            } else if (allianceColor == RED) {
 
-        }
-            //vvvvTEST?vvv
-//        // Turn on the shooters now, to give them time to spin up
-//        robot.setShooter(MotorSetting.FORWARD);
+            } else if (allianceColor == BLUE) {
+//                robot.setPowerLeft(-0.3 * 0.75);
+//                robot.setPowerRight(-0.3 * 1.0);
+//                sleep(1800);
+//                robot.stopAllMotors();
+
+//                robot.calibrateGyro();
+//                sleep(5000);
+//    //            robot.goTicks(robot.inchesToTicks(23),0.8);
+//                robot.setShooter(MotorSetting.FORWARD);
+//                sleep(3000);
+//                robot.setBallPickup(MotorSetting.FORWARD);
+//                sleep(10000);
+//                robot.goTicks(robot.inchesToTicks(35.5),0.8);
+
+            } else {
+
+            }
+                //vvvvTEST?vvv
+//            // Turn on the shooters now, to give them time to spin up
+//            robot.setShooter(MotorSetting.FORWARD);
 //
-//        // Move into position
-//        robot.goDistanceInCm(65.0, VelRobotConstants.DIRECTION_SOUTH, 1.0);
+//            // Move into position
+//            robot.goDistanceInCm(65.0, VelRobotConstants.DIRECTION_SOUTH, 1.0);
 //
-//        // Feed balls into shooter
-//        robot.setBallPickup(MotorSetting.FORWARD);
+//            // Feed balls into shooter
+//            robot.setBallPickup(MotorSetting.FORWARD);
 //
-//        // Wait for balls to shoot
-//        sleep(3000);
+//            // Wait for balls to shoot
+//            sleep(3000);
 //
-//        // Stop shooter
-//        robot.setBallPickup(MotorSetting.STOP);
-//        robot.setShooter(MotorSetting.STOP);
+//            // Stop shooter
+//            robot.setBallPickup(MotorSetting.STOP);
+//            robot.setShooter(MotorSetting.STOP);
 //
-//        // Move into ball
-//        robot.goDistanceInCm(65.0, VelRobotConstants.DIRECTION_SOUTH, 1.0);
+//            // Move into ball
+//            robot.goDistanceInCm(65.0, VelRobotConstants.DIRECTION_SOUTH, 1.0);
+        } finally {
+            robot.shutdown();
+        }
     }
 }
@@ -43,23 +43,23 @@ public class VelAutonomousProgramTesting extends LinearOpMode {
         robot.initializeRobot();
 
         // Wait for the start of the match!Thread.interrupted()
-        this.waitForStart();
-
-        robot.driveWithUS(VelRobotConstants.DIRECTION_SOUTHEAST, 0.4, 20);
-        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-//        robot.setMovement(VelRobotConstants.DIRECTION_SOUTH, 0.2, 0, 1);
-        Thread.sleep(200);
-        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-        robot.beaconTap(PublicEnums.AllianceColor.BLUE);
-        robot.setMovement(VelRobotConstants.DIRECTION_NORTH, 0.2,0, 0.8);
-        Thread.sleep(200);
-        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-        Thread.sleep(200);
-        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-        robot.beaconTap(PublicEnums.AllianceColor.BLUE);
-
+        try {
+            this.waitForStart();
 
+            robot.driveWithUS(VelRobotConstants.DIRECTION_SOUTHEAST, 0.4, 20);
+            robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+//            robot.setMovement(VelRobotConstants.DIRECTION_SOUTH, 0.2, 0, 1);
+            robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+            robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+            robot.beaconTap(PublicEnums.AllianceColor.BLUE);
+            robot.setMovement(VelRobotConstants.DIRECTION_NORTH, 0.2,0, 0.8);
+            Thread.sleep(200);
+            robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+            robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+            robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+            robot.beaconTap(PublicEnums.AllianceColor.BLUE);
+        } finally {
+            robot.shutdown();
+        }
     }
 }
@@ -51,52 +51,54 @@ public class VelAutonomousProgramWorld extends LinearOpMode {
         robot = new VelRobotAuto(this);
         robot.initializeRobot();
         // Wait for the start of the match!Thread.interrupted()
-        this.waitForStart();
+        try {
+            this.waitForStart();
 
-        if (allianceColor == RED) {
-            switch (startingPosition) {
-                case FAR_FROM_RAMP:
-                    break;
-                case MIDDLE:
-                    break;
-                case CLOSE_TO_RAMP:
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_NORTHEAST, 0.4, 20);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-                    robot.beaconTap(PublicEnums.AllianceColor.RED);
-                    robot.setMovement(VelRobotConstants.DIRECTION_SOUTH, 0.2,0, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-                    robot.beaconTap(PublicEnums.AllianceColor.RED);
-                    break;
-            }
-        } else if (allianceColor == BLUE) {
-            switch (startingPosition) {
-                case FAR_FROM_RAMP:
-                    break;
-                case MIDDLE:
-                    break;
-                case CLOSE_TO_RAMP:
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_SOUTHEAST, 0.4, 20);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-                    robot.beaconTap(PublicEnums.AllianceColor.BLUE);
-                    robot.setMovement(VelRobotConstants.DIRECTION_NORTH, 0.2,0, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    Thread.sleep(200);
-                    robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
-                    robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
-                    robot.beaconTap(PublicEnums.AllianceColor.BLUE);
-                    break;
+            if (allianceColor == RED) {
+                switch (startingPosition) {
+                    case FAR_FROM_RAMP:
+                        break;
+                    case MIDDLE:
+                        break;
+                    case CLOSE_TO_RAMP:
+                        robot.startLocalization(RED, VelRobotConstants.AUTO_START_CLOSE_TO_RAMP);
+                        // Drive up on the localizer's pose instead of one sensor at a time
+                        robot.approachBeaconLine(1, false);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+                        robot.beaconTap(PublicEnums.AllianceColor.RED);
+                        robot.approachBeaconLine(0, true);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+                        robot.beaconTap(PublicEnums.AllianceColor.RED);
+                        break;
+                }
+            } else if (allianceColor == BLUE) {
+                switch (startingPosition) {
+                    case FAR_FROM_RAMP:
+                        break;
+                    case MIDDLE:
+                        break;
+                    case CLOSE_TO_RAMP:
+                        robot.startLocalization(BLUE, VelRobotConstants.AUTO_START_CLOSE_TO_RAMP);
+                        // Drive up on the localizer's pose instead of one sensor at a time
+                        robot.approachBeaconLine(1, false);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+                        robot.beaconTap(PublicEnums.AllianceColor.BLUE);
+                        robot.approachBeaconLine(0, true);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_NORTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveToLine(VelRobotConstants.DIRECTION_SOUTH, 0.2, PublicEnums.GyroCorrection.NO, PublicEnums.BeaconNumber.TWO, 0.8);
+                        robot.driveWithUS(VelRobotConstants.DIRECTION_EAST, 0.2, 6);
+                        robot.beaconTap(PublicEnums.AllianceColor.BLUE);
+                        break;
+                }
             }
+        } finally {
+            robot.shutdown();
         }
     }
 }
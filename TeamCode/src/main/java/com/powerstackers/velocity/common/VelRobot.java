@@ -21,25 +21,25 @@
 package com.powerstackers.velocity.common;
 
 import com.powerstackers.velocity.common.enums.PublicEnums;
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
 import com.powerstackers.velocity.common.enums.PublicEnums.MotorSetting;
+import com.powerstackers.velocity.common.enums.PublicEnums.ShooterPowerState;
+import com.powerstackers.velocity.common.enums.PublicEnums.StopMode;
+import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cGyro;
 import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 import com.qualcomm.robotcore.hardware.CRServo;
 import com.qualcomm.robotcore.hardware.ColorSensor;
 import com.qualcomm.robotcore.hardware.DcMotor;
 import com.qualcomm.robotcore.hardware.DcMotorSimple;
 import com.qualcomm.robotcore.hardware.Gamepad;
-import com.qualcomm.robotcore.hardware.GyroSensor;
 import com.qualcomm.robotcore.hardware.OpticalDistanceSensor;
 import com.qualcomm.robotcore.hardware.Servo;
 import com.qualcomm.robotcore.hardware.UltrasonicSensor;
-import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.Range;
 import com.qualcomm.robotcore.hardware.I2cAddr;
 
 import static java.lang.Math.PI;
 import static java.lang.Math.abs;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
 import static java.lang.Math.sqrt;
 
 /**
@@ -77,7 +77,7 @@ public class VelRobot {
     public double matColorVal = 0;
     public int startDirection = 0;
 
-    GyroSensor sensorGyro;
+    ModernRoboticsI2cGyro sensorGyro;
     public ColorSensor sensorColor;
     public UltrasonicSensor rightBeaconUS = null;
     public UltrasonicSensor leftBeaconUS = null;
@@ -86,7 +86,19 @@ public class VelRobot {
     public ColorSensor sensorColorGroundR;
     public PublicEnums.Direction robotDirection = PublicEnums.Direction.N;
 
-    private final ElapsedTime timer = new ElapsedTime();
+    private Shooter shooter;
+    private final MecanumKinematics kinematics = new MecanumKinematics();
+    private final DriveLimiter driveLimiter = new DriveLimiter();
+    private final double[] drivePowers = new double[MecanumKinematics.MOTOR_COUNT];
+    private VoltageCompensator batteryVoltage;
+    private StopMode stopMode = null;
+    private ShooterPowerManager shooterPower;
+    private final WriteStats writeStats = new WriteStats();
+    private CachingLed colorLed;
+    private boolean fieldCentric = VelRobotConstants.FIELD_CENTRIC_DEFAULT;
+    private final GyroBiasEstimator gyroBias = new GyroBiasEstimator();
+    private double headingZero = 0.0;
+    private final LineDetector groundLine = new LineDetector();
 
     /**
      * Construct a Robot object.
@@ -105,28 +117,35 @@ public class VelRobot {
         mode.telemetry.update();
         mode.telemetry.addData("Status: ", "Initalizing");
         mode.telemetry.update();
-        motorDrive1 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
+        motorDrive1 = getMotor("motorFrontLeft");
         //motorDrive1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive2 = mode.hardwareMap.dcMotor.get("motorFrontRight");
+        motorDrive2 = getMotor("motorFrontRight");
         //motorDrive2.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive3 = mode.hardwareMap.dcMotor.get("motorBackLeft");
+        motorDrive3 = getMotor("motorBackLeft");
         //motorDrive3.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive4 = mode.hardwareMap.dcMotor.get("motorBackRight");
+        motorDrive4 = getMotor("motorBackRight");
 //        motorDrive4.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorRLift = mode.hardwareMap.dcMotor.get("motorRightLift");
+        setStopMode(VelRobotConstants.TELEOP_STOP_MODE);
+        motorRLift = getMotor("motorRightLift");
         motorRLift.setDirection(DcMotorSimple.Direction.REVERSE);
-        motorLLift = mode.hardwareMap.dcMotor.get("motorLeftLift");
-        motorPickup = mode.hardwareMap.dcMotor.get("motorBallPickup");
+        motorLLift = getMotor("motorLeftLift");
+        motorPickup = getMotor("motorBallPickup");
 
-        motorShooter1 = mode.hardwareMap.dcMotor.get("motorShooter");
+        motorShooter1 = getMotor("motorShooter");
         motorShooter1.setZeroPowerBehavior(DcMotor.ZeroPowerBehavior.FLOAT);
         //motorShooter1.setDirection(DcMotorSimple.Direction.REVERSE);
-        motorShooter1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        servoShoot = mode.hardwareMap.servo.get("servoShoot");
-        servoBallGrab = mode.hardwareMap.servo.get("servoBallGrab");
-        servoBeaconRight = mode.hardwareMap.servo.get("servoBeaconRight");
-        servoBeaconLeft = mode.hardwareMap.servo.get("servoBeaconLeft");
-        sensorGyro = mode.hardwareMap.gyroSensor.get("sensorGyro");
+        servoShoot = getServo("servoShoot");
+        shooter = new Shooter(motorShooter1, servoShoot,
+                VoltageCompensator.findVoltageSensor(mode.hardwareMap), Shooter.loadModel());
+        shooter.start();
+        batteryVoltage = shooter.getVoltageCompensator();
+        shooterPower = new ShooterPowerManager(shooter);
+        servoBallGrab = getServo("servoBallGrab");
+        servoBeaconRight = getServo("servoBeaconRight");
+        servoBeaconLeft = getServo("servoBeaconLeft");
+        sensorGyro = (ModernRoboticsI2cGyro) mode.hardwareMap.gyroSensor.get("sensorGyro");
+        // Doesn't block; the gyro finishes calibrating while init runs. Keep the robot still.
+        sensorGyro.calibrate();
 
 //        mode.telemetry.addData("Gyro: ", "Gyro Calibration Started");
 //        mode.telemetry.update();
@@ -141,7 +160,6 @@ public class VelRobot {
 //        }
 //        mode.telemetry.addData("Gyro: ", "Gyro Calibration Finished");
 //        mode.telemetry.update();
-        servoShoot.setPosition( VelRobotConstants.SHOOT_SERVO_CLOSED);
         sensorColor = mode.hardwareMap.colorSensor.get("sensorColor");
         sensorColorGroundL = mode.hardwareMap.colorSensor.get("sensorColorGroundL");
         sensorColorGroundR = mode.hardwareMap.colorSensor.get("sensorColorGroundR");
@@ -152,12 +170,13 @@ public class VelRobot {
         groundODS = mode.hardwareMap.opticalDistanceSensor.get("ODS");
         rightBeaconUS = mode.hardwareMap.ultrasonicSensor.get("RUS");
         leftBeaconUS = mode.hardwareMap.ultrasonicSensor.get("LUS");
-        sensorColor.enableLed(true);
+        colorLed = new CachingLed(sensorColor, writeStats);
+        colorLed.enable(true);
         sensorColorGroundL.enableLed(true);
         sensorColorGroundR.enableLed(true);
-        motorShooter1.setMaxSpeed((int) (VelRobotConstants.MOTOR_SHOOTER_MAX_RPM*0.74));
         stopMovement();
         matColorVal = groundODS.getLightDetected();
+        groundLine.update(System.nanoTime(), matColorVal);
 
         beaconServoReset();
 //        servoBallGrab.setPosition(0.493);
@@ -166,23 +185,37 @@ public class VelRobot {
         mode.telemetry.update();
     }
 
-    public void displayDirection() {
-        mode.telemetry.addData("Robot Direction:", robotDirection);
-        mode.telemetry.update();
+    private DcMotor getMotor(String name) {
+        return new CachingDcMotor(mode.hardwareMap.dcMotor.get(name), writeStats);
+    }
+
+    private Servo getServo(String name) {
+        return new CachingServo(mode.hardwareMap.servo.get(name), writeStats);
     }
 
     /**
-     * Get the revolutions per minute of the shooter motor. Eats up 100ms!
+     * Turn the beacon color sensor's LED on or off. Only sends the command if it changes.
      *
-     * @return Double representing the rpm.
+     * @param enabled True for on.
      */
+    public void setColorLed(boolean enabled) {
+        colorLed.enable(enabled);
+    }
+
+    /**
+     * @return Counts of motor, servo and LED writes sent to the hardware and skipped.
+     */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    public void displayDirection() {
+        mode.telemetry.addData("Robot Direction:", robotDirection);
+        mode.telemetry.update();
+    }
 
     public boolean isShooterRunning() {
-        if (motorShooter1.getPower() > 0) {
-            return true;
-        } else {
-            return false;
-        }
+        return shooter.isRunning();
     }
 
     public void beaconServoReset() {
@@ -190,19 +223,14 @@ public class VelRobot {
         servoBeaconLeft.setPosition(VelRobotConstants.BEACON_LEFT_BACK);
     }
 
+    /**
+     * Get the revolutions per minute of the shooter motor. The shooter's control thread keeps
+     * this up to date, so it does not block.
+     *
+     * @return Double representing the rpm.
+     */
     public double getShooterRPM() {
-
-        int endEncoder;
-        int startEncoder = motorShooter1.getCurrentPosition();
-         timer.reset();
-
-        //noinspection StatementWithEmptyBody
-        while (timer.milliseconds() < 100) {
-        }
-
-        endEncoder = motorShooter1.getCurrentPosition();
-
-        return (endEncoder - startEncoder) * (600.0 / 44.4);
+        return shooter.getRpm();
     }
 
     /**
@@ -244,53 +272,25 @@ public class VelRobot {
 
         }
     }
+    /**
+     * Treat another side of the robot as the front for {@link #setMovement} and the other
+     * angle-based drive methods. Only the drive angle is turned, so nothing is written to the
+     * motors and this is cheap enough to call every loop.
+     *
+     * @param direction The side of the robot to treat as the front.
+     */
     public void directionChange(PublicEnums.Direction direction) {
         robotDirection = direction;
+        kinematics.setOrientation(direction);
+    }
 
-        switch (direction) {
-            case N:
-                motorDrive1.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive2.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive3.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive4.setDirection(DcMotorSimple.Direction.FORWARD);
-                mode.telemetry.addData("Robot Direction:", "N");
-                break;
-            case E:
-                motorDrive1.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive2.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive3.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive4.setDirection(DcMotorSimple.Direction.REVERSE);
-
-                mode.telemetry.addData("Robot Direction:", "E");
-
-                break;
-            case S:
-                motorDrive1.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive2.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive3.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive4.setDirection(DcMotorSimple.Direction.REVERSE);
-                mode.telemetry.addData("Robot Direction:", "S");
-
-                break;
-            case W:
-                motorDrive1.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive2.setDirection(DcMotorSimple.Direction.REVERSE);
-                motorDrive3.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive4.setDirection(DcMotorSimple.Direction.FORWARD);
-
-                mode.telemetry.addData("Robot Direction:", "W");
-
-                break;
-            default:
-                motorDrive1.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive2.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive3.setDirection(DcMotorSimple.Direction.FORWARD);
-                motorDrive4.setDirection(DcMotorSimple.Direction.FORWARD);
-                mode.telemetry.addData("Robot Direction:", "N");
-                break;
-
-        }
-        mode.telemetry.update();
+    /**
+     * Choose how drive powers over 1 are brought back down.
+     *
+     * @param desaturation Scale everything together, or keep the rotation whole.
+     */
+    public void setDriveDesaturation(Desaturation desaturation) {
+        kinematics.setDesaturation(desaturation);
     }
 
     /**
@@ -301,59 +301,74 @@ public class VelRobot {
     public void setShooter(MotorSetting setting) {
         switch (setting) {
             case FORWARD:
-                setShooterRpm(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM);
+                setShooterState(ShooterPowerState.READY);
                 break;
             case STOP:
-                motorShooter1.setPower(0.0);
+                setShooterState(ShooterPowerState.OFF);
                 break;
             default:
-                motorShooter1.setPower(0.0);
+                setShooterState(ShooterPowerState.OFF);
                 break;
         }
     }
 
     /**
-     * Set the RPM of the shooter motor. Sets the speed as a percentage of the maximum RPM.
-     * @param rpm RPM of motor that we want to set, can be positive or negative.
+     * Set the shooter power state, and update the flywheel's share of the current budget for
+     * what the drive is using right now. Call this every loop, after setting the drive.
+     *
+     * @param state OFF, IDLE between volleys, or READY to shoot.
      */
-//    private void setShooterRpm(int rpm) {
-//        double shootRpm = getShooterRPM();
-//
-//        // Uses somehting called a Schmitt trigger. Has an upper and lower threshold. Should stop us
-//        // from bouncing around.
-//        // If RPM is below the lower threshold, add speed. If it is above the upper threshold,
-//        // subtract speed. If it is between the thresholds, do nothing. Remember, don't go outside
-//        // the limits of our motor values.
-//        if (shootRpm < rpm - VelRobotConstants.SCHMITT_LOWER
-//                && motorShooter1.getPower() != 1.0) {
-//            motorShooter1.setPower(motorShooter1.getPower() + 0.05);
-//        } else if (shootRpm > rpm + VelRobotConstants.SCHMITT_UPPER
-//                && motorShooter1.getPower() != 0.0) {
-//            motorShooter1.setPower(motorShooter1.getPower() - 0.05);
-//        }
-//    }
+    public void setShooterState(ShooterPowerState state) {
+        shooterPower.setState(state);
+        shooterPower.update(getDrivePowerSum());
+    }
 
     /**
-     * Set the RPM of the shooter motor. Sets the speed as a percentage of the maximum RPM.
+     * @return The shooter power state.
+     */
+    public ShooterPowerState getShooterState() {
+        return shooterPower.getState();
+    }
+
+    /**
+     * @return Sum of the absolute powers last sent to the drive motors. Reads what we sent
+     * rather than asking the motors, which would cost a bus read each.
+     */
+    public double getDrivePowerSum() {
+        return abs(drivePowers[0]) + abs(drivePowers[1])
+                + abs(drivePowers[2]) + abs(drivePowers[3]);
+    }
+
+    /**
+     * Feed balls into the shooter. While the flywheel is READY, a ball is only let through when
+     * the wheel is up to speed, and the feed closes again as soon as the shot is detected. While
+     * it is only IDLE the feed stays closed.
      *
-     * @param rpm RPM of motor that we want to set, can be positive or negative.
+     * @param feeding True to feed balls, false to hold them.
      */
-    private void setShooterRpm(int rpm) {
-//        motorShooter1.setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
-        if (Math.abs(rpm) <= VelRobotConstants.MOTOR_SHOOTER_MAX_RPM) {
-            motorShooter1.setPower((double) rpm / VelRobotConstants.MOTOR_SHOOTER_MAX_RPM);
-        } else {
-            motorShooter1.setPower(rpm > 0 ? 1.0 : -1.0);
-        }
-//
-//        if (getShooterRPM() > 650){
-//        motorShooter1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-//
-//        if (Math.abs(rpm) <= VelRobotConstants.MOTOR_SHOOTER_MAX_RPM) {
-//            motorShooter1.setPower((double) rpm / VelRobotConstants.MOTOR_SHOOTER_MAX_RPM);
-//        } else {
-//            motorShooter1.setPower(rpm > 0 ? 1.0 : -1.0);
-//        }}
+    public void setShooterFeed(boolean feeding) {
+        shooter.setFeeding(feeding);
+    }
+
+    /**
+     * @return Number of shots detected since the robot was initialized.
+     */
+    public int getShotCount() {
+        return shooter.getShotCount();
+    }
+
+    /**
+     * @return Time between the last two shots, in milliseconds.
+     */
+    public double getLastShotCycleMs() {
+        return shooter.getLastShotCycleMs();
+    }
+
+    /**
+     * @return Release speed, dip and recovery statistics for every shot so far.
+     */
+    public ShotMetrics getShotMetrics() {
+        return shooter.getMetrics();
     }
 
     /**
@@ -393,56 +408,75 @@ public class VelRobot {
      * @param angle    The angle we want the robot to move, in radians, where "forward" is pi/2
      * @param speed    The movement speed we want, ranging from -1:1
      * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power, from 0:1
      */
     public void setMovement(double angle, double speed, double rotation, double scale) {
-        // Shift angle by 45 degrees, since our drive train is x-shaped and not cross-shaped
-        angle += PI / 4;
-
-        // Cut rotation in half because we don't want to spin THAT fast
-        rotation *= 0.5;
+        kinematics.calculate(angle, speed, rotation, scale);
+        driveLimiter.reset();
+        setDrivePowers(kinematics.getPower(0), kinematics.getPower(1),
+                kinematics.getPower(2), kinematics.getPower(3));
+    }
 
-        // Normalize magnitudes so that "straight forward" has a magnitude of 1
-        speed *= sqrt(2);
+    /**
+     * Like {@link #setMovement}, but each wheel's power ramps up at a limited rate. Teleop doesn't
+     * set the drive's run mode, so the limiter's slip detection is left off. The ramp only
+     * advances when this is called, so call it every loop.
+     *
+     * @param angle    The angle we want the robot to move, in radians, where "forward" is pi/2
+     * @param speed    The movement speed we want, ranging from -1:1
+     * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power, from 0:1
+     */
+    public void setMovementLimited(double angle, double speed, double rotation, double scale) {
+        kinematics.calculate(angle, speed, rotation, scale);
+        driveLimiter.update(System.nanoTime(), kinematics,
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition());
+        setDrivePowers(driveLimiter.getPower(0), driveLimiter.getPower(1),
+                driveLimiter.getPower(2), driveLimiter.getPower(3));
+    }
 
-        double sinDir = sin(angle);
-        double cosDir = cos(angle);
+    /**
+     * Send powers to the drive motors, scaled up for a tired battery so a power covers the same
+     * ground on any battery.
+     */
+    private void setDrivePowers(double power1, double power2, double power3, double power4) {
+        drivePowers[0] = power1;
+        drivePowers[1] = power2;
+        drivePowers[2] = power3;
+        drivePowers[3] = power4;
+        batteryVoltage.compensate(drivePowers);
+        motorDrive1.setPower(drivePowers[0]);
+        motorDrive2.setPower(drivePowers[1]);
+        motorDrive3.setPower(drivePowers[2]);
+        motorDrive4.setPower(drivePowers[3]);
+    }
 
-        // None of this stuff should happen if the speed is 0.
-        if (speed == 0.0 && rotation == 0.0) {
-            stopMovement();
+    /**
+     * Choose how the drive stops when the stick is let go. Teleop can't stop the loop to wait out
+     * a reverse pulse, so ACTIVE brakes the same as BRAKE. The motors' zero power behavior is only
+     * written when this changes.
+     *
+     * @param stopMode COAST floats the motors; BRAKE and ACTIVE short them.
+     */
+    public void setStopMode(StopMode stopMode) {
+        if (stopMode == this.stopMode) {
             return;
         }
+        this.stopMode = stopMode;
+        DcMotor.ZeroPowerBehavior behavior = stopMode == StopMode.COAST
+                ? DcMotor.ZeroPowerBehavior.FLOAT : DcMotor.ZeroPowerBehavior.BRAKE;
+        motorDrive1.setZeroPowerBehavior(behavior);
+        motorDrive2.setZeroPowerBehavior(behavior);
+        motorDrive3.setZeroPowerBehavior(behavior);
+        motorDrive4.setZeroPowerBehavior(behavior);
+    }
 
-        // Rotation is scaled down by 50% so that it doesn't completely cancel out any motors
-        double multipliers[] = new double[4];
-        multipliers[0] = (speed * sinDir) + rotation;
-        multipliers[1] = (speed * cosDir) + rotation;
-        multipliers[2] = (speed * -cosDir) + rotation;
-        multipliers[3] = (speed * -sinDir) + rotation;
-
-        double largest = abs(multipliers[0]);
-        for (int i = 1; i < 4; i++) {
-            if (abs(multipliers[i]) > largest)
-                largest = abs(multipliers[i]);
-        }
-
-        // Only normalize multipliers if largest exceeds 1.0
-        if (largest > 1.0) {
-            for (int i = 0; i < 4; i++) {
-                multipliers[i] = multipliers[i] / largest;
-            }
-        }
-
-        // Scale if needed, 0.0 < scale < 1.0;
-//        for (int i = 0; i < 4; i++) {
-//            multipliers[i] = multipliers[i] * scale;
-//        }
-
-        // TODO Fix wiring. Motors 2 and 4 are plugged into the wrong motor ports.
-        motorDrive1.setPower(multipliers[0] * scale);
-        motorDrive4.setPower(multipliers[1] * scale);
-        motorDrive3.setPower(multipliers[2] * scale);
-        motorDrive2.setPower(multipliers[3] * scale);
+    /**
+     * @return How the drive stops.
+     */
+    public StopMode getStopMode() {
+        return stopMode;
     }
 
     public void driveToLine(double angle, double speed, PublicEnums.GyroCorrection gyroCorrection, PublicEnums.BeaconNumber beaconNumber) {
@@ -455,31 +489,6 @@ public class VelRobot {
         // Normalize magnitudes so that "straight forward" has a magnitude of 1
         speed *= sqrt(2);
 
-        double sinDir = sin(angle);
-        double cosDir = cos(angle);
-
-        // None of this stuff should happen if the speed is 0.
-
-        // Rotation is scaled down by 50% so that it doesn't completely cancel out any motors
-        double multipliers[] = new double[4];
-        multipliers[0] = (speed * sinDir);
-        multipliers[1] = (speed * cosDir);
-        multipliers[2] = (speed * -cosDir);
-        multipliers[3] = (speed * -sinDir);
-
-        double largest = abs(multipliers[0]);
-        for (int i = 1; i < 4; i++) {
-            if (abs(multipliers[i]) > largest)
-                largest = abs(multipliers[i]);
-        }
-
-        // Only normalize multipliers if largest exceeds 1.0
-        if (largest > 1.0) {
-            for (int i = 0; i < 4; i++) {
-                multipliers[i] = multipliers[i] / largest;
-            }
-        }
-
         // Scale if needed, 0.0 < scale < 1.0;
 //        for (int i = 0; i < 4; i++) {
 //            multipliers[i] = multipliers[i] * scale;
@@ -599,40 +608,46 @@ public class VelRobot {
         return groundODS.getLightDetected();
     }
 
+    /**
+     * Read the ground light sensor and check it against the mat.
+     *
+     * @return True unless the sensor is over a line.
+     */
     public boolean isThereMat() {
-
-        if (getGroundLight() - .3 <= matColorVal) {
-            return true;
-        } else {
-            return false;
-        }
+        groundLine.update(System.nanoTime(), getGroundLight());
+        return !groundLine.isOnLine();
     }
 
     /**
      * Completely stop the drive motors.
      */
     public void stopMovement() {
-        motorDrive1.setPower(0.0);
-        motorDrive2.setPower(0.0);
-        motorDrive3.setPower(0.0);
-        motorDrive4.setPower(0.0);
+        driveLimiter.reset();
+        setDrivePowers(0.0, 0.0, 0.0, 0.0);
     }
 
     /**
      * Completely stop all motors on the robot.
      */
     public void stopAllMotors() {
-        motorDrive1.setPower(0.0);
-        motorDrive2.setPower(0.0);
-        motorDrive3.setPower(0.0);
-        motorDrive4.setPower(0.0);
+        driveLimiter.reset();
+        setDrivePowers(0.0, 0.0, 0.0, 0.0);
 
-        motorShooter1.setPower(0.0);
+        shooterPower.setState(ShooterPowerState.OFF);
         motorPickup.setPower(0.0);
         motorLLift.setPower(0.0);
         motorRLift.setPower(0.0);
     }
 
+    /**
+     * Stop all motors and shut down the background control threads. Call this when the OpMode
+     * ends.
+     */
+    public void shutdown() {
+        stopAllMotors();
+        shooter.shutdown();
+    }
+
     /**
      * Get direction of travel from the joystick.
      *
@@ -718,7 +733,7 @@ public class VelRobot {
     }
 
     public double getShooterPower() {
-        return motorShooter1.getPower();
+        return shooter.getPower();
     }
 
     public long getDrive1Encoder() {
@@ -745,6 +760,91 @@ public class VelRobot {
 //        return this.servoBallGrab.getPosition();
 //    }
 
+    /**
+     * Read the gyro and the drive encoders, learning the gyro's drift whenever the robot is still.
+     * Call this once every loop, including during init, so the drift is known by the start.
+     */
+    public void updateGyroBias() {
+        if (sensorGyro.isCalibrating()) {
+            gyroBias.reset();
+            return;
+        }
+        gyroBias.update(System.nanoTime(), Math.toRadians(sensorGyro.getIntegratedZValue()),
+                sensorGyro.rawZ(),
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition());
+    }
+
+    /**
+     * Make the robot's current heading the field's forward direction for field-centric drive.
+     */
+    public void zeroHeading() {
+        updateGyroBias();
+        headingZero = gyroBias.getHeading();
+    }
+
+    /**
+     * @return How far the robot has turned counterclockwise since {@link #zeroHeading()}, in
+     * radians, with the gyro's drift taken out as of the last {@link #updateGyroBias()}.
+     */
+    public double getFieldHeading() {
+        return gyroBias.getHeading() - headingZero;
+    }
+
+    /**
+     * @return How fast the gyro is drifting, as learned while the robot sits still, in degrees
+     * per second counterclockwise.
+     */
+    public double getGyroDriftRate() {
+        return Math.toDegrees(gyroBias.getDriftRate());
+    }
+
+    /**
+     * @return True while the gyro is still calibrating.
+     */
+    public boolean isGyroCalibrating() {
+        return sensorGyro.isCalibrating();
+    }
+
+    /**
+     * Switch between field-centric and robot-centric drive. Field-centric drive doesn't use the
+     * N/E/S/W orientation, so switching to it puts the drive back to N.
+     *
+     * @param enabled True for field-centric.
+     */
+    public void setFieldCentric(boolean enabled) {
+        fieldCentric = enabled;
+        if (enabled) {
+            directionChange(PublicEnums.Direction.N);
+        }
+    }
+
+    /**
+     * @return True if {@link #drive} is field-centric.
+     */
+    public boolean isFieldCentric() {
+        return fieldCentric;
+    }
+
+    /**
+     * Drive from driver input. In field-centric mode the angle is relative to the field, as set by
+     * {@link #zeroHeading()}, and is rotated by the gyro heading so pushing the stick away from the
+     * driver always drives away from the driver. Otherwise the angle is relative to the current
+     * N/E/S/W orientation. Power ramps up at a limited rate, so call this every loop.
+     *
+     * @param angle    The angle we want to move, in radians, where "forward" is pi/2
+     * @param speed    The movement speed we want, ranging from -1:1
+     * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power, from 0:1
+     */
+    public void drive(double angle, double speed, double rotation, double scale) {
+        if (fieldCentric) {
+            setMovementLimited(angle - getFieldHeading(), speed, rotation, scale);
+        } else {
+            setMovementLimited(angle, speed, rotation, scale);
+        }
+    }
+
     public double getGyroHeading() {
         return sensorGyro.getHeading();
     }
@@ -21,6 +21,8 @@
 package com.powerstackers.velocity.common;
 
 import com.powerstackers.velocity.common.enums.PublicEnums;
+import com.powerstackers.velocity.common.enums.PublicEnums.AllianceColor;
+import com.powerstackers.velocity.common.enums.PublicEnums.StopMode;
 import com.powerstackers.velocity.common.enums.StartingPosition;
 import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cGyro;
 import com.qualcomm.robotcore.eventloop.opmode.LinearOpMode;
@@ -35,15 +37,10 @@ import com.qualcomm.robotcore.hardware.I2cAddr;
 import com.qualcomm.robotcore.hardware.OpticalDistanceSensor;
 import com.qualcomm.robotcore.hardware.Servo;
 import com.qualcomm.robotcore.hardware.UltrasonicSensor;
-import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.Range;
 import com.qualcomm.robotcore.util.ThreadPool;
 
 import static java.lang.Math.PI;
-import static java.lang.Math.abs;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
-import static java.lang.Math.sqrt;
 import static java.lang.Thread.sleep;
 
 /**
@@ -121,7 +118,23 @@ public class VelRobotAuto {
     public ColorSensor sensorColorGroundR;
     public PublicEnums.Direction robotDirection = PublicEnums.Direction.N;
 
-    private final ElapsedTime timer = new ElapsedTime();
+    private Shooter shooter;
+    private final MecanumKinematics kinematics = new MecanumKinematics();
+    private final DriveLimiter driveLimiter = new DriveLimiter();
+    private final double[] drivePowers = new double[MecanumKinematics.MOTOR_COUNT];
+    private VoltageCompensator batteryVoltage;
+    private final DriveBrake driveBrake = new DriveBrake();
+    private StopMode stopMode = null;
+    private DcMotor.RunMode driveRunMode = null;
+    private MecanumOdometry odometry;
+    private final HeadingEstimator headingEstimator = new HeadingEstimator();
+    private final GyroBiasEstimator gyroBias = new GyroBiasEstimator();
+    private FieldLocalizer localizer = null;
+    private final UltrasonicFilter leftUSFilter = new UltrasonicFilter();
+    private final UltrasonicFilter rightUSFilter = new UltrasonicFilter();
+    private final LineDetector frontLine = new LineDetector();
+    private final LineDetector backLine = new LineDetector();
+    private WheelVelocityController wheelVelocity;
 
     /**
      * Construct a Robot object.
@@ -150,6 +163,11 @@ public class VelRobotAuto {
         //motorDrive3.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
         motorDrive4 = mode.hardwareMap.dcMotor.get("motorBackRight");
 //        motorDrive4.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
+        wheelVelocity = new WheelVelocityController();
+        setStopMode(VelRobotConstants.AUTO_STOP_MODE);
+        odometry = new MecanumOdometry(motorDrive1, motorDrive2, motorDrive3, motorDrive4,
+                ticksToCm(1), VelRobotConstants.ODOMETRY_TURN_RADIUS_CM);
+        odometry.start();
         motorRLift = mode.hardwareMap.dcMotor.get("motorRightLift");
         motorRLift.setDirection(DcMotorSimple.Direction.REVERSE);
         motorLLift = mode.hardwareMap.dcMotor.get("motorLeftLift");
@@ -158,13 +176,17 @@ public class VelRobotAuto {
         motorShooter1 = mode.hardwareMap.dcMotor.get("motorShooter");
         motorShooter1.setZeroPowerBehavior(DcMotor.ZeroPowerBehavior.FLOAT);
         motorShooter1.setDirection(DcMotorSimple.Direction.REVERSE);
-        motorShooter1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
 
         servoBallGrab = mode.hardwareMap.servo.get("servoBallGrab");
         servoBeaconRight = mode.hardwareMap.servo.get("servoBeaconRight");
         servoBeaconLeft = mode.hardwareMap.servo.get("servoBeaconLeft");
         sensorGyro = (ModernRoboticsI2cGyro) mode.hardwareMap.gyroSensor.get("sensorGyro");
+        odometry.useGyro(sensorGyro, headingEstimator, gyroBias);
         servoShoot = mode.hardwareMap.servo.get("servoShoot");
+        shooter = new Shooter(motorShooter1, servoShoot,
+                VoltageCompensator.findVoltageSensor(mode.hardwareMap), Shooter.loadModel());
+        shooter.start();
+        batteryVoltage = shooter.getVoltageCompensator();
 
 //        mode.telemetry.addData("Gyro: ", "Gyro Calibration Started");
 //        mode.telemetry.update();
@@ -208,29 +230,20 @@ public class VelRobotAuto {
         sensorColor.enableLed(false);
         sensorColorGroundL.enableLed(true);
         sensorColorGroundR.enableLed(true);
-        motorShooter1.setMaxSpeed((int) (VelRobotConstants.MOTOR_SHOOTER_MAX_RPM * 0.74));
         stopMovement();
         matColorVal = groundODS.getLightDetected();
         matColorValBack = groundODSBack.getLightDetected();
-        servoShoot.setPosition(VelRobotConstants.SHOOT_SERVO_CLOSED);
+        long nanos = System.nanoTime();
+        frontLine.update(nanos, matColorVal);
+        backLine.update(nanos, matColorValBack);
         beaconServoReset();
         //servoBallGrab.setPosition(VelRobotConstants.SERVO_BALL_GRAB_STOWED);
         mode.telemetry.addData("Status: ", "Initialized");
         mode.telemetry.update();
     }
 
-    /**
-     * Get the revolutions per minute of the shooter motor. Eats up 100ms!
-     *
-     * @return Double representing the rpm.
-     */
-
     public boolean isShooterRunning() {
-        if (motorShooter1.getPower() > 0) {
-            return true;
-        } else {
-            return false;
-        }
+        return shooter.isRunning();
     }
 
     public void beaconServoReset() {
@@ -238,66 +251,26 @@ public class VelRobotAuto {
         servoBeaconLeft.setPosition(VelRobotConstants.BEACON_LEFT_BACK);
     }
 
+    /**
+     * Get the revolutions per minute of the shooter motor. The shooter's control thread keeps
+     * this up to date, so it does not block.
+     *
+     * @return Double representing the rpm.
+     */
     public double getShooterRPM() {
-
-        int endEncoder;
-        int startEncoder = motorShooter1.getCurrentPosition();
-        timer.reset();
-
-        //noinspection StatementWithEmptyBody
-        while (timer.milliseconds() < 100) {
-        }
-
-        endEncoder = motorShooter1.getCurrentPosition();
-
-        return (endEncoder - startEncoder) * (600.0 / 44.4);
+        return shooter.getRpm();
     }
 
+    /**
+     * Treat another side of the robot as the front for {@link #setMovement} and the other
+     * angle-based drive methods. Only the drive angle is turned, so nothing is written to the
+     * motors and this is cheap enough to call every loop.
+     *
+     * @param direction The side of the robot to treat as the front.
+     */
     public void directionChange(PublicEnums.Direction direction) {
         robotDirection = direction;
-
-        switch (direction) {
-            case N:
-                motorDrive1 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
-                motorDrive2 = mode.hardwareMap.dcMotor.get("motorFrontRight");
-                motorDrive3 = mode.hardwareMap.dcMotor.get("motorBackLeft");
-                motorDrive4 = mode.hardwareMap.dcMotor.get("motorBackRight");
-                mode.telemetry.addData("Robot Direction:", "N");
-                break;
-            case E:
-                motorDrive1 = mode.hardwareMap.dcMotor.get("motorFrontRight");
-                motorDrive2 = mode.hardwareMap.dcMotor.get("motorBackRight");
-                motorDrive3 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
-                motorDrive4 = mode.hardwareMap.dcMotor.get("motorBackLeft");
-                mode.telemetry.addData("Robot Direction:", "E");
-
-                break;
-            case S:
-                motorDrive1 = mode.hardwareMap.dcMotor.get("motorBackRight");
-                motorDrive2 = mode.hardwareMap.dcMotor.get("motorBackLeft");
-                motorDrive3 = mode.hardwareMap.dcMotor.get("motorFrontRight");
-                motorDrive4 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
-                mode.telemetry.addData("Robot Direction:", "S");
-
-                break;
-            case W:
-                motorDrive1 = mode.hardwareMap.dcMotor.get("motorBackLeft");
-                motorDrive2 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
-                motorDrive3 = mode.hardwareMap.dcMotor.get("motorBackRight");
-                motorDrive4 = mode.hardwareMap.dcMotor.get("motorFrontRight");
-                mode.telemetry.addData("Robot Direction:", "W");
-
-                break;
-            default:
-                motorDrive1 = mode.hardwareMap.dcMotor.get("motorFrontLeft");
-                motorDrive2 = mode.hardwareMap.dcMotor.get("motorFrontRight");
-                motorDrive3 = mode.hardwareMap.dcMotor.get("motorBackLeft");
-                motorDrive4 = mode.hardwareMap.dcMotor.get("motorBackRight");
-                mode.telemetry.addData("Robot Direction:", "N");
-                break;
-
-        }
-        mode.telemetry.update();
+        kinematics.setOrientation(direction);
     }
 
     /**
@@ -311,56 +284,118 @@ public class VelRobotAuto {
                 setShooterRpm(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM);
                 break;
             case STOP:
-                motorShooter1.setPower(0.0);
+                shooter.stop();
                 break;
             default:
-                motorShooter1.setPower(0.0);
+                shooter.stop();
                 break;
         }
     }
 
     /**
-     * Set the RPM of the shooter motor. Sets the speed as a percentage of the maximum RPM.
-     * @param rpm RPM of motor that we want to set, can be positive or negative.
+     * Set the RPM of the shooter motor. The shooter's control thread holds the wheel at this
+     * speed until it is changed.
+     *
+     * @param rpm RPM of motor that we want to set.
      */
-//    private void setShooterRpm(int rpm) {
-//        double shootRpm = getShooterRPM();
-//
-//        // Uses somehting called a Schmitt trigger. Has an upper and lower threshold. Should stop us
-//        // from bouncing around.
-//        // If RPM is below the lower threshold, add speed. If it is above the upper threshold,
-//        // subtract speed. If it is between the thresholds, do nothing. Remember, don't go outside
-//        // the limits of our motor values.
-//        if (shootRpm < rpm - VelRobotConstants.SCHMITT_LOWER
-//                && motorShooter1.getPower() != 1.0) {
-//            motorShooter1.setPower(motorShooter1.getPower() + 0.05);
-//        } else if (shootRpm > rpm + VelRobotConstants.SCHMITT_UPPER
-//                && motorShooter1.getPower() != 0.0) {
-//            motorShooter1.setPower(motorShooter1.getPower() - 0.05);
-//        }
-//    }
+    private void setShooterRpm(int rpm) {
+        shooter.setTargetRpm(rpm);
+    }
 
     /**
-     * Set the RPM of the shooter motor. Sets the speed as a percentage of the maximum RPM.
+     * @return True if the flywheel has held its target speed long enough to shoot.
+     */
+    public boolean isShooterReady() {
+        return shooter.isReady();
+    }
+
+    /**
+     * Start spinning the flywheel up to the shooting target without waiting for it. Use this to
+     * spin up while driving, then {@link AsyncAction#await()} it before shooting.
      *
-     * @param rpm RPM of motor that we want to set, can be positive or negative.
+     * @return The spin-up, to await later.
      */
-    private void setShooterRpm(int rpm) throws InterruptedException {
-        motorShooter1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        if (Math.abs(rpm) <= VelRobotConstants.MOTOR_SHOOTER_MAX_RPM) {
-            motorShooter1.setPower((double) rpm / VelRobotConstants.MOTOR_SHOOTER_MAX_RPM);
-        } else {
-            motorShooter1.setPower(rpm > 0 ? 1.0 : -1.0);
+    public AsyncAction startShooterSpinUp() {
+        return new ShooterSpinUp(shooter, VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM);
+    }
+
+    /**
+     * Wait for the flywheel to reach its target speed. The timeout is the spin-up time predicted
+     * by the flywheel model plus a margin, so a good battery fires as soon as it can and a weak one
+     * doesn't hold autonomous up forever.
+     *
+     * @return True if the flywheel is ready, false if we gave up waiting.
+     * @throws InterruptedException If the OpMode is stopped while we wait.
+     */
+    public boolean waitForShooterReady() throws InterruptedException {
+        return new ShooterSpinUp(shooter, shooter.getTargetRpm()).await();
+    }
+
+    /**
+     * Wait for the flywheel to reach its target speed.
+     *
+     * @param timeoutMs Longest time to wait, in milliseconds.
+     * @return True if the flywheel is ready, false if we gave up waiting.
+     * @throws InterruptedException If the OpMode is stopped while we wait.
+     */
+    public boolean waitForShooterReady(long timeoutMs) throws InterruptedException {
+        return shooter.awaitReady(timeoutMs);
+    }
+
+    /**
+     * Feed balls into the shooter. While the flywheel is running, a ball is only let through when
+     * the wheel is up to speed, and the feed closes again as soon as the shot is detected.
+     *
+     * @param feeding True to feed balls, false to hold them.
+     */
+    public void setShooterFeed(boolean feeding) {
+        shooter.setFeeding(feeding);
+    }
+
+    /**
+     * @return Number of shots detected since the robot was initialized.
+     */
+    public int getShotCount() {
+        return shooter.getShotCount();
+    }
+
+    /**
+     * @return Time between the last two shots, in milliseconds.
+     */
+    public double getLastShotCycleMs() {
+        return shooter.getLastShotCycleMs();
+    }
+
+    /**
+     * @return Release speed, dip and recovery statistics for every shot so far.
+     */
+    public ShotMetrics getShotMetrics() {
+        return shooter.getMetrics();
+    }
+
+    /**
+     * Fire a burst of balls, letting each one through as soon as the flywheel has recovered from
+     * the last. The shooter must already be running.
+     *
+     * @param count     Number of shots to fire.
+     * @param timeoutMs Give up after this many milliseconds.
+     * @return True if every shot was detected before the timeout.
+     */
+    public boolean shootParticles(int count, long timeoutMs) {
+        int targetCount = shooter.getShotCount() + count;
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+
+        shooter.setFeeding(true);
+        while (shooter.getShotCount() < targetCount && System.nanoTime() < deadline
+                && mode.opModeIsActive()) {
+            mode.telemetry.addData("Shots", shooter.getShotCount());
+            mode.telemetry.addData("Shooter RPM", shooter.getRpm());
+            mode.telemetry.update();
+            mode.idle();
         }
+        shooter.setFeeding(false);
 
-//        if (getShooterRPM() > 650){
-//        motorShooter1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-//
-//        if (Math.abs(rpm) <= VelRobotConstants.MOTOR_SHOOTER_MAX_RPM) {
-//            motorShooter1.setPower((double) rpm / VelRobotConstants.MOTOR_SHOOTER_MAX_RPM);
-//        } else {
-//            motorShooter1.setPower(rpm > 0 ? 1.0 : -1.0);
-//        }}
+        return shooter.getShotCount() >= targetCount;
     }
 
     /**
@@ -400,56 +435,84 @@ public class VelRobotAuto {
      * @param angle    The angle we want the robot to move, in radians, where "forward" is pi/2
      * @param speed    The movement speed we want, ranging from -1:1
      * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power, from 0:1
      */
     public void setMovement(double angle, double speed, double rotation, double scale) {
-        // Shift angle by 45 degrees, since our drive train is x-shaped and not cross-shaped
-        angle += PI / 4;
-
-        // Cut rotation in half because we don't want to spin THAT fast
-        rotation *= 0.5;
-
-        // Normalize magnitudes so that "straight forward" has a magnitude of 1
-        speed *= sqrt(2);
-
-        double sinDir = sin(angle);
-        double cosDir = cos(angle);
+        kinematics.calculate(angle, speed, rotation, scale);
+        driveLimiter.reset();
+        setDrivePowers(kinematics.getPower(0), kinematics.getPower(1),
+                kinematics.getPower(2), kinematics.getPower(3));
+    }
 
-        // None of this stuff should happen if the speed is 0.
-        if (speed == 0.0 && rotation == 0.0) {
-            stopMovement();
-            return;
-        }
+    /**
+     * Like {@link #setMovement}, but each wheel's power ramps up at a limited rate. With the drive
+     * in RUN_WITHOUT_ENCODER a wheel that starts slipping is also backed off; under the motor
+     * controllers' speed control slip can't be seen, so it isn't checked. The ramp only advances
+     * when this is called, so call it every loop.
+     *
+     * @param angle    The angle we want the robot to move, in radians, where "forward" is pi/2
+     * @param speed    The movement speed we want, ranging from -1:1
+     * @param rotation The speed of rotation, ranging from -1:1
+     * @param scale    Multiplier applied to every power, from 0:1
+     */
+    public void setMovementLimited(double angle, double speed, double rotation, double scale) {
+        kinematics.calculate(angle, speed, rotation, scale);
+        driveLimiter.setSlipDetection(isDriveOpenLoop());
+        driveLimiter.update(System.nanoTime(), kinematics,
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition());
+        setDrivePowers(driveLimiter.getPower(0), driveLimiter.getPower(1),
+                driveLimiter.getPower(2), driveLimiter.getPower(3));
+    }
 
-        // Rotation is scaled down by 50% so that it doesn't completely cancel out any motors
-        double multipliers[] = new double[4];
-        multipliers[0] = (speed * sinDir) + rotation;
-        multipliers[1] = (speed * cosDir) + rotation;
-        multipliers[2] = (speed * -cosDir) + rotation;
-        multipliers[3] = (speed * -sinDir) + rotation;
-
-        double largest = abs(multipliers[0]);
-        for (int i = 1; i < 4; i++) {
-            if (abs(multipliers[i]) > largest)
-                largest = abs(multipliers[i]);
+    /**
+     * Send powers to the drive motors. With the drive in RUN_WITHOUT_ENCODER they are scaled up
+     * for a tired battery so a power covers the same ground on any battery. Under the motor
+     * controllers' speed control a power is already a speed, held against the battery, so it
+     * goes through as it is.
+     */
+    private void setDrivePowers(double power1, double power2, double power3, double power4) {
+        drivePowers[0] = power1;
+        drivePowers[1] = power2;
+        drivePowers[2] = power3;
+        drivePowers[3] = power4;
+        if (isDriveOpenLoop()) {
+            batteryVoltage.compensate(drivePowers);
         }
+        motorDrive1.setPower(drivePowers[0]);
+        motorDrive2.setPower(drivePowers[1]);
+        motorDrive3.setPower(drivePowers[2]);
+        motorDrive4.setPower(drivePowers[3]);
+        driveBrake.track(System.nanoTime(),
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition());
+    }
 
-        // Only normalize multipliers if largest exceeds 1.0
-        if (largest > 1.0) {
-            for (int i = 0; i < 4; i++) {
-                multipliers[i] = multipliers[i] / largest;
-            }
+    /**
+     * Choose how the drive stops. The motors' zero power behavior is only written when this
+     * changes.
+     *
+     * @param stopMode COAST floats the motors, BRAKE shorts them, and ACTIVE also applies a
+     *                 reverse pulse when {@link #stopMovement()} is called.
+     */
+    public void setStopMode(StopMode stopMode) {
+        if (stopMode == this.stopMode) {
+            return;
         }
+        this.stopMode = stopMode;
+        DcMotor.ZeroPowerBehavior behavior = stopMode == StopMode.COAST
+                ? DcMotor.ZeroPowerBehavior.FLOAT : DcMotor.ZeroPowerBehavior.BRAKE;
+        motorDrive1.setZeroPowerBehavior(behavior);
+        motorDrive2.setZeroPowerBehavior(behavior);
+        motorDrive3.setZeroPowerBehavior(behavior);
+        motorDrive4.setZeroPowerBehavior(behavior);
+    }
 
-        // Scale if needed, 0.0 < scale < 1.0;
-//        for (int i = 0; i < 4; i++) {
-//            multipliers[i] = multipliers[i] * scale;
-//        }
-
-        // TODO Fix wiring. Motors 2 and 4 are plugged into the wrong motor ports.
-        motorDrive1.setPower(multipliers[0] * scale);
-        motorDrive4.setPower(multipliers[1] * scale);
-        motorDrive3.setPower(multipliers[2] * scale);
-        motorDrive2.setPower(multipliers[3] * scale);
+    /**
+     * @return How the drive stops.
+     */
+    public StopMode getStopMode() {
+        return stopMode;
     }
 
     //    public void encoderDriveCm(double angle, double speed, double cm){
@@ -471,22 +534,23 @@ public class VelRobotAuto {
     public void driveToLine(double angle, double speed, PublicEnums.GyroCorrection gyroCorrection, PublicEnums.BeaconNumber beaconNumber, double scale) {
 
         int x = 0;
-        double startGyroVal = sensorGyro.getHeading();
-        double GyroVal;
+        double startHeading = headingEstimator.getHeading();
         setMovement(angle, speed, 0, scale);
         while ((isThereMat()||isThereMatBack()) && mode.opModeIsActive() && x == 0) {
-            GyroVal = sensorGyro.getHeading();
             if (gyroCorrection == PublicEnums.GyroCorrection.YES) {
-                setMovement(angle, speed, (sensorGyro.getIntegratedZValue() + startGyroVal)/100, 1);
+                setMovement(angle, speed, headingCorrection(startHeading), 1);
             }
-            mode.telemetry.addData("Gyro Heading", GyroVal);
+            mode.telemetry.addData("Heading", Math.toDegrees(headingEstimator.getHeading()));
             mode.telemetry.addData("Is there Mat", isThereMat());
-            mode.telemetry.addData("Mat Val:", matColorVal);
+            mode.telemetry.addData("Mat Val:", frontLine.getMatLevel());
             mode.telemetry.addData("ODS Front Val: ", getGroundLight());
-            mode.telemetry.addData("ODS Back Val: ", getGroundLight());
+            mode.telemetry.addData("ODS Back Val: ", getGroundLightBack());
             mode.telemetry.update();
-            if (beaconNumber == PublicEnums.BeaconNumber.ONE && (rightBeaconUS.getUltrasonicLevel() <= 7 || leftBeaconUS.getUltrasonicLevel() <= 7)) {
-                x++;
+            if (beaconNumber == PublicEnums.BeaconNumber.ONE) {
+                updateUltrasonics();
+                if (getRightUS() <= 7 || getLeftUS() <= 7) {
+                    x++;
+                }
             }
         }
         if (x == 1) {
@@ -504,15 +568,37 @@ public class VelRobotAuto {
         return ((degrees / 180) * PI);
     }
 
+    /**
+     * Rotation that steers the robot back onto a heading while it drives. Uses the blended
+     * heading, so it reacts between gyro updates.
+     *
+     * @param targetHeading Heading to hold, in radians counterclockwise.
+     * @return Rotation to pass to {@link #setMovement}. Positive is clockwise.
+     */
+    private double headingCorrection(double targetHeading) {
+        return Math.toDegrees(headingEstimator.getHeading() - targetHeading)
+                * VelRobotConstants.HEADING_CORRECTION_PER_DEGREE;
+    }
+
     public void driveWithUS(double angle, double speed, double target) {
-        double startGyroVal = sensorGyro.getHeading();
+        double startHeading = headingEstimator.getHeading();
+        // Start each approach fresh, so the last one's trend doesn't carry over
+        leftUSFilter.reset();
+        rightUSFilter.reset();
 // any errors with misalignment will get fixed when the robot squares on the wall
-        while ((getLeftUS() >= target && getRightUS() >= target) && mode.opModeIsActive()) {
-            if (getLeftUS()<30 &&getRightUS()<30){
-                if (getLeftUS() < getRightUS()) {
+        while (mode.opModeIsActive()) {
+            updateUltrasonics();
+            double leftUS = getLeftUS();
+            double rightUS = getRightUS();
+            // A sensor with no recent reading is NaN, which never stops the robot or squares it
+            if (leftUS < target || rightUS < target) {
+                break;
+            }
+            if (leftUS<30 &&rightUS<30){
+                if (leftUS < rightUS) {
                     setMovement(angle, speed, -0.2, 1);
 
-                } else if (getLeftUS() > getRightUS()) {
+                } else if (leftUS > rightUS) {
                     setMovement(angle, speed, 0.2, 1);
 
                 } else {
@@ -520,73 +606,267 @@ public class VelRobotAuto {
 
                 }
             }else{
-                setMovement(angle, speed, (sensorGyro.getIntegratedZValue() + startGyroVal)/100, 1);
+                setMovement(angle, speed, headingCorrection(startHeading), 1);
 
             }
-            mode.telemetry.addData("Robot Heading", sensorGyro.getHeading());
+            mode.telemetry.addData("Robot Heading", Math.toDegrees(headingEstimator.getHeading()));
             mode.telemetry.update();
         }
 
         stopMovement();
     }
 
+    /**
+     * Read both beacon ultrasonic sensors into their filters. Call this once per loop, then use
+     * {@link #getLeftUS()} and {@link #getRightUS()} as often as needed.
+     */
+    public void updateUltrasonics() {
+        long nanos = System.nanoTime();
+        leftUSFilter.add(nanos, leftBeaconUS.getUltrasonicLevel());
+        rightUSFilter.add(nanos, rightBeaconUS.getUltrasonicLevel());
+    }
+
+    /**
+     * @return Filtered range from the back beacon ultrasonic sensor in centimeters, or NaN if it
+     * hasn't had a good reading recently.
+     */
     public double getRightUS() {
-        return rightBeaconUS.getUltrasonicLevel();
+        return rightUSFilter.getRange(System.nanoTime());
     }
 
+    /**
+     * @return Filtered range from the front beacon ultrasonic sensor in centimeters, or NaN if it
+     * hasn't had a good reading recently.
+     */
     public double getLeftUS() {
-        return leftBeaconUS.getUltrasonicLevel();
+        return leftUSFilter.getRange(System.nanoTime());
     }
 
     public double getGroundLight() {
         return groundODS.getLightDetected();
     }
     public double getGroundLightBack() {
-        return groundODS.getLightDetected();
+        return groundODSBack.getLightDetected();
     }
 
+    /**
+     * Read the front ground light sensor and check it against the mat.
+     *
+     * @return True unless the front sensor is over a line.
+     */
     public boolean isThereMat() {
-
-        if (getGroundLight() - .3 <= matColorVal) {
-            return true;
-        } else {
-            return false;
-        }
+        frontLine.update(System.nanoTime(), getGroundLight());
+        return !frontLine.isOnLine();
     }
+
+    /**
+     * Read the back ground light sensor and check it against the mat.
+     *
+     * @return True unless the back sensor is over a line.
+     */
     public boolean isThereMatBack() {
+        backLine.update(System.nanoTime(), getGroundLightBack());
+        return !backLine.isOnLine();
+    }
 
-        if (getGroundLightBack() - .3 <= matColorVal) {
-            return true;
-        } else {
-            return false;
-        }
+    /**
+     * @return The line detector on the front ground light sensor, which has when it last found
+     * a line.
+     */
+    public LineDetector getFrontLine() {
+        return frontLine;
+    }
+
+    /**
+     * @return The line detector on the back ground light sensor, which has when it last found a
+     * line.
+     */
+    public LineDetector getBackLine() {
+        return backLine;
     }
 
     /**
-     * Completely stop the drive motors.
+     * Completely stop the drive motors. With the ACTIVE stop mode this first drives the wheels
+     * backward for a moment, so it blocks for up to
+     * {@link VelRobotConstants#DRIVE_BRAKE_PULSE_MS_AT_FULL_SPEED} milliseconds.
      */
     public void stopMovement() {
-        motorDrive1.setPower(0.0);
-        motorDrive2.setPower(0.0);
-        motorDrive3.setPower(0.0);
-        motorDrive4.setPower(0.0);
+        driveLimiter.reset();
+        wheelVelocity.reset();
+        if (stopMode == StopMode.ACTIVE && mode.opModeIsActive()) {
+            pulseBrake();
+        }
+        // Through setDrivePowers, so the brake sees the wheels stop
+        setDrivePowers(0.0, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * Drive each wheel backward in proportion to how fast it's turning, until the pulse runs out
+     * or a wheel starts to reverse.
+     */
+    private void pulseBrake() {
+        double fullSpeed = wheelVelocity.getCalibration().getSlowestFreeSpeed();
+        if (!driveBrake.plan(System.nanoTime(),
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition(), fullSpeed)) {
+            return;
+        }
+        setDrivePowers(driveBrake.getPower(0), driveBrake.getPower(1),
+                driveBrake.getPower(2), driveBrake.getPower(3));
+        while (mode.opModeIsActive() && !driveBrake.isPulseDone(System.nanoTime(),
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition())) {
+            mode.idle();
+        }
+        driveBrake.cancel();
     }
 
     /**
      * Completely stop all motors on the robot.
      */
     public void stopAllMotors() {
-        motorDrive1.setPower(0.0);
-        motorDrive2.setPower(0.0);
-        motorDrive3.setPower(0.0);
-        motorDrive4.setPower(0.0);
+        driveLimiter.reset();
+        driveBrake.cancel();
+        setDrivePowers(0.0, 0.0, 0.0, 0.0);
 
-        motorShooter1.setPower(0.0);
+        shooter.stop();
         motorPickup.setPower(0.0);
         motorLLift.setPower(0.0);
         motorRLift.setPower(0.0);
     }
 
+    /**
+     * Stop all motors and shut down the background control threads. Call this when the OpMode
+     * ends.
+     */
+    public void shutdown() {
+        stopAllMotors();
+        shooter.shutdown();
+        odometry.shutdown();
+        if (localizer != null) {
+            localizer.shutdown();
+        }
+    }
+
+    /**
+     * Get where the robot is, from the drive encoders. This never blocks, so it can be called
+     * from any thread as often as needed.
+     *
+     * @param out Pose to fill in.
+     * @return The same pose, for chaining.
+     */
+    public Pose getPose(Pose out) {
+        return odometry.getPose(out);
+    }
+
+    /**
+     * Get the robot's heading, blended from the drive encoders and the gyro. It updates every
+     * odometry period, faster than the gyro does, and never blocks.
+     *
+     * @param out Reading to fill in with the heading, turn rate and time.
+     * @return The same reading, for chaining.
+     */
+    public HeadingEstimator.Reading getHeading(HeadingEstimator.Reading out) {
+        return headingEstimator.read(out);
+    }
+
+    /**
+     * Tell the odometry where the robot is, for example its starting position on the field.
+     *
+     * @param pose Where the robot is now.
+     */
+    public void setPose(Pose pose) {
+        odometry.setPose(pose);
+    }
+
+    /**
+     * Start finding the robot on the field from the odometry, the gyro, the beacon ultrasonic
+     * sensors and the ground light sensors. Call this after {@link #initializeRobot()}, once the
+     * mat has been read, and before the robot moves.
+     *
+     * @param alliance Our alliance, which picks the side of the field.
+     * @param redStart Where the robot starts on red, as {x cm, y cm, heading rad}. It's mirrored
+     *                 onto blue.
+     */
+    public void startLocalization(AllianceColor alliance, double[] redStart) {
+        if (localizer != null) {
+            localizer.shutdown();
+        }
+        FieldMap map = FieldMap.forAlliance(alliance);
+        localizer = new FieldLocalizer(odometry, sensorGyro, gyroBias, leftBeaconUS,
+                rightBeaconUS, groundODS, groundODSBack, frontLine, backLine, map);
+        localizer.setPose(map.placeFromRed(redStart, new Pose()));
+        localizer.start();
+    }
+
+    /**
+     * Get where the robot is on the field, from every sensor that can tell. Only available after
+     * {@link #startLocalization}.
+     *
+     * @param out Pose to fill in.
+     * @return The same pose, for chaining.
+     */
+    public Pose getFieldPose(Pose out) {
+        return localizer.getPose(out);
+    }
+
+    /**
+     * Drive straight to a point on the field, holding the current heading, and stop there. Only
+     * available after {@link #startLocalization}.
+     *
+     * @param x           Where to go, in centimeters from the center of the field.
+     * @param y           Where to go, in centimeters from the center of the field.
+     * @param speed       Top speed, from 0:1.
+     * @param toleranceCm How close counts as there, in centimeters.
+     */
+    public void driveToFieldPoint(double x, double y, double speed, double toleranceCm) {
+        Pose pose = localizer.getPose(new Pose());
+        double holdHeading = pose.heading;
+        while (mode.opModeIsActive()) {
+            localizer.getPose(pose);
+            double errorX = x - pose.x;
+            double errorY = y - pose.y;
+            double distance = Math.hypot(errorX, errorY);
+            if (distance <= toleranceCm) {
+                break;
+            }
+
+            // Turn the error into the robot's frame, where east is 0 and north is pi/2
+            double cos = Math.cos(pose.heading);
+            double sin = Math.sin(pose.heading);
+            double right = errorX * cos + errorY * sin;
+            double forward = -errorX * sin + errorY * cos;
+            double angle = Math.atan2(forward, right) - kinematics.getOrientationOffset();
+            double driveSpeed = Math.max(VelRobotConstants.LOCALIZER_MIN_SPEED,
+                    speed * Math.min(1.0, distance / VelRobotConstants.LOCALIZER_SLOWDOWN_CM));
+            double rotation = Math.toDegrees(pose.heading - holdHeading)
+                    * VelRobotConstants.HEADING_CORRECTION_PER_DEGREE;
+            setMovementLimited(angle, driveSpeed, rotation, 1);
+            mode.idle();
+        }
+        stopMovement();
+    }
+
+    /**
+     * Drive to the beacon wall beside a beacon line, stopping a little short of the line so that
+     * {@link #driveToLine} only has to creep the rest of the way. Only available after
+     * {@link #startLocalization}.
+     *
+     * @param line    Which line, as an index into {@link VelRobotConstants#FIELD_BEACON_LINE_Y_CM}.
+     * @param farSide True to stop on the side of the line away from our starting corner.
+     */
+    public void approachBeaconLine(int line, boolean farSide) {
+        double x = VelRobotConstants.FIELD_SIZE_CM / 2.0
+                - VelRobotConstants.LOCALIZER_LEFT_US_MOUNT[0]
+                - VelRobotConstants.AUTO_BEACON_WALL_GAP_CM;
+        double y = VelRobotConstants.FIELD_BEACON_LINE_Y_CM[line]
+                + (farSide ? 1.0 : -1.0) * VelRobotConstants.AUTO_BEACON_LINE_SHORT_CM;
+        // The line positions are measured on red, so mirror them for blue
+        Pose target = localizer.getMap().placeFromRed(new double[] {x, y, 0.0}, new Pose());
+        driveToFieldPoint(target.x, target.y, VelRobotConstants.AUTO_BEACON_APPROACH_SPEED,
+                VelRobotConstants.AUTO_BEACON_APPROACH_TOLERANCE_CM);
+    }
+
     /**
      * Get direction of travel from the joystick.
      *
@@ -656,7 +936,7 @@ public class VelRobotAuto {
     }
 
     public double getShooterPower() {
-        return motorShooter1.getPower();
+        return shooter.getPower();
     }
 
     public long getDrive1Encoder() {
@@ -767,13 +1047,10 @@ public class VelRobotAuto {
     /**
      * Spins all motors at the same speed. CAUTION: THIS MAKES THE ROBOT SPIN.
      *
-     * @param power Speed to spin all motors.
+     * @param power Speed to spin all motors, on a battery at nominal voltage.
      */
     public void setPowerAll(double power) {
-        motorDrive1.setPower(power);
-        motorDrive2.setPower(power);
-        motorDrive3.setPower(power);
-        motorDrive4.setPower(power);
+        setDrivePowers(power, power, power, power);
     }
 
     public void beaconTap(PublicEnums.AllianceColor allianceColor) throws InterruptedException {
@@ -823,21 +1100,33 @@ public class VelRobotAuto {
     /**
      * Set the power of the left hand side drive motors.
      *
-     * @param power Percentage of max power to spin.
+     * @param power Percentage of max power to spin, on a battery at nominal voltage. Under the
+     *              motor controllers' speed control, percentage of max speed.
      */
     public void setPowerLeft(double power) {
-        motorDrive1.setPower(-power);
-        motorDrive3.setPower(-power);
+        double sent = isDriveOpenLoop() ? batteryVoltage.compensate(-power) : -power;
+        motorDrive1.setPower(sent);
+        motorDrive3.setPower(sent);
     }
 
     /**
      * Set the power of the right hand side drive motors.
      *
-     * @param power Percentage of max speed to spin.
+     * @param power Percentage of max power to spin, on a battery at nominal voltage. Under the
+     *              motor controllers' speed control, percentage of max speed.
      */
     public void setPowerRight(double power) {
-        motorDrive2.setPower(power);
-        motorDrive4.setPower(power);
+        double sent = isDriveOpenLoop() ? batteryVoltage.compensate(power) : power;
+        motorDrive2.setPower(sent);
+        motorDrive4.setPower(sent);
+    }
+
+    /**
+     * @return True if the drive motors are known to be in RUN_WITHOUT_ENCODER, where a power is a
+     * voltage and needs battery compensation.
+     */
+    private boolean isDriveOpenLoop() {
+        return driveRunMode == DcMotor.RunMode.RUN_WITHOUT_ENCODER;
     }
 
     /**
@@ -884,6 +1173,8 @@ public class VelRobotAuto {
      */
     public void turnDegreesRight(double degrees, double speed) throws InterruptedException {
         motorDrive1.setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
+        // Only one motor changed, so the next setDriveRunMode has to write all four
+        driveRunMode = null;
         double degreesSoFar = this.getGyroHeading();
         double degreesToGo;
         double degreesFixed;
@@ -945,89 +1236,117 @@ public class VelRobotAuto {
      */
     public void goDistanceInCm(double distance, double angle, double speed) {
         zeroEncoders();
-        setMovement(angle, speed, 0.0, 1.0);
+        driveLimiter.reset();
         // Track using the back left motor.
         // Why? It's the only one my fat fingers could get the plug into.
-        //noinspection StatementWithEmptyBody
-        while (motorDrive3.getCurrentPosition() < cmToTicks(distance)) {
+        // Ramp the power up and back off slipping wheels, so the encoder count is real distance.
+        while (motorDrive3.getCurrentPosition() < cmToTicks(distance) && mode.opModeIsActive()) {
+            setMovementLimited(angle, speed, 0.0, 1.0);
         }
         stopMovement();
     }
 
     /**
-     * Move the robot across the playing field.
+     * Move the robot across the playing field. Each wheel runs under closed loop speed control, so
+     * the robot keeps straight without per-side power corrections.
      * Indicating a negative speed or distance will cause the robot to move in reverse.
      *
      * @param ticks The distance that we want to travel.
-     * @param speed The speed at which to travel.
+     * @param speed The speed at which to travel, as a fraction of the slowest wheel's top speed.
      */
     void goTicks(long ticks, double speed) throws InterruptedException {
-
-//        long startLeft = robot.getLeftEncoder();
-        long startRight = this.getDrive1Encoder();
-
-        // Target encoder values for the left and right motors
-        long targetRight = startRight + ticks;
-//        long targetLeft = startLeft + ticks;
-
-        double leftCorrect = 0.8;
-        double rightCorrect = 1.0;
+        long target = this.getDrive1Encoder() + ticks;
+        wheelVelocity.reset();
+        setDriveRunMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
 
         if (ticks < 0) {
-            // Set the drive motors to the given speed
-//            robot.setPowerLeft(speed * leftCorrect);
-//            robot.setPowerRight(speed * rightCorrect);
-//            robot.setPowerLeft(0.85);
-//            robot.setPowerRight(0.60);
-
-            // Wait until both motors have reached the target
-            while (this.getDrive1Encoder() > targetRight) {
-                //TODO make telemetry work
-//                mode.telemetry.addData("Data", this.getRightEncoder());
-//                mode.telemetry.addData("Encoder target", targetRight);
-//                mode.telemetry.addData("gyro", this.getGyroHeading());
-
-                /* Gyro Compensation TODO Revisit this. It's wrong. */
-                /*if (this.getGyroHeading() > 180) {
-                    this.setPowerLeft(speed/2);
-                    this.setPowerRight(1);
-                } else if (this.getGyroHeading() < 180 && this.getGyroHeading() > 0) {
-                    this.setPowerLeft(1);
-                    this.setPowerRight(speed/2);
-                } else*/
-                {
-                    this.setPowerLeft(speed * leftCorrect);
-                    this.setPowerRight(speed * rightCorrect);
-                }
+            // Wait until the motor has reached the target
+            while (this.getDrive1Encoder() > target && mode.opModeIsActive()) {
+                driveTank(speed, speed);
+                mode.idle();
             }
-
-            // Stop the drive motors here
-            this.setPowerLeft(0);
-            this.setPowerRight(0);
         } else if (ticks > 0) {
-            // Set the drive motors to the speed (in reverse)
-            this.setPowerLeft(-speed * leftCorrect);
-            this.setPowerRight(-speed * rightCorrect);
-//            robot.setPowerLeft(-0.85);
-//            robot.setPowerRight(-0.60);
-
-            // Wait until both motors have reached the target
-            while (this.getDrive1Encoder() < targetRight) {
-//                mode.telemetry.addData("Data2", getDrive1Encoder());
-//                mode.telemetry.addData("Encoder target", targetRight);
+            // Drive the motors in reverse
+            while (this.getDrive1Encoder() < target && mode.opModeIsActive()) {
+                driveTank(-speed, -speed);
+                mode.idle();
             }
+        }
+
+        // Stop the drive motors here
+        stopMovement();
+        setDriveRunMode(DcMotor.RunMode.RUN_USING_ENCODER);
+    }
+
+    /**
+     * Run each side of the drive at a speed, using the same signs as {@link #setPowerLeft} and
+     * {@link #setPowerRight}. The wheel speeds are measured and corrected every time this is
+     * called, so call it every loop. The motor controllers' own speed control is switched off
+     * while this runs, so call {@link #stopMovement()} and put it back with
+     * {@link #setDriveRunMode} when done, as {@link #driveTankFor} does.
+     *
+     * @param left  Speed of the left side, as a fraction of the slowest wheel's top speed.
+     * @param right Speed of the right side, as a fraction of the slowest wheel's top speed.
+     */
+    public void driveTank(double left, double right) {
+        setDriveRunMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
+        wheelVelocity.setTarget(0, -left);
+        wheelVelocity.setTarget(1, right);
+        wheelVelocity.setTarget(2, -left);
+        wheelVelocity.setTarget(3, right);
+        wheelVelocity.update(System.nanoTime(),
+                motorDrive1.getCurrentPosition(), motorDrive2.getCurrentPosition(),
+                motorDrive3.getCurrentPosition(), motorDrive4.getCurrentPosition());
+        setDrivePowers(wheelVelocity.getPower(0), wheelVelocity.getPower(1),
+                wheelVelocity.getPower(2), wheelVelocity.getPower(3));
+    }
+
+    /**
+     * Run each side of the drive at a speed for a while, then stop.
+     *
+     * @param left       Speed of the left side, as in {@link #driveTank}.
+     * @param right      Speed of the right side, as in {@link #driveTank}.
+     * @param durationMs How long to drive, in milliseconds.
+     * @throws InterruptedException If the OpMode is stopped.
+     */
+    public void driveTankFor(double left, double right, long durationMs)
+            throws InterruptedException {
+        wheelVelocity.reset();
+        long endNanos = System.nanoTime() + durationMs * 1000000L;
+        while (System.nanoTime() < endNanos && mode.opModeIsActive()) {
+            driveTank(left, right);
+            mode.idle();
+        }
+        stopMovement();
+        setDriveRunMode(DcMotor.RunMode.RUN_USING_ENCODER);
+    }
 
-            // Turn off the drive motors here
-            this.setPowerLeft(0);
-            this.setPowerRight(0);
+    /**
+     * Put the drive motors in a run mode. The mode is only written when it changes, so
+     * {@link #driveTank} can call this every loop.
+     *
+     * @param runMode RUN_USING_ENCODER lets the motor controllers hold wheel speed, which the
+     *                open loop moves rely on. RUN_WITHOUT_ENCODER is for {@link #driveTank},
+     *                which does its own.
+     */
+    void setDriveRunMode(DcMotor.RunMode runMode) {
+        if (runMode == driveRunMode) {
+            return;
         }
+        driveRunMode = runMode;
+        motorDrive1.setMode(runMode);
+        motorDrive2.setMode(runMode);
+        motorDrive3.setMode(runMode);
+        motorDrive4.setMode(runMode);
     }
 
     /**
-     * Reset the encoders on all motors.
+     * Reset the encoders on all motors. The motors are left under the motor controllers' speed
+     * control.
      */
-    //TODO not neccasary
     public void zeroEncoders() {
+        // Keep the odometry from counting the reset as motion
+        odometry.suspend();
         motorDrive1.setMode(DcMotor.RunMode.STOP_AND_RESET_ENCODER);
         motorDrive2.setMode(DcMotor.RunMode.STOP_AND_RESET_ENCODER);
         motorDrive3.setMode(DcMotor.RunMode.STOP_AND_RESET_ENCODER);
@@ -1039,10 +1358,10 @@ public class VelRobotAuto {
 //            e.printStackTrace();
 //        }
 
-        motorDrive1.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive2.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive3.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
-        motorDrive4.setMode(DcMotor.RunMode.RUN_USING_ENCODER);
+        // The reset left the motors in STOP_AND_RESET_ENCODER, so this always writes
+        driveRunMode = null;
+        setDriveRunMode(DcMotor.RunMode.RUN_USING_ENCODER);
+        odometry.resume();
     }
 
 
@@ -1139,6 +1458,14 @@ public class VelRobotAuto {
         return sensorGyro.rawZ();
     }
 
+    /**
+     * @return How fast the gyro is drifting, as learned while the robot sits still, in degrees
+     * per second counterclockwise.
+     */
+    public double getGyroDriftRate() {
+        return Math.toDegrees(gyroBias.getDriftRate());
+    }
+
     public OpMode getParentOpMode() {
         return mode;
     }
@@ -20,6 +20,9 @@
 
 package com.powerstackers.velocity.common;
 
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
+import com.powerstackers.velocity.common.enums.PublicEnums.StopMode;
+
 import static java.lang.Math.PI;
 
 /**
@@ -49,12 +52,256 @@ public class VelRobotConstants {
     public static final double MOTOR_SHOOTER_POWER         = -0.10;
     public static final double MOTOR_SHOOTER_MAX_RPM       = 1784;
     public static final int MOTOR_SHOOTER_TARGET_RPM       = 750;
+    /** Number of encoder samples the shooter RPM estimator keeps. */
+    public static final int SHOOTER_RPM_SAMPLES            = 32;
+    /** Shooter RPM is averaged over this many milliseconds of encoder samples. */
+    public static final double SHOOTER_RPM_WINDOW_MS       = 100;
+    /** Low pass filter gain applied to the shooter RPM, 1.0 means no filtering. */
+    public static final double SHOOTER_RPM_SMOOTHING       = 0.5;
+
+    // Shooter velocity control
+    /** How often the shooter control thread runs, in milliseconds. */
+    public static final long SHOOTER_CONTROL_PERIOD_MS     = 20;
+    /** Power needed to overcome friction in the flywheel. */
+    public static final double SHOOTER_KS                  = 0.02;
+    /** Power per RPM. At full power the flywheel runs at its maximum RPM. */
+    public static final double SHOOTER_KV                  = 1.0 / MOTOR_SHOOTER_MAX_RPM;
+    public static final double SHOOTER_KP                  = 0.002;
+    public static final double SHOOTER_KI                  = 0.001;
+    public static final double SHOOTER_KD                  = 0.00002;
+    /** Most power the integral term may add or remove. */
+    public static final double SHOOTER_INTEGRAL_LIMIT      = 0.2;
+    /** Spin-up time constant we assume until the flywheel has been characterized. */
+    public static final double SHOOTER_DEFAULT_TIME_CONSTANT_SEC = 0.5;
+    /** Flywheel model written by the characterization OpMode, in the FIRST folder. */
+    public static final String SHOOTER_MODEL_FILE          = "shooter_model.txt";
+    /** Raw samples written by the characterization OpMode, in the FIRST folder. */
+    public static final String SHOOTER_SAMPLES_FILE        = "shooter_characterization.csv";
+    /** Powers the characterization OpMode steps the flywheel through. */
+    public static final double[] SHOOTER_CHARACTERIZE_POWERS = {0.2, 0.4, 0.6, 0.8, 1.0};
+    /** How long each characterization power is held, in milliseconds. */
+    public static final long SHOOTER_CHARACTERIZE_STEP_MS  = 2000;
+    /** How long the flywheel coasts after each characterization step, in milliseconds. */
+    public static final long SHOOTER_CHARACTERIZE_COAST_MS = 1500;
+
+    // Shot cycle
+    /** Flywheel must be within this many RPM of the target before we feed a ball. */
+    public static final double SHOT_READY_TOLERANCE_RPM    = 30;
+    /** Consecutive in-tolerance samples needed before we feed a ball. */
+    public static final int SHOT_READY_SAMPLES             = 3;
+    /** A drop of this many RPM below the target means a ball just left. */
+    public static final double SHOT_DIP_RPM                = 60;
+    /** Longest we wait for a burst to finish in autonomous, in milliseconds. */
+    public static final long SHOT_BURST_TIMEOUT_MS         = 4000;
+    /** Shot statistics written when the OpMode ends, in the FIRST folder. */
+    public static final String SHOT_STATS_FILE             = "shot_stats.txt";
+    /** Extra time allowed past the predicted spin-up before autonomous gives up waiting, in ms. */
+    public static final long SHOOTER_READY_MARGIN_MS       = 500;
+    /** Longest autonomous will ever wait for the flywheel to be ready, in ms. */
+    public static final long SHOOTER_READY_TIMEOUT_MS      = 3000;
+
+    // Shooter power management
+    /** Speed the flywheel idles at between volleys in teleop. */
+    public static final double SHOOTER_IDLE_RPM            = 400;
+    /** Whether the flywheel idles between volleys when teleop starts, before X toggles it. */
+    public static final boolean SHOOTER_IDLE_DEFAULT       = false;
+    /** Total current we allow the drive and flywheel to draw together, in amps. */
+    public static final double CURRENT_BUDGET_AMPS         = 20.0;
+    /** Current the flywheel motor draws at stall on a nominal battery, in amps. */
+    public static final double SHOOTER_STALL_AMPS          = 11.5;
+    /** Current we expect a drive motor to draw at full power while driving, in amps. */
+    public static final double DRIVE_MOTOR_AMPS_AT_FULL_POWER = 4.0;
+
+    // Battery voltage compensation
+    /** Battery voltage the motor gains were tuned at. */
+    public static final double NOMINAL_BATTERY_VOLTAGE          = 12.5;
+    /** Time constant of the battery voltage filter, in seconds. */
+    public static final double VOLTAGE_FILTER_TIME_CONSTANT_SEC = 0.5;
+    public static final double VOLTAGE_COMP_MIN_SCALE           = 0.8;
+    public static final double VOLTAGE_COMP_MAX_SCALE           = 1.3;
     //public static final int MOTOR_SHOOTER_RPM_INCREMENT    = 50;
     public static final double DRIVE_SPEED_NORMAL   = 0.8;// TODO Needs to be tested for correct value
     public static final double DRIVE_SPEED_FAST     = 1;
     public static final double DRIVE_SPEED_SLOW     = 0.3; // TODO Needs to be tested for correct value
-//    public static int SCHMITT_UPPER = 20;
-//    public static int SCHMITT_LOWER = 20;
+    /**
+     * Drive motor each mecanum wheel term goes to, where motorDrive1 is 0. Terms 1 and 3 are
+     * swapped because motors 2 and 4 are plugged into each other's ports.
+     */
+    public static final int[] DRIVE_MOTOR_ORDER = {0, 3, 2, 1};
+    /** Whether teleop starts in field-centric drive. Off, so drivers opt in with gamepad1 X. */
+    public static final boolean FIELD_CENTRIC_DEFAULT = false;
+    /** Most a drive wheel's power may grow per second. Slowing down isn't limited. */
+    public static final double DRIVE_ACCEL_PER_SEC  = 4.0;
+    /** A wheel turning this many times faster per unit power than the median is slipping. */
+    public static final double DRIVE_SLIP_RATIO     = 1.3;
+    /** Wheels with less power than this aren't checked for slip. */
+    public static final double DRIVE_SLIP_MIN_POWER = 0.15;
+    /** How fast a slipping wheel's power is scaled back, per second. */
+    public static final double DRIVE_SLIP_BACKOFF_PER_SEC = 2.0;
+    /** How fast a wheel's power comes back once it grips again, per second. */
+    public static final double DRIVE_SLIP_RECOVER_PER_SEC = 1.0;
+    /** Smallest fraction of its power a slipping wheel is cut to. */
+    public static final double DRIVE_SLIP_MIN_SCALE = 0.5;
+    /** Hardware names of the drive motors, in the order the wheel calibration stores them. */
+    public static final String[] DRIVE_MOTOR_NAMES =
+            {"motorFrontLeft", "motorFrontRight", "motorBackLeft", "motorBackRight"};
+    /** Wheel calibration written by the drive calibration OpMode, in the FIRST folder. */
+    public static final String DRIVE_CALIBRATION_FILE = "drive_calibration.txt";
+    /** Power a drive wheel needs to start turning, until the drive has been calibrated. */
+    public static final double DRIVE_DEFAULT_STATIC_POWER = 0.05;
+    /** Encoder ticks per second per unit power, until the drive has been calibrated. */
+    public static final double DRIVE_DEFAULT_TICKS_PER_SEC_PER_POWER = 2800;
+    /** Drive wheel power added per tick/second of speed error. */
+    public static final double DRIVE_VELOCITY_KP    = 0.0002;
+    /** Drive wheel power added per tick of accumulated position error. */
+    public static final double DRIVE_VELOCITY_KI    = 0.001;
+    /** Most power the drive wheel integral term may add or remove. */
+    public static final double DRIVE_VELOCITY_INTEGRAL_LIMIT = 0.2;
+    /** Low pass filter gain applied to the drive wheel speeds, 1.0 means no filtering. */
+    public static final double DRIVE_VELOCITY_SMOOTHING = 0.5;
+    /** Shortest time between drive wheel speed measurements, in milliseconds. */
+    public static final long DRIVE_VELOCITY_PERIOD_MS = 20;
+    /** Powers the drive calibration OpMode runs each wheel at, in both directions. */
+    public static final double[] DRIVE_CALIBRATE_POWERS = {0.2, 0.4, 0.6, 0.8};
+    /** Time each calibration power is held before measuring, in milliseconds. */
+    public static final long DRIVE_CALIBRATE_SETTLE_MS = 600;
+    /** Time the wheel speed is measured over at each calibration power, in milliseconds. */
+    public static final long DRIVE_CALIBRATE_MEASURE_MS = 1000;
+    /** How often the odometry thread reads the drive encoders, in milliseconds. */
+    public static final long ODOMETRY_PERIOD_MS     = 10;
+    /** Half the track width plus half the wheelbase, in centimeters. */
+    public static final double ODOMETRY_TURN_RADIUS_CM = 35.0;
+    /** How long the blended heading takes to settle onto the gyro, in seconds. */
+    public static final double HEADING_FILTER_TIME_CONSTANT_SEC = 0.5;
+    /** Low pass filter gain on the blended turn rate, 1.0 means no filtering. */
+    public static final double HEADING_RATE_SMOOTHING = 0.3;
+    /** An unchanged gyro reading is trusted again after this long, in milliseconds. */
+    public static final long HEADING_GYRO_STALE_MS = 100;
+    /** Rotation added per degree off heading while driving straight. */
+    public static final double HEADING_CORRECTION_PER_DEGREE = 0.01;
+    /** How many ultrasonic readings the median is taken over. */
+    public static final int US_FILTER_SIZE = 5;
+    /** Smallest real ultrasonic reading, in centimeters. The sensor reads 0 with no echo. */
+    public static final double US_MIN_RANGE_CM = 1.0;
+    /** Largest real ultrasonic reading, in centimeters. The sensor reads 255 with no echo. */
+    public static final double US_MAX_RANGE_CM = 254.0;
+    /** Ultrasonic readings further than this from the median are dropped, in centimeters. */
+    public static final double US_GATE_CM = 15.0;
+    /** This many dropped ultrasonic readings in a row that agree are taken as the new range. */
+    public static final int US_MAX_REJECTS = 3;
+    /** The same ultrasonic reading within this long is the same ping, in milliseconds. */
+    public static final long US_SAMPLE_MS = 50;
+    /** Ultrasonic readings older than this are forgotten, in milliseconds. */
+    public static final long US_STALE_MS = 300;
+    /** How long the learned mat light level takes to follow a change, in seconds. */
+    public static final double LINE_MAT_TIME_CONSTANT_SEC = 0.5;
+    /** A line starts this many standard deviations above the mat's light level. */
+    public static final double LINE_RISE_SIGMAS = 6.0;
+    /** A line ends this many standard deviations above the mat's light level. */
+    public static final double LINE_FALL_SIGMAS = 3.0;
+    /** A line starts at least this far above the mat's light level. */
+    public static final double LINE_MIN_RISE = 0.2;
+    /** A line ends at least this far above the mat's light level. */
+    public static final double LINE_MIN_FALL = 0.1;
+    /** How long the drive encoders must stay still before the gyro's drift is learned, in ms. */
+    public static final long GYRO_BIAS_SETTLE_MS = 300;
+    /** Still time needed before the learned drift rate is used, in seconds. */
+    public static final double GYRO_BIAS_MIN_STILL_SEC = 2.0;
+    /** How much still time the drift rate is averaged over, in seconds. */
+    public static final double GYRO_BIAS_MEMORY_SEC = 60.0;
+    /** The raw Z rate must be within this many standard deviations of rest to count as still. */
+    public static final double GYRO_RAW_STILL_SIGMAS = 4.0;
+    /** Smallest band around the raw Z rest level that counts as still, in raw units. */
+    public static final double GYRO_RAW_STILL_MIN = 2.0;
+    /** Raw Z samples averaged evenly at rest before switching to a running average. */
+    public static final int GYRO_RAW_INIT_SAMPLES = 100;
+    /** Length of each side of the field, in centimeters. */
+    public static final double FIELD_SIZE_CM = 365.76;
+    /** Where the line in front of each of our beacons is, from the center of the field on red. */
+    public static final double[] FIELD_BEACON_LINE_Y_CM = {-30.48, 91.44};
+    /** How far each beacon line runs out from the wall, in centimeters. */
+    public static final double FIELD_BEACON_LINE_LENGTH_CM = 121.92;
+    /** How often the localizer thread runs, in milliseconds. */
+    public static final long LOCALIZER_PERIOD_MS = 20;
+    /** How often the ultrasonic sensors are read by the localizer, in milliseconds. */
+    public static final long LOCALIZER_US_PERIOD_MS = 100;
+    /** Odometry position error, in centimeters per square root of a centimeter driven. */
+    public static final double LOCALIZER_DRIVE_NOISE = 0.3;
+    /** Odometry heading error, in radians per square root of a radian turned. */
+    public static final double LOCALIZER_TURN_NOISE = 0.1;
+    /** Readings further than this many standard deviations from the estimate are thrown out. */
+    public static final double LOCALIZER_GATE_SIGMAS = 3.0;
+    /** Gyro heading error, in radians. */
+    public static final double LOCALIZER_GYRO_SIGMA = Math.toRadians(2.0);
+    /** Ultrasonic range error, in centimeters. */
+    public static final double LOCALIZER_US_SIGMA_CM = 2.0;
+    /** Ultrasonic ranges further than this are ignored, in centimeters. */
+    public static final double LOCALIZER_US_MAX_RANGE_CM = 150.0;
+    /** Ultrasonic beams further than this from square to a wall are ignored, in radians. */
+    public static final double LOCALIZER_US_MAX_INCIDENCE = Math.toRadians(20.0);
+    /** How far across a line the ODS might be when it first sees it, in centimeters. */
+    public static final double LOCALIZER_LINE_SIGMA_CM = 2.0;
+    /** How far past the end of a line a crossing still counts, in centimeters. */
+    public static final double LOCALIZER_LINE_MARGIN_CM = 10.0;
+    /** Position error of the starting pose, in centimeters. */
+    public static final double LOCALIZER_START_SIGMA_CM = 15.0;
+    /** Heading error of the starting pose, in radians. */
+    public static final double LOCALIZER_START_SIGMA_HEADING = Math.toRadians(5.0);
+    /** Where the front beacon ultrasonic sensor is, as {right cm, forward cm, facing rad}. */
+    public static final double[] LOCALIZER_LEFT_US_MOUNT = {15.0, 15.0, -PI/2};
+    /** Where the back beacon ultrasonic sensor is, as {right cm, forward cm, facing rad}. */
+    public static final double[] LOCALIZER_RIGHT_US_MOUNT = {15.0, -15.0, -PI/2};
+    /** Where the front ground ODS is, as {right cm, forward cm, facing rad}. */
+    public static final double[] LOCALIZER_FRONT_ODS_MOUNT = {0.0, 15.0, 0.0};
+    /** Where the back ground ODS is, as {right cm, forward cm, facing rad}. */
+    public static final double[] LOCALIZER_BACK_ODS_MOUNT = {0.0, -15.0, 0.0};
+    /** Where the robot starts close to the ramp, on red, as {x cm, y cm, heading rad}. */
+    public static final double[] AUTO_START_CLOSE_TO_RAMP = {-60.0, -150.0, 0.0};
+    /** Driving to a point slows down inside this distance of it, in centimeters. */
+    public static final double LOCALIZER_SLOWDOWN_CM = 30.0;
+    /** Slowest speed used when driving to a point. */
+    public static final double LOCALIZER_MIN_SPEED = 0.15;
+    /** Gap between the beacon ultrasonic sensors and the wall when approaching a beacon, in cm. */
+    public static final double AUTO_BEACON_WALL_GAP_CM = 20.0;
+    /** How far short of a beacon line the approach stops, so the line search only creeps, in cm. */
+    public static final double AUTO_BEACON_LINE_SHORT_CM = 20.0;
+    /** Top speed of the approach to a beacon. */
+    public static final double AUTO_BEACON_APPROACH_SPEED = 0.5;
+    /** How close to the approach point counts as there, in centimeters. */
+    public static final double AUTO_BEACON_APPROACH_TOLERANCE_CM = 5.0;
+    /** How the drive stops in autonomous. */
+    public static final StopMode AUTO_STOP_MODE     = StopMode.ACTIVE;
+    /** How the drive stops in teleop. Teleop can't wait out a pulse, so ACTIVE acts as BRAKE. */
+    public static final StopMode TELEOP_STOP_MODE   = StopMode.BRAKE;
+    /** Reverse pulse power per fraction of top speed a wheel was turning at when told to stop. */
+    public static final double DRIVE_BRAKE_PULSE_GAIN = 1.0;
+    /** Largest reverse pulse power. */
+    public static final double DRIVE_BRAKE_PULSE_MAX_POWER = 0.6;
+    /** Length of the reverse pulse when stopping from top speed, in milliseconds. */
+    public static final long DRIVE_BRAKE_PULSE_MS_AT_FULL_SPEED = 150;
+    /** Wheels slower than this fraction of top speed just brake, without a pulse. */
+    public static final double DRIVE_BRAKE_MIN_SPEED = 0.05;
+    /** A wheel this many ticks back from its furthest point has started to reverse. */
+    public static final int DRIVE_BRAKE_REVERSE_TICKS = 5;
+    /** Whether teleop holds the heading while translating. */
+    public static final boolean HEADING_HOLD_ENABLED = true;
+    /** Heading hold rotation per radian of heading error. */
+    public static final double HEADING_HOLD_KP      = 1.5;
+    /** Heading hold rotation per radian/second of turn rate. */
+    public static final double HEADING_HOLD_KD      = 0.1;
+    /** Largest rotation the heading hold applies. */
+    public static final double HEADING_HOLD_MAX_ROTATION = 0.5;
+    /** Time after the driver stops rotating before the heading is latched, in milliseconds. */
+    public static final long HEADING_HOLD_SETTLE_MS = 200;
+    /**
+     * How drive powers over 1 are scaled down, unless an OpMode picks otherwise. Proportional is
+     * how the drive has always behaved; teleop opts into rotation priority for the heading hold.
+     */
+    public static final Desaturation DRIVE_DESATURATION = Desaturation.PROPORTIONAL;
+    /** Use a lookup table for the drive trig instead of Math.sin and Math.cos. */
+    public static final boolean DRIVE_USE_TRIG_TABLE = false;
+    /** Motor power and servo position changes smaller than this aren't sent to the hardware. */
+    public static final double WRITE_CACHE_EPSILON  = 0.001;
 
     public static final double MOTOR_LIFT_POWER    = 1.0;
     public static final double MOTOR_PICKUP_POWER  = -1;
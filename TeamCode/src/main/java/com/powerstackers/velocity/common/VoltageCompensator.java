@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Battery voltage compensation for motor commands.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.HardwareMap;
+import com.qualcomm.robotcore.hardware.VoltageSensor;
+import com.qualcomm.robotcore.util.Range;
+
+import java.util.Iterator;
+
+/**
+ * Scales motor power by nominal voltage / battery voltage, so a command means the same motor
+ * voltage on a fresh battery and a tired one.
+ *
+ * <p>The battery reading is low pass filtered first. The battery sags whenever the motors pull
+ * current, and if we reacted to every sag instantly the extra power would cause more sag, which
+ * would cause more power, and the output would oscillate.
+ *
+ * @author Powerstackers
+ */
+public class VoltageCompensator {
+
+    private final VoltageSensor sensor;
+    private final double nominalVoltage;
+    private final double timeConstantSec;
+    private final double minScale;
+    private final double maxScale;
+
+    private volatile double filteredVoltage;
+    private long lastUpdateNanos = 0;
+    private boolean hasReading = false;
+    private volatile double scale = 1.0;
+
+    /**
+     * Construct a compensator.
+     *
+     * @param sensor          The battery voltage sensor, or null to never compensate.
+     * @param nominalVoltage  The voltage our gains were tuned at.
+     * @param timeConstantSec Time constant of the voltage filter, in seconds.
+     * @param minScale        Smallest scale we will apply.
+     * @param maxScale        Largest scale we will apply.
+     */
+    public VoltageCompensator(VoltageSensor sensor, double nominalVoltage, double timeConstantSec,
+                              double minScale, double maxScale) {
+        this.sensor = sensor;
+        this.nominalVoltage = nominalVoltage;
+        this.timeConstantSec = timeConstantSec;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.filteredVoltage = nominalVoltage;
+    }
+
+    /**
+     * Construct a compensator using the settings in {@link VelRobotConstants}.
+     *
+     * @param sensor The battery voltage sensor, or null to never compensate.
+     */
+    public VoltageCompensator(VoltageSensor sensor) {
+        this(sensor,
+                VelRobotConstants.NOMINAL_BATTERY_VOLTAGE,
+                VelRobotConstants.VOLTAGE_FILTER_TIME_CONSTANT_SEC,
+                VelRobotConstants.VOLTAGE_COMP_MIN_SCALE,
+                VelRobotConstants.VOLTAGE_COMP_MAX_SCALE);
+    }
+
+    /**
+     * Find the first voltage sensor in the hardware map. Motor controllers report the battery
+     * voltage, so one is almost always there.
+     *
+     * @param hardwareMap The hardware map to look in.
+     * @return A voltage sensor, or null if there isn't one.
+     */
+    public static VoltageSensor findVoltageSensor(HardwareMap hardwareMap) {
+        Iterator<VoltageSensor> sensors = hardwareMap.voltageSensor.iterator();
+        return sensors.hasNext() ? sensors.next() : null;
+    }
+
+    /**
+     * Read the battery sensor and update the filtered voltage.
+     *
+     * @param timeNanos Time of the reading, from {@link System#nanoTime()}.
+     */
+    public void update(long timeNanos) {
+        if (sensor != null) {
+            update(timeNanos, sensor.getVoltage());
+        }
+    }
+
+    /**
+     * Update the filtered voltage with a reading.
+     *
+     * @param timeNanos Time of the reading, from {@link System#nanoTime()}.
+     * @param voltage   Battery voltage, in volts.
+     */
+    public void update(long timeNanos, double voltage) {
+        // Controllers report 0 or NaN until their first read comes in
+        if (!(voltage > 0.0)) {
+            return;
+        }
+
+        if (hasReading) {
+            double dt = (timeNanos - lastUpdateNanos) / 1e9;
+            double alpha = dt / (timeConstantSec + dt);
+            filteredVoltage += alpha * (voltage - filteredVoltage);
+        } else {
+            filteredVoltage = voltage;
+            hasReading = true;
+        }
+        lastUpdateNanos = timeNanos;
+
+        scale = Range.clip(nominalVoltage / filteredVoltage, minScale, maxScale);
+    }
+
+    /**
+     * @return The filtered battery voltage.
+     */
+    public double getVoltage() {
+        return filteredVoltage;
+    }
+
+    /**
+     * @return The factor commands are multiplied by.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Scale a motor power for the current battery voltage.
+     *
+     * @param power Power as if the battery were at nominal voltage.
+     * @return The power to actually send, from -1:1.
+     */
+    public double compensate(double power) {
+        return Range.clip(power * scale, -1.0, 1.0);
+    }
+
+    /**
+     * Scale a set of motor powers that work together, like the drive wheels. If any of them would
+     * go past full power they are all cut back by the same amount, so the robot still goes the
+     * way it was told to.
+     *
+     * @param powers Powers as if the battery were at nominal voltage. They are replaced with the
+     *               powers to actually send.
+     */
+    public void compensate(double[] powers) {
+        double largest = 0.0;
+        for (double power : powers) {
+            largest = Math.max(largest, Math.abs(power));
+        }
+        double factor = scale;
+        if (largest * factor > 1.0) {
+            factor = 1.0 / largest;
+        }
+        for (int i = 0; i < powers.length; i++) {
+            powers[i] *= factor;
+        }
+    }
+}
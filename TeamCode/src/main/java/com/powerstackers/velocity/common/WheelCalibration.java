@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Measured speed of each drive wheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * How fast each drive wheel turns for a given power, as measured by the drive calibration
+ * OpMode. Each wheel is modeled as
+ *
+ * <pre>
+ * ticks per second = gain * (power - static power)
+ * </pre>
+ *
+ * <p>Wheels are stored by hardware name, in the order of
+ * {@link VelRobotConstants#DRIVE_MOTOR_NAMES}, so the table still lines up when the robot's
+ * drive direction swaps which motor is motorDrive1.
+ *
+ * <p>Powers are normalized to {@link VelRobotConstants#NOMINAL_BATTERY_VOLTAGE}.
+ *
+ * @author Powerstackers
+ */
+public class WheelCalibration {
+
+    private static final String KEY_STATIC = ".staticPower";
+    private static final String KEY_GAIN = ".gain";
+
+    private final double[] staticPower;
+    private final double[] gain;
+
+    /**
+     * Construct a calibration table.
+     *
+     * @param staticPower Power each wheel needs before it starts turning.
+     * @param gain        Encoder ticks per second each wheel gains per unit of power.
+     */
+    public WheelCalibration(double[] staticPower, double[] gain) {
+        int wheels = VelRobotConstants.DRIVE_MOTOR_NAMES.length;
+        if (staticPower.length != wheels || gain.length != wheels) {
+            throw new IllegalArgumentException("Need a value for each of the " + wheels + " wheels");
+        }
+        this.staticPower = Arrays.copyOf(staticPower, wheels);
+        this.gain = Arrays.copyOf(gain, wheels);
+    }
+
+    /**
+     * @return Identical wheels using the values in {@link VelRobotConstants}, for when the drive
+     * hasn't been calibrated.
+     */
+    public static WheelCalibration defaults() {
+        double[] staticPower = new double[VelRobotConstants.DRIVE_MOTOR_NAMES.length];
+        double[] gain = new double[VelRobotConstants.DRIVE_MOTOR_NAMES.length];
+        Arrays.fill(staticPower, VelRobotConstants.DRIVE_DEFAULT_STATIC_POWER);
+        Arrays.fill(gain, VelRobotConstants.DRIVE_DEFAULT_TICKS_PER_SEC_PER_POWER);
+        return new WheelCalibration(staticPower, gain);
+    }
+
+    /**
+     * @param name Hardware name of a drive motor.
+     * @return Index of that wheel in the table.
+     * @throws IllegalArgumentException If the name isn't a drive motor.
+     */
+    public static int indexOf(String name) {
+        for (int i = 0; i < VelRobotConstants.DRIVE_MOTOR_NAMES.length; i++) {
+            if (VelRobotConstants.DRIVE_MOTOR_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a drive motor: " + name);
+    }
+
+    /**
+     * @param wheel Index of the wheel.
+     * @return Power the wheel needs before it starts turning.
+     */
+    public double getStaticPower(int wheel) {
+        return staticPower[wheel];
+    }
+
+    /**
+     * @param wheel Index of the wheel.
+     * @return Ticks per second the wheel gains per unit of power.
+     */
+    public double getGain(int wheel) {
+        return gain[wheel];
+    }
+
+    /**
+     * @param wheel Index of the wheel.
+     * @return Speed of the wheel at full power, in ticks per second.
+     */
+    public double getFreeSpeed(int wheel) {
+        return gain[wheel] * (1.0 - staticPower[wheel]);
+    }
+
+    /**
+     * @return Free speed of the slowest wheel. Every wheel can reach this, so velocity targets
+     * are given as a fraction of it.
+     */
+    public double getSlowestFreeSpeed() {
+        double slowest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < gain.length; i++) {
+            slowest = Math.min(slowest, getFreeSpeed(i));
+        }
+        return slowest;
+    }
+
+    /**
+     * @param wheel       Index of the wheel.
+     * @param ticksPerSec Speed we want the wheel to turn.
+     * @return The power we expect that to take.
+     */
+    public double getPower(int wheel, double ticksPerSec) {
+        if (ticksPerSec == 0.0) {
+            return 0.0;
+        }
+        return Math.signum(ticksPerSec) * (staticPower[wheel] + Math.abs(ticksPerSec) / gain[wheel]);
+    }
+
+    /**
+     * Fit one wheel's static power and gain to measured speeds. Forward and reverse runs are
+     * combined, so pass the signed values.
+     *
+     * @param power       Power each measurement was taken at.
+     * @param ticksPerSec Speed measured at each power.
+     * @param count       Number of measurements to use.
+     * @return The static power and gain, in that order.
+     * @throws IllegalArgumentException If the measurements don't show the wheel speeding up
+     *                                  with power.
+     */
+    public static double[] fitWheel(double[] power, double[] ticksPerSec, int count) {
+        double sumP = 0.0;
+        double sumV = 0.0;
+        double sumPP = 0.0;
+        double sumPV = 0.0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (ticksPerSec[i] == 0.0) {
+                // Stalled, so this power says nothing about the slope
+                continue;
+            }
+            double p = Math.abs(power[i]);
+            double v = Math.abs(ticksPerSec[i]);
+            sumP += p;
+            sumV += v;
+            sumPP += p * p;
+            sumPV += p * v;
+            n++;
+        }
+
+        double denominator = n * sumPP - sumP * sumP;
+        if (n < 2 || denominator <= 0.0) {
+            throw new IllegalArgumentException("Need the wheel turning at two different powers");
+        }
+        double slope = (n * sumPV - sumP * sumV) / denominator;
+        double intercept = (sumV - slope * sumP) / n;
+        if (slope <= 0.0) {
+            throw new IllegalArgumentException("Wheel doesn't speed up with power; check the encoder");
+        }
+        return new double[] {Math.max(0.0, -intercept / slope), slope};
+    }
+
+    /**
+     * Write the table to a file.
+     *
+     * @param file File to write.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        for (int i = 0; i < gain.length; i++) {
+            String name = VelRobotConstants.DRIVE_MOTOR_NAMES[i];
+            properties.setProperty(name + KEY_STATIC, Double.toString(staticPower[i]));
+            properties.setProperty(name + KEY_GAIN, Double.toString(gain[i]));
+        }
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Drive wheel calibration, ticks/s = gain * (power - staticPower)");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a table from a file.
+     *
+     * @param file File written by {@link #save(File)}.
+     * @return The table.
+     * @throws IOException If the file can't be read or is missing a value.
+     */
+    public static WheelCalibration load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        int wheels = VelRobotConstants.DRIVE_MOTOR_NAMES.length;
+        double[] staticPower = new double[wheels];
+        double[] gain = new double[wheels];
+        try {
+            for (int i = 0; i < wheels; i++) {
+                String name = VelRobotConstants.DRIVE_MOTOR_NAMES[i];
+                staticPower[i] = Double.parseDouble(properties.getProperty(name + KEY_STATIC));
+                gain[i] = Double.parseDouble(properties.getProperty(name + KEY_GAIN));
+            }
+        } catch (NullPointerException e) {
+            throw new IOException("Drive calibration is missing a value: " + file, e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Drive calibration has a bad value: " + file, e);
+        }
+        return new WheelCalibration(staticPower, gain);
+    }
+
+    /**
+     * Read a table from a file, falling back to {@link #defaults()} if there isn't a good one.
+     *
+     * @param file File written by {@link #save(File)}.
+     * @return The table.
+     */
+    public static WheelCalibration loadOrDefault(File file) {
+        if (!file.exists()) {
+            return defaults();
+        }
+        try {
+            WheelCalibration calibration = load(file);
+            if (calibration.getSlowestFreeSpeed() > 0.0) {
+                return calibration;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return defaults();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < gain.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format("%s: %.0f ticks/s (static %.3f)",
+                    VelRobotConstants.DRIVE_MOTOR_NAMES[i], getFreeSpeed(i), staticPower[i]));
+        }
+        return builder.toString();
+    }
+}
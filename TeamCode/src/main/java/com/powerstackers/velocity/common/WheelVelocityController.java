@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Closed loop speed control for the drive wheels.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.util.Range;
+
+import org.firstinspires.ftc.robotcore.internal.AppUtil;
+
+import java.io.File;
+
+/**
+ * Drives each wheel at a commanded encoder speed instead of a commanded power, so a weak motor or
+ * a stiff gearbox doesn't pull the robot off a straight line.
+ *
+ * <p>Each wheel's power is the feedforward from its {@link WheelCalibration} plus a PI correction
+ * on the measured encoder speed. The integral term soaks up whatever the calibration has missed
+ * since it was last run, such as a gearbox that has worn in.
+ *
+ * <p>Targets are fractions of the slowest wheel's free speed, so 1.0 is the fastest every wheel
+ * can go and the numbers can be used in place of powers.
+ *
+ * <p>Call {@link #update} every loop. Speeds are only re-measured once per control period, since
+ * the encoder values don't change between hardware reads.
+ *
+ * @author Powerstackers
+ */
+public class WheelVelocityController {
+
+    private static final int WHEELS = MecanumKinematics.MOTOR_COUNT;
+
+    private final WheelCalibration calibration;
+    private final double kP;
+    private final double kI;
+    private final double integralLimit;
+    private final double smoothing;
+    private final long periodNanos;
+
+    private final int[] wheelIndex = new int[WHEELS];
+    private final double[] target = new double[WHEELS];
+    private final double[] velocity = new double[WHEELS];
+    private final double[] integral = new double[WHEELS];
+    private final double[] output = new double[WHEELS];
+    private final int[] lastPositions = new int[WHEELS];
+    private long lastNanos = 0;
+    private boolean hasLast = false;
+    private boolean hasVelocity = false;
+
+    /**
+     * Construct a controller.
+     *
+     * @param calibration   Measured speed of each wheel.
+     * @param kP            Power added per tick/second the wheel is too slow.
+     * @param kI            Power added per tick the wheel has fallen behind.
+     * @param integralLimit Largest amount of power the integral term is allowed to contribute.
+     * @param smoothing     Low pass filter gain on the measured speeds, 1.0 means no filtering.
+     * @param periodMs      Shortest time between speed measurements, in milliseconds.
+     */
+    public WheelVelocityController(WheelCalibration calibration, double kP, double kI,
+                                   double integralLimit, double smoothing, long periodMs) {
+        this.calibration = calibration;
+        this.kP = kP;
+        this.kI = kI;
+        this.integralLimit = integralLimit;
+        this.smoothing = smoothing;
+        this.periodNanos = periodMs * 1000000L;
+        setWheels(VelRobotConstants.DRIVE_MOTOR_NAMES);
+    }
+
+    /**
+     * Construct a controller using the saved calibration and the gains in
+     * {@link VelRobotConstants}.
+     */
+    public WheelVelocityController() {
+        this(loadCalibration(),
+                VelRobotConstants.DRIVE_VELOCITY_KP,
+                VelRobotConstants.DRIVE_VELOCITY_KI,
+                VelRobotConstants.DRIVE_VELOCITY_INTEGRAL_LIMIT,
+                VelRobotConstants.DRIVE_VELOCITY_SMOOTHING,
+                VelRobotConstants.DRIVE_VELOCITY_PERIOD_MS);
+    }
+
+    /**
+     * @return Where the drive calibration OpMode saves the wheel calibration.
+     */
+    public static File getCalibrationFile() {
+        return new File(AppUtil.FIRST_FOLDER, VelRobotConstants.DRIVE_CALIBRATION_FILE);
+    }
+
+    /**
+     * @return The saved wheel calibration, or the defaults if the drive hasn't been calibrated.
+     */
+    public static WheelCalibration loadCalibration() {
+        return WheelCalibration.loadOrDefault(getCalibrationFile());
+    }
+
+    /**
+     * @return The calibration this controller uses.
+     */
+    public WheelCalibration getCalibration() {
+        return calibration;
+    }
+
+    /**
+     * Tell the controller which motor is plugged in as each of motorDrive1 to motorDrive4. Call
+     * this whenever the drive direction changes.
+     *
+     * @param names Hardware names of motorDrive1 to motorDrive4.
+     */
+    public void setWheels(String... names) {
+        if (names.length != WHEELS) {
+            throw new IllegalArgumentException("Need a name for each of the " + WHEELS + " wheels");
+        }
+        for (int i = 0; i < WHEELS; i++) {
+            wheelIndex[i] = WheelCalibration.indexOf(names[i]);
+        }
+        reset();
+    }
+
+    /**
+     * Set the speed for one wheel.
+     *
+     * @param motor Index of the motor, where motorDrive1 is 0.
+     * @param speed Fraction of the slowest wheel's free speed, from -1:1.
+     */
+    public void setTarget(int motor, double speed) {
+        target[motor] = Range.clip(speed, -1.0, 1.0);
+    }
+
+    /**
+     * Measure the wheel speeds and work out new powers.
+     *
+     * @param nanos Current time from {@link System#nanoTime()}.
+     * @param pos1  Encoder position of motorDrive1.
+     * @param pos2  Encoder position of motorDrive2.
+     * @param pos3  Encoder position of motorDrive3.
+     * @param pos4  Encoder position of motorDrive4.
+     */
+    public void update(long nanos, int pos1, int pos2, int pos3, int pos4) {
+        if (!hasLast) {
+            lastPositions[0] = pos1;
+            lastPositions[1] = pos2;
+            lastPositions[2] = pos3;
+            lastPositions[3] = pos4;
+            lastNanos = nanos;
+            hasLast = true;
+        } else if (nanos - lastNanos >= periodNanos) {
+            double dtSec = (nanos - lastNanos) / 1e9;
+            measure(0, pos1, dtSec);
+            measure(1, pos2, dtSec);
+            measure(2, pos3, dtSec);
+            measure(3, pos4, dtSec);
+            lastNanos = nanos;
+            hasVelocity = true;
+            integrate(dtSec);
+        }
+
+        double fullSpeed = calibration.getSlowestFreeSpeed();
+        for (int i = 0; i < WHEELS; i++) {
+            double ticksPerSec = target[i] * fullSpeed;
+            double power = calibration.getPower(wheelIndex[i], ticksPerSec);
+            if (hasVelocity && target[i] != 0.0) {
+                power += kP * (ticksPerSec - velocity[i]) + kI * integral[i];
+            }
+            output[i] = Range.clip(power, -1.0, 1.0);
+        }
+    }
+
+    private void integrate(double dtSec) {
+        double fullSpeed = calibration.getSlowestFreeSpeed();
+        double maxIntegral = kI == 0.0 ? 0.0 : integralLimit / kI;
+        for (int i = 0; i < WHEELS; i++) {
+            double error = target[i] * fullSpeed - velocity[i];
+            // Don't wind up while stopped or while the output can't go any further
+            boolean pushingHigh = output[i] >= 1.0 && error > 0.0;
+            boolean pushingLow = output[i] <= -1.0 && error < 0.0;
+            if (target[i] == 0.0) {
+                integral[i] = 0.0;
+            } else if (!pushingHigh && !pushingLow) {
+                integral[i] = Range.clip(integral[i] + error * dtSec, -maxIntegral, maxIntegral);
+            }
+        }
+    }
+
+    private void measure(int motor, int position, double dtSec) {
+        double measured = (position - lastPositions[motor]) / dtSec;
+        velocity[motor] = hasVelocity
+                ? velocity[motor] + smoothing * (measured - velocity[motor])
+                : measured;
+        lastPositions[motor] = position;
+    }
+
+    /**
+     * @param motor Index of the motor, where motorDrive1 is 0.
+     * @return Power to send to that motor.
+     */
+    public double getPower(int motor) {
+        return output[motor];
+    }
+
+    /**
+     * @param motor Index of the motor, where motorDrive1 is 0.
+     * @return Last measured speed of that motor, in ticks per second.
+     */
+    public double getVelocity(int motor) {
+        return velocity[motor];
+    }
+
+    /**
+     * Stop every wheel and forget the measured speeds. Call this after the encoders are reset.
+     */
+    public void reset() {
+        for (int i = 0; i < WHEELS; i++) {
+            target[i] = 0.0;
+            velocity[i] = 0.0;
+            integral[i] = 0.0;
+            output[i] = 0.0;
+        }
+        hasLast = false;
+        hasVelocity = false;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Counts hardware writes sent and skipped.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many writes the caching hardware wrappers sent to the controllers and how many they
+ * skipped because the value hadn't changed. One instance is shared by all of a robot's wrappers.
+ * The shooter thread writes through a wrapper too, so the counts are atomic.
+ *
+ * @author Powerstackers
+ */
+public class WriteStats {
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Count a write that went to the hardware.
+     */
+    public void recordSent() {
+        sent.incrementAndGet();
+    }
+
+    /**
+     * Count a write that was skipped.
+     */
+    public void recordSuppressed() {
+        suppressed.incrementAndGet();
+    }
+
+    /**
+     * @return Writes sent to the hardware so far.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return Writes skipped so far.
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Decide whether a new value is different enough from the last one sent to be worth sending.
+     *
+     * @param last    The last value sent, or NaN if nothing has been sent.
+     * @param value   The new value.
+     * @param epsilon Changes smaller than this are skipped.
+     * @return True if the value should be sent.
+     */
+    static boolean changed(double last, double value, double epsilon) {
+        // Always send an exact zero, so a stop is never lost to the epsilon
+        if (value == 0.0) {
+            return last != 0.0;
+        }
+        return Double.isNaN(last) || Math.abs(value - last) > epsilon;
+    }
+}
@@ -64,5 +64,31 @@ public class PublicEnums {
     public enum BeaconPostion {
         OUT, IN
     }
+
+    /** Where the shot cycle is: waiting for the flywheel, feeding a ball, or recovering from one. */
+    public enum FeedState {
+        CLOSED, OPEN, RECOVERING
+    }
+
+    /**
+     * How mecanum wheel powers are brought back under 1: scale everything down together, or keep
+     * the rotation and scale only the translation.
+     */
+    public enum Desaturation {
+        PROPORTIONAL, ROTATION_PRIORITY
+    }
+
+    /** How hard the flywheel is spinning: stopped, idling between volleys, or at shooting speed. */
+    public enum ShooterPowerState {
+        OFF, IDLE, READY
+    }
+
+    /**
+     * How the drive stops: coast with the motors floating, short the motors to brake, or brake
+     * with a short reverse pulse first.
+     */
+    public enum StopMode {
+        COAST, BRAKE, ACTIVE
+    }
     // TODO This can be implemented later in autonomous
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Measures the speed of each drive wheel.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.opmodes.teleop;
+
+import com.powerstackers.velocity.common.VelRobotConstants;
+import com.powerstackers.velocity.common.VoltageCompensator;
+import com.powerstackers.velocity.common.WheelCalibration;
+import com.powerstackers.velocity.common.WheelVelocityController;
+import com.qualcomm.robotcore.eventloop.opmode.LinearOpMode;
+import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.VoltageSensor;
+
+import java.io.IOException;
+
+/**
+ * Runs each drive wheel by itself at {@link VelRobotConstants#DRIVE_CALIBRATE_POWERS}, forward
+ * and backward, and measures how fast the encoder turns. The speeds are fit to a
+ * {@link WheelCalibration}, which autonomous loads the next time the robot is initialized.
+ *
+ * <p>Run this with the robot on blocks. Run it again whenever a drive motor or gearbox is
+ * swapped, or the robot starts pulling to one side.
+ *
+ * @author Powerstackers
+ */
+@SuppressWarnings("unused")
+@TeleOp(name = "Drive Calibration", group = "Powerstackers")
+public class DriveCalibration extends LinearOpMode {
+
+    private VoltageSensor voltageSensor;
+
+    @Override
+    public void runOpMode() throws InterruptedException {
+        String[] names = VelRobotConstants.DRIVE_MOTOR_NAMES;
+        DcMotor[] motors = new DcMotor[names.length];
+        for (int i = 0; i < names.length; i++) {
+            motors[i] = hardwareMap.dcMotor.get(names[i]);
+            motors[i].setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
+            motors[i].setPower(0.0);
+        }
+        voltageSensor = VoltageCompensator.findVoltageSensor(hardwareMap);
+
+        telemetry.addLine("Robot on blocks. Press play to calibrate the drive.");
+        telemetry.update();
+        waitForStart();
+
+        int steps = 2 * VelRobotConstants.DRIVE_CALIBRATE_POWERS.length;
+        double[] staticPower = new double[names.length];
+        double[] gain = new double[names.length];
+        double[] power = new double[steps];
+        double[] speed = new double[steps];
+
+        for (int wheel = 0; wheel < names.length && opModeIsActive(); wheel++) {
+            int count = 0;
+            try {
+                for (double stepPower : VelRobotConstants.DRIVE_CALIBRATE_POWERS) {
+                    for (int sign = 1; sign >= -1; sign -= 2) {
+                        double[] result = measure(motors[wheel], names[wheel], sign * stepPower);
+                        power[count] = result[0];
+                        speed[count] = result[1];
+                        count++;
+                    }
+                }
+            } finally {
+                motors[wheel].setPower(0.0);
+            }
+            if (!opModeIsActive()) {
+                return;
+            }
+
+            try {
+                double[] fit = WheelCalibration.fitWheel(power, speed, count);
+                staticPower[wheel] = fit[0];
+                gain[wheel] = fit[1];
+            } catch (IllegalArgumentException e) {
+                telemetry.addData(names[wheel], "fit failed: " + e.getMessage());
+                telemetry.update();
+                while (opModeIsActive()) {
+                    idle();
+                }
+                return;
+            }
+        }
+        if (!opModeIsActive()) {
+            return;
+        }
+
+        WheelCalibration calibration = new WheelCalibration(staticPower, gain);
+        try {
+            calibration.save(WheelVelocityController.getCalibrationFile());
+        } catch (IOException e) {
+            telemetry.addData("Calibration", "not saved: " + e.getMessage());
+        }
+        for (int i = 0; i < names.length; i++) {
+            telemetry.addData(names[i], "%.0f ticks/s, static %.3f, %.0f%% of slowest",
+                    calibration.getFreeSpeed(i), calibration.getStaticPower(i),
+                    100.0 * calibration.getFreeSpeed(i) / calibration.getSlowestFreeSpeed());
+        }
+        telemetry.update();
+
+        while (opModeIsActive()) {
+            idle();
+        }
+    }
+
+    /**
+     * Hold a power until the wheel settles, then time how far the encoder turns.
+     *
+     * @return The power normalized to the nominal battery voltage, and the speed in ticks per
+     * second.
+     */
+    private double[] measure(DcMotor motor, String name, double stepPower)
+            throws InterruptedException {
+        motor.setPower(stepPower);
+        telemetry.addData(name, "power %.2f", stepPower);
+        telemetry.update();
+        sleep(VelRobotConstants.DRIVE_CALIBRATE_SETTLE_MS);
+
+        long startNanos = System.nanoTime();
+        int startPosition = motor.getCurrentPosition();
+        double voltageSum = 0.0;
+        int voltageCount = 0;
+        long endNanos = startNanos + VelRobotConstants.DRIVE_CALIBRATE_MEASURE_MS * 1000000L;
+        while (opModeIsActive() && System.nanoTime() < endNanos) {
+            if (voltageSensor != null) {
+                voltageSum += voltageSensor.getVoltage();
+                voltageCount++;
+            }
+            idle();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double ticksPerSec = (motor.getCurrentPosition() - startPosition) / seconds;
+        double voltage = voltageCount == 0
+                ? VelRobotConstants.NOMINAL_BATTERY_VOLTAGE : voltageSum / voltageCount;
+
+        motor.setPower(0.0);
+        sleep(VelRobotConstants.DRIVE_CALIBRATE_SETTLE_MS);
+        return new double[] {stepPower * voltage / VelRobotConstants.NOMINAL_BATTERY_VOLTAGE,
+                ticksPerSec};
+    }
+}
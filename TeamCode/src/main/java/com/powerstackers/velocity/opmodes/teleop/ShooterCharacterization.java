@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Spins up the shooter at several powers and fits a flywheel model.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.opmodes.teleop;
+
+import com.powerstackers.velocity.common.FlywheelModel;
+import com.powerstackers.velocity.common.FlywheelModelFitter;
+import com.powerstackers.velocity.common.Shooter;
+import com.powerstackers.velocity.common.VelRobotConstants;
+import com.powerstackers.velocity.common.VoltageCompensator;
+import com.qualcomm.robotcore.eventloop.opmode.LinearOpMode;
+import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.Servo;
+import com.qualcomm.robotcore.hardware.VoltageSensor;
+
+import org.firstinspires.ftc.robotcore.internal.AppUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Steps the shooter through {@link VelRobotConstants#SHOOTER_CHARACTERIZE_POWERS}, letting it
+ * coast down after each one, and records the encoder and battery voltage as fast as the hardware
+ * will go. At the end the samples are fit to a {@link FlywheelModel}, which the shooter loads the
+ * next time the robot is initialized.
+ *
+ * <p>The raw samples are saved too, so several runs can be combined on a laptop with
+ * {@link FlywheelModelFitter#main(String[])}.
+ *
+ * <p>Run this with the robot on blocks and no particles loaded.
+ *
+ * @author Powerstackers
+ */
+@SuppressWarnings("unused")
+@TeleOp(name = "Shooter Characterization", group = "Powerstackers")
+public class ShooterCharacterization extends LinearOpMode {
+
+    private static final int MAX_SAMPLES = 8000;
+
+    private final double[] time = new double[MAX_SAMPLES];
+    private final double[] power = new double[MAX_SAMPLES];
+    private final double[] battery = new double[MAX_SAMPLES];
+    private final double[] position = new double[MAX_SAMPLES];
+    private int count = 0;
+
+    private DcMotor motorShooter;
+    private VoltageSensor voltageSensor;
+    private long startNanos;
+
+    @Override
+    public void runOpMode() throws InterruptedException {
+        // Drive the hardware directly; VelRobot would start the shooter control thread
+        motorShooter = hardwareMap.dcMotor.get("motorShooter");
+        Servo servoShoot = hardwareMap.servo.get("servoShoot");
+        voltageSensor = VoltageCompensator.findVoltageSensor(hardwareMap);
+
+        motorShooter.setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
+        motorShooter.setPower(0.0);
+        servoShoot.setPosition(VelRobotConstants.SHOOT_SERVO_CLOSED);
+
+        telemetry.addLine("Robot on blocks, no particles. Press play to characterize.");
+        telemetry.update();
+        waitForStart();
+
+        try {
+            startNanos = System.nanoTime();
+            for (double stepPower : VelRobotConstants.SHOOTER_CHARACTERIZE_POWERS) {
+                record(stepPower, VelRobotConstants.SHOOTER_CHARACTERIZE_STEP_MS);
+                record(0.0, VelRobotConstants.SHOOTER_CHARACTERIZE_COAST_MS);
+            }
+        } finally {
+            motorShooter.setPower(0.0);
+        }
+
+        if (!opModeIsActive()) {
+            return;
+        }
+
+        File samplesFile = new File(AppUtil.FIRST_FOLDER, VelRobotConstants.SHOOTER_SAMPLES_FILE);
+        try {
+            FlywheelModelFitter.writeSamples(samplesFile, time, power, battery, position, count);
+        } catch (IOException e) {
+            telemetry.addData("Samples", "not saved: " + e.getMessage());
+        }
+
+        try {
+            // Throws instead of returning a model that would be wrong to save
+            FlywheelModel model = FlywheelModelFitter.fit(time, power, battery, position, count);
+            model.save(Shooter.getModelFile());
+            telemetry.addData("Model", model);
+            telemetry.addData("Free speed", "%.0f rpm",
+                    model.getFreeSpeedRpm(VelRobotConstants.NOMINAL_BATTERY_VOLTAGE));
+            telemetry.addData("Spin-up", "%.2f s",
+                    model.getSpinUpSec(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM,
+                            VelRobotConstants.NOMINAL_BATTERY_VOLTAGE));
+        } catch (IllegalArgumentException e) {
+            telemetry.addData("Fit failed", e.getMessage());
+        } catch (IOException e) {
+            telemetry.addData("Model", "not saved: " + e.getMessage());
+        }
+        telemetry.addData("Samples", count);
+        telemetry.update();
+
+        while (opModeIsActive()) {
+            idle();
+        }
+    }
+
+    /**
+     * Hold a power for a while, recording a sample every time through the loop.
+     */
+    private void record(double stepPower, long durationMs) throws InterruptedException {
+        motorShooter.setPower(stepPower);
+        long endNanos = System.nanoTime() + durationMs * 1000000L;
+        while (opModeIsActive() && System.nanoTime() < endNanos && count < MAX_SAMPLES) {
+            long now = System.nanoTime();
+            time[count] = (now - startNanos) / 1e9;
+            power[count] = stepPower;
+            battery[count] = voltageSensor == null
+                    ? VelRobotConstants.NOMINAL_BATTERY_VOLTAGE : voltageSensor.getVoltage();
+            position[count] = motorShooter.getCurrentPosition();
+            count++;
+
+            telemetry.addData("Power", stepPower);
+            telemetry.addData("Samples", count);
+            telemetry.update();
+            idle();
+        }
+    }
+}
@@ -24,10 +24,15 @@ import android.app.Activity;
 import android.graphics.Color;
 import android.view.View;
 
+import com.powerstackers.velocity.common.HeadingHold;
+import com.powerstackers.velocity.common.ShotMetrics;
 import com.powerstackers.velocity.common.VelRobot;
 import com.powerstackers.velocity.common.VelRobotConstants;
+import com.powerstackers.velocity.common.WriteStats;
 import com.powerstackers.velocity.common.enums.PublicEnums;
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
 import com.powerstackers.velocity.common.enums.PublicEnums.MotorSetting;
+import com.powerstackers.velocity.common.enums.PublicEnums.ShooterPowerState;
 import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 import com.qualcomm.robotcore.eventloop.opmode.TeleOp;
 import com.qualcomm.robotcore.hardware.DcMotor;
@@ -50,19 +55,26 @@ public class VelTeleop extends OpMode {
     private VelRobot robot;
 
     private boolean flag_grabberBeenReleased = false;
-    private boolean flag_shootButtonJustPressed = false;
-    private boolean flag_shooterIsOn = false;
+    private boolean flag_shooterIdleToggleJustPressed = false;
+    private boolean flag_shooterIdleOn = VelRobotConstants.SHOOTER_IDLE_DEFAULT;
 
     private boolean flag_speedToggleJustPressed = false;
     private boolean flag_speedChanged = false;
     private double scale = VelRobotConstants.DRIVE_SPEED_NORMAL; // Normal Speed Needs to be tested
-    private double rotationNegation = 1;
+    private boolean flag_fieldCentricToggleJustPressed = false;
+    private final HeadingHold headingHold = new HeadingHold();
+    private long lastWritesSent = 0;
+    private long lastWritesSuppressed = 0;
     //final View relativeLayout = ((Activity) hardwareMap.appContext).findViewById(R.id.RelativeLayout);
 
     @Override
     public void init() {
 
         robot = new VelRobot(this);
+        if (VelRobotConstants.HEADING_HOLD_ENABLED) {
+            // At full speed, scaling everything down would shrink the hold's corrections too
+            robot.setDriveDesaturation(Desaturation.ROTATION_PRIORITY);
+        }
         try {
             robot.initializeRobot();
         } catch (InterruptedException e) {
@@ -75,7 +87,12 @@ public class VelTeleop extends OpMode {
      */
     @Override
     public void init_loop() {
-        telemetry.addLine("Waiting for start...");
+        robot.updateGyroBias();
+        if (robot.isGyroCalibrating()) {
+            telemetry.addLine("Gyro calibrating, keep the robot still...");
+        } else {
+            telemetry.addLine("Waiting for start...");
+        }
     }
 
     /*
@@ -84,10 +101,12 @@ public class VelTeleop extends OpMode {
     @Override
     public void start() {
         runtime.reset();
+        robot.zeroHeading();
     }
 
     @Override
     public void loop() {
+        robot.updateGyroBias();
         telemetry.addData("shooterEncVal", robot.getShooterEncVal());
         telemetry.addData("Status", "Running: ");
         robot.displayDirection();
@@ -95,12 +114,15 @@ public class VelTeleop extends OpMode {
         boolean buttonParticlePickupIn = gamepad2.left_bumper;
         boolean buttonParticlePickupOut = gamepad2.left_trigger > 0.5;
         boolean buttonShooter = gamepad2.a;
+        boolean buttonShooterIdleToggle = gamepad2.x;
         boolean buttonLiftUp = gamepad2.right_bumper;
         boolean buttonLiftDown = gamepad2.right_trigger > 0.5;
         boolean buttonCapBallTighter = gamepad2.dpad_down;
         boolean buttonCapBallLooser = gamepad2.dpad_up;
         boolean buttonSpeedFastToggle = gamepad1.right_bumper;
         boolean buttonSpeedSlowHold = gamepad1.left_bumper;
+        boolean buttonFieldCentricToggle = gamepad1.x;
+        boolean buttonZeroHeading = gamepad1.a;
         boolean buttonTapBeacon = gamepad1.y;
         boolean buttonShoot = gamepad2.b;
         boolean buttonBeaconRight = gamepad1.right_trigger > 0.5;
@@ -125,39 +147,56 @@ public class VelTeleop extends OpMode {
             telemetry.update();
         }
 
-        // Set the movement of the robot's wheels
-        if (robot.robotDirection == PublicEnums.Direction.E || robot.robotDirection == PublicEnums.Direction.W) {
-            rotationNegation = -1;
-        } else {
-            rotationNegation = 1;
+        // Toggle field-centric drive, and re-zero the heading with the robot facing away from us
+        if (buttonFieldCentricToggle && !flag_fieldCentricToggleJustPressed) {
+            flag_fieldCentricToggleJustPressed = true;
+            robot.setFieldCentric(!robot.isFieldCentric());
+        } else if (!buttonFieldCentricToggle) {
+            flag_fieldCentricToggleJustPressed = false;
+        }
+        if (buttonZeroHeading) {
+            robot.zeroHeading();
+            headingHold.reset();
+        }
+
+        // Set the movement of the robot's wheels. While translating without rotation input, the
+        // heading hold supplies the rotation so strafes stay straight.
+        double driveSpeed = VelRobot.mecSpeedFromJoystick(gamepad1);
+        double driveRotation = VelRobot.mecSpinFromJoystick(gamepad1) * 2;
+        if (VelRobotConstants.HEADING_HOLD_ENABLED) {
+            driveRotation = headingHold.update(System.nanoTime(), robot.getFieldHeading(),
+                    driveSpeed, driveRotation);
         }
         if (buttonSpeedSlowHold) {
             scale = VelRobotConstants.DRIVE_SPEED_SLOW;
-            robot.setMovement(VelRobot.mecDirectionFromJoystick(gamepad1),
-                    VelRobot.mecSpeedFromJoystick(gamepad1),
-                    VelRobot.mecSpinFromJoystick(gamepad1) * 2 * rotationNegation,
+            robot.drive(VelRobot.mecDirectionFromJoystick(gamepad1), driveSpeed, driveRotation,
                     scale);
             telemetry.addData("Drive Speed: ", "Slow");
             telemetry.update();
         } else {
-            robot.setMovement(VelRobot.mecDirectionFromJoystick(gamepad1),
-                    VelRobot.mecSpeedFromJoystick(gamepad1),
-                    VelRobot.mecSpinFromJoystick(gamepad1) * 2 * rotationNegation,
+            robot.drive(VelRobot.mecDirectionFromJoystick(gamepad1), driveSpeed, driveRotation,
                     scale);
             telemetry.addData("Drive Speed: ", "Normal");
             telemetry.update();
         }
-        if (gamepad1.dpad_up) {
-            robot.directionChange(PublicEnums.Direction.N);
-        }
-        if (gamepad1.dpad_left) {
-            robot.directionChange(PublicEnums.Direction.W);
-        }
-        if (gamepad1.dpad_down) {
-            robot.directionChange(PublicEnums.Direction.S);
-        }
-        if (gamepad1.dpad_right) {
-            robot.directionChange(PublicEnums.Direction.E);
+
+        // The N/E/S/W orientations only apply to robot-centric drive
+        if (robot.isFieldCentric()) {
+            telemetry.addData("Drive", "Field-centric, heading %.0f",
+                    Math.toDegrees(robot.getFieldHeading()));
+        } else {
+            if (gamepad1.dpad_up) {
+                robot.directionChange(PublicEnums.Direction.N);
+            }
+            if (gamepad1.dpad_left) {
+                robot.directionChange(PublicEnums.Direction.W);
+            }
+            if (gamepad1.dpad_down) {
+                robot.directionChange(PublicEnums.Direction.S);
+            }
+            if (gamepad1.dpad_right) {
+                robot.directionChange(PublicEnums.Direction.E);
+            }
         }
 
         //set tap beacon
@@ -168,7 +207,7 @@ public class VelTeleop extends OpMode {
 //        }
 
         //ColorSensor Controls
-        robot.sensorColor.enableLed(false);
+        robot.setColorLed(false);
 //        robot.sensorColorGroundL.enableLed(true);
 //        robot.sensorColorGroundR.enableLed(true);
 
@@ -191,12 +230,22 @@ public class VelTeleop extends OpMode {
         }else{
             robot.rightBeaconPosition(PublicEnums.BeaconPostion.OUT);
         }
-        // Set the Shooter motor value.
+        // Set the Shooter motor value. X turns idling between volleys on and off, so the next
+        // volley spins up faster; it starts as SHOOTER_IDLE_DEFAULT.
         // TODO Make shooter able to spin backwards for emergencies
+        if (buttonShooterIdleToggle && !flag_shooterIdleToggleJustPressed) {
+            flag_shooterIdleToggleJustPressed = true;
+            flag_shooterIdleOn = !flag_shooterIdleOn;
+        } else if (!buttonShooterIdleToggle) {
+            flag_shooterIdleToggleJustPressed = false;
+        }
+
         if (buttonShooter) {
-            robot.setShooter(MotorSetting.FORWARD);
+            robot.setShooterState(ShooterPowerState.READY);
+        } else if (flag_shooterIdleOn) {
+            robot.setShooterState(ShooterPowerState.IDLE);
         } else {
-            robot.setShooter(MotorSetting.STOP);
+            robot.setShooterState(ShooterPowerState.OFF);
         }
 
         // Set lift motor
@@ -217,11 +266,8 @@ public class VelTeleop extends OpMode {
         else{
             robot.servoBallGrab.setPosition(0.5);
         }
-        if (buttonShoot) {
-            robot.servoShoot.setPosition(VelRobotConstants.SHOOT_SERVO_OPEN);
-        } else {
-            robot.servoShoot.setPosition(VelRobotConstants.SHOOT_SERVO_CLOSED);
-        }
+        // Hold to fire. The shooter lets one ball through each time the flywheel is back up to speed.
+        robot.setShooterFeed(buttonShoot);
 
 //        robot.motorShooter1.setMode(DcMotor.RunMode.RUN_WITHOUT_ENCODER);
 //        robot.motorShooter1.setPower(1);
@@ -245,8 +291,28 @@ public class VelTeleop extends OpMode {
 
 //        telemetry here vvv
 
+        telemetry.addData("Shooter", robot.getShooterState());
+        WriteStats writes = robot.getWriteStats();
+        long writesSent = writes.getSent();
+        long writesSuppressed = writes.getSuppressed();
+        telemetry.addData("Writes sent/skipped per loop", "%d / %d",
+                writesSent - lastWritesSent, writesSuppressed - lastWritesSuppressed);
+        lastWritesSent = writesSent;
+        lastWritesSuppressed = writesSuppressed;
         if (robot.isShooterRunning()) {
             telemetry.addData("Shooter RPM", robot.getShooterRPM());
+            telemetry.addData("Shots", robot.getShotCount());
+            telemetry.addData("Shot Cycle ms", robot.getLastShotCycleMs());
+            ShotMetrics metrics = robot.getShotMetrics();
+            if (metrics.getShotCount() > 0) {
+                telemetry.addData("Release RPM p10/50/90", "%.0f / %.0f / %.0f",
+                        metrics.getReleaseRpm(10), metrics.getReleaseRpm(50),
+                        metrics.getReleaseRpm(90));
+                telemetry.addData("Dip RPM p50/90", "%.0f / %.0f",
+                        metrics.getDipRpm(50), metrics.getDipRpm(90));
+                telemetry.addData("Recovery ms p50/90", "%.0f / %.0f",
+                        metrics.getRecoveryMs(50), metrics.getRecoveryMs(90));
+            }
 //            relativeLayout.post(new Runnable() {
 //                public void run() {
 //                    if (robot.getShooterRPM() < (VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM + 70) && robot.getShooterRPM() > (VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM - 70)) {
@@ -277,6 +343,6 @@ public class VelTeleop extends OpMode {
      */
     @Override
     public void stop() {
-        robot.stopAllMotors();
+        robot.shutdown();
     }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the caching motor wrapper.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorSimple;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counts the bus transactions {@link CachingDcMotor} lets through to a {@link FakeDcMotor} in a
+ * loop shaped like the teleop drive loop.
+ *
+ * @author Powerstackers
+ */
+public class CachingDcMotorTest {
+
+    private final FakeDcMotor[] fakes = new FakeDcMotor[MecanumKinematics.MOTOR_COUNT];
+    private final CachingDcMotor[] motors = new CachingDcMotor[MecanumKinematics.MOTOR_COUNT];
+    private WriteStats stats;
+
+    @Before
+    public void setUp() {
+        stats = new WriteStats();
+        for (int i = 0; i < motors.length; i++) {
+            fakes[i] = new FakeDcMotor();
+            motors[i] = new CachingDcMotor(fakes[i], stats, 0.001);
+        }
+    }
+
+    /**
+     * One teleop loop: set up the motors the way the loop does every time, send the stick's
+     * powers, then read them back for the shooter's current budget.
+     */
+    private double loop(double stick) {
+        double sum = 0.0;
+        for (int i = 0; i < motors.length; i++) {
+            motors[i].setMode(DcMotor.RunMode.RUN_USING_ENCODER);
+            motors[i].setZeroPowerBehavior(DcMotor.ZeroPowerBehavior.BRAKE);
+            motors[i].setPower(i % 2 == 0 ? stick : -stick);
+            sum += Math.abs(motors[i].getPower());
+        }
+        return sum;
+    }
+
+    private int busTransactions() {
+        int total = 0;
+        for (FakeDcMotor fake : fakes) {
+            total += fake.writes + fake.reads;
+        }
+        return total;
+    }
+
+    @Test
+    public void heldStickCostsNothingAfterTheFirstLoop() {
+        loop(0.5);
+        // Mode, zero power behavior and power for each motor
+        assertEquals(3 * motors.length, busTransactions());
+
+        int before = busTransactions();
+        for (int i = 0; i < 100; i++) {
+            // Stick noise smaller than the epsilon
+            double sum = loop(0.5 + (i % 2 == 0 ? 0.0004 : -0.0004));
+            assertEquals(2.0, sum, 0.01);
+        }
+        assertEquals(0, busTransactions() - before);
+    }
+
+    @Test
+    public void movingStickCostsOneWritePerMotorPerLoop() {
+        loop(0.0);
+        int before = busTransactions();
+        for (int i = 1; i <= 100; i++) {
+            loop(i / 100.0);
+        }
+        assertEquals(100 * motors.length, busTransactions() - before);
+    }
+
+    @Test
+    public void getPowerReturnsTheLastPowerSent() {
+        FakeDcMotor fake = fakes[0];
+        CachingDcMotor motor = motors[0];
+        motor.setPower(0.75);
+        int reads = fake.reads;
+        assertEquals(0.75, motor.getPower(), 0.0);
+        assertEquals(reads, fake.reads);
+
+        // A mode change doesn't change the power the motor has
+        motor.setMode(DcMotor.RunMode.RUN_TO_POSITION);
+        assertEquals(0.75, motor.getPower(), 0.0);
+        assertEquals(reads, fake.reads);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getPowerAsksTheMotorWhenItDoesNotKnow() {
+        FakeDcMotor fake = fakes[0];
+        CachingDcMotor motor = motors[0];
+        motor.getPower();
+        assertEquals(1, fake.reads);
+
+        motor.setPower(0.5);
+        motor.setPowerFloat();
+        assertEquals(0.0, motor.getPower(), 0.0);
+        assertEquals(2, fake.reads);
+    }
+
+    @Test
+    public void stopIsNeverSkipped() {
+        FakeDcMotor fake = fakes[0];
+        CachingDcMotor motor = motors[0];
+        motor.setPower(0.0005);
+        int writes = fake.writes;
+        // Within the epsilon, but a stop must still get through
+        motor.setPower(0.0);
+        assertEquals(writes + 1, fake.writes);
+        assertEquals(0.0, motor.getPower(), 0.0);
+    }
+
+    @Test
+    public void directionChangeResendsPower() {
+        FakeDcMotor fake = fakes[0];
+        CachingDcMotor motor = motors[0];
+        motor.setPower(0.5);
+        motor.setDirection(DcMotorSimple.Direction.REVERSE);
+        int writes = fake.writes;
+        motor.setPower(0.5);
+        assertEquals(writes + 1, fake.writes);
+        assertEquals(stats.getSent(), countWrites());
+    }
+
+    private long countWrites() {
+        long total = 0;
+        for (FakeDcMotor fake : fakes) {
+            total += fake.writes;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the drive stop planner.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.StopMode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stops a simulated drivetrain with each {@link StopMode} and checks how far it rolls.
+ *
+ * <p>Each wheel is a first order motor: under power, or shorted by BRAKE, its speed heads for
+ * the applied power with the time constant of its back EMF. Floating with COAST, only friction
+ * slows it. ACTIVE runs the {@link DriveBrake} pulse, then brakes.
+ *
+ * @author Powerstackers
+ */
+public class DriveBrakeTest {
+
+    /** Top speed of a wheel, in ticks per second. */
+    private static final double FULL_SPEED = 2200.0;
+    /** Back EMF time constant, in seconds. */
+    private static final double TAU = 0.15;
+    /** Deceleration from friction alone, in fractions of top speed per second. */
+    private static final double FRICTION = 0.5;
+    /** The drive's signs for going straight, the same as {@link VelRobotAuto#driveTank}. */
+    private static final int[] SIGNS = {-1, 1, -1, 1};
+    private static final long STEP_NANOS = 1000000L;
+    private static final long LOOP_NANOS = 5000000L;
+
+    private static final double[] SPEEDS = {0.3, 0.5, 0.8};
+
+    /** Simulated drivetrain. Speeds are in fractions of top speed, positions in ticks. */
+    private static class Drivetrain {
+        final double[] speed = new double[SIGNS.length];
+        final double[] position = new double[SIGNS.length];
+        final double[] furthest = new double[SIGNS.length];
+        long nanos = 0;
+
+        /**
+         * Advance one step.
+         *
+         * @param power Applied power on each wheel, or null to float the motors.
+         */
+        void step(double[] power) {
+            double dt = STEP_NANOS / 1e9;
+            for (int i = 0; i < SIGNS.length; i++) {
+                double accel = power == null ? 0.0 : (power[i] - speed[i]) / TAU;
+                double friction = FRICTION * dt;
+                double next = speed[i] + accel * dt;
+                // Friction slows the wheel but never turns it around
+                if (Math.abs(next) <= friction) {
+                    next = 0.0;
+                } else {
+                    next -= Math.signum(next) * friction;
+                }
+                speed[i] = next;
+                position[i] += speed[i] * FULL_SPEED * dt;
+                if (position[i] * SIGNS[i] > furthest[i] * SIGNS[i]) {
+                    furthest[i] = position[i];
+                }
+            }
+            nanos += STEP_NANOS;
+        }
+
+        boolean stopped() {
+            for (double s : speed) {
+                if (s != 0.0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int pos(int wheel) {
+            return (int) Math.round(position[wheel]);
+        }
+
+        /** @return How far the front left wheel went forward. */
+        double travel() {
+            return position[0] * SIGNS[0];
+        }
+
+        /** @return Largest distance any wheel ended up back from its furthest point. */
+        double rollback() {
+            double worst = 0.0;
+            for (int i = 0; i < SIGNS.length; i++) {
+                worst = Math.max(worst, (furthest[i] - position[i]) * SIGNS[i]);
+            }
+            return worst;
+        }
+    }
+
+    /**
+     * Cruise at a power until the speed settles, tracking the wheels the way the drive does,
+     * then stop.
+     *
+     * @return Ticks travelled from the stop command to standing still.
+     */
+    private static double stoppingDistance(StopMode stopMode, double command, Drivetrain robot) {
+        DriveBrake brake = new DriveBrake();
+        double[] cruise = new double[SIGNS.length];
+        for (int i = 0; i < SIGNS.length; i++) {
+            cruise[i] = command * SIGNS[i];
+        }
+        while (robot.nanos < 2000000000L) {
+            robot.step(cruise);
+            if (robot.nanos % LOOP_NANOS == 0) {
+                brake.track(robot.nanos, robot.pos(0), robot.pos(1), robot.pos(2), robot.pos(3));
+            }
+        }
+
+        double start = robot.travel();
+        double[] zero = new double[SIGNS.length];
+        if (stopMode == StopMode.ACTIVE && brake.plan(robot.nanos,
+                robot.pos(0), robot.pos(1), robot.pos(2), robot.pos(3), FULL_SPEED)) {
+            double[] pulse = new double[SIGNS.length];
+            for (int i = 0; i < SIGNS.length; i++) {
+                pulse[i] = brake.getPower(i);
+            }
+            while (!brake.isPulseDone(robot.nanos,
+                    robot.pos(0), robot.pos(1), robot.pos(2), robot.pos(3))) {
+                robot.step(pulse);
+            }
+            brake.cancel();
+        }
+        double[] stop = stopMode == StopMode.COAST ? null : zero;
+        while (!robot.stopped()) {
+            robot.step(stop);
+        }
+        return robot.travel() - start;
+    }
+
+    @Test
+    public void activeStopsShortestAndCoastLongest() {
+        for (double speed : SPEEDS) {
+            double coast = stoppingDistance(StopMode.COAST, speed, new Drivetrain());
+            double brake = stoppingDistance(StopMode.BRAKE, speed, new Drivetrain());
+            double active = stoppingDistance(StopMode.ACTIVE, speed, new Drivetrain());
+            String distances = String.format(" at %.1f: coast %.0f, brake %.0f, active %.0f ticks",
+                    speed, coast, brake, active);
+
+            assertTrue("brake beats coast" + distances, brake < coast);
+            assertTrue("active beats brake" + distances, active < brake);
+            assertTrue("active still rolls forward" + distances, active > 0.0);
+        }
+    }
+
+    @Test
+    public void pulseNeverDrivesTheRobotBackward() {
+        for (double speed : SPEEDS) {
+            Drivetrain robot = new Drivetrain();
+            stoppingDistance(StopMode.ACTIVE, speed, robot);
+            assertTrue("rolled back " + robot.rollback() + " ticks at " + speed,
+                    robot.rollback() <= VelRobotConstants.DRIVE_BRAKE_REVERSE_TICKS);
+        }
+    }
+
+    @Test
+    public void slowDriveJustBrakes() {
+        Drivetrain robot = new Drivetrain();
+        DriveBrake brake = new DriveBrake();
+        double[] crawl = new double[SIGNS.length];
+        for (int i = 0; i < SIGNS.length; i++) {
+            // Under the minimum speed once friction has had its share
+            crawl[i] = 0.1 * SIGNS[i];
+        }
+        while (robot.nanos < 2000000000L) {
+            robot.step(crawl);
+            if (robot.nanos % LOOP_NANOS == 0) {
+                brake.track(robot.nanos, robot.pos(0), robot.pos(1), robot.pos(2), robot.pos(3));
+            }
+        }
+        assertFalse(brake.plan(robot.nanos,
+                robot.pos(0), robot.pos(1), robot.pos(2), robot.pos(3), FULL_SPEED));
+        for (int i = 0; i < SIGNS.length; i++) {
+            assertTrue(brake.getPower(i) == 0.0);
+        }
+    }
+}
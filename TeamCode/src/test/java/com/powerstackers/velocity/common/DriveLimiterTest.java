@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the drive ramp and slip limiter.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link DriveLimiter} with encoders where one wheel spins faster than its power says
+ * it should, the way a wheel does once it breaks traction.
+ *
+ * @author Powerstackers
+ */
+public class DriveLimiterTest {
+
+    private static final long LOOP_NANOS = 20000000L;
+    /** Ticks per second of a wheel at full power. */
+    private static final double TICKS_PER_SEC = 2000.0;
+    private static final int SLIPPING_WHEEL = 2;
+
+    private final MecanumKinematics kinematics = new MecanumKinematics();
+    private DriveLimiter limiter;
+    private final double[] ticks = new double[MecanumKinematics.MOTOR_COUNT];
+    private long nanos = 0;
+
+    @Before
+    public void setUp() {
+        limiter = new DriveLimiter();
+        kinematics.calculate(Math.PI / 2, 0.8, 0.0, 1.0);
+    }
+
+    /**
+     * Run the limiter for a while. Each wheel turns at the power it was sent, and the slipping
+     * one twice as fast.
+     */
+    private void drive(int loops) {
+        for (int i = 0; i < loops; i++) {
+            for (int m = 0; m < ticks.length; m++) {
+                double speed = limiter.getPower(m) * TICKS_PER_SEC * (m == SLIPPING_WHEEL ? 2 : 1);
+                ticks[m] += speed * LOOP_NANOS / 1e9;
+            }
+            nanos += LOOP_NANOS;
+            limiter.update(nanos, kinematics, (int) ticks[0], (int) ticks[1], (int) ticks[2],
+                    (int) ticks[3]);
+        }
+    }
+
+    @Test
+    public void slipIsBackedOffWhenDetectionIsOn() {
+        limiter.setSlipDetection(true);
+        drive(50);
+        assertTrue(limiter.isSlipping(SLIPPING_WHEEL));
+        assertTrue(Math.abs(limiter.getPower(SLIPPING_WHEEL))
+                < Math.abs(kinematics.getPower(SLIPPING_WHEEL)));
+    }
+
+    @Test
+    public void slipIsIgnoredByDefault() {
+        // Under the controllers' speed control, a slipping wheel can't be told apart
+        drive(50);
+        for (int m = 0; m < ticks.length; m++) {
+            assertFalse("motor " + m, limiter.isSlipping(m));
+            assertEquals(kinematics.getPower(m), limiter.getPower(m), 0.0);
+        }
+    }
+
+    @Test
+    public void turningDetectionOffLetsTheWheelRampBackToFullPower() {
+        limiter.setSlipDetection(true);
+        drive(50);
+        limiter.setSlipDetection(false);
+        // The wheel was cut to about half, which takes a few loops to ramp back from
+        drive(10);
+        assertFalse(limiter.isSlipping(SLIPPING_WHEEL));
+        assertEquals(kinematics.getPower(SLIPPING_WHEEL), limiter.getPower(SLIPPING_WHEEL), 0.0);
+    }
+
+    @Test
+    public void powerRampsUpAtTheLimit() {
+        drive(1);
+        double step = VelRobotConstants.DRIVE_ACCEL_PER_SEC * LOOP_NANOS / 1e9;
+        // The first update has no time step, so it holds at zero
+        assertEquals(0.0, limiter.getPower(0), 0.0);
+        drive(1);
+        assertEquals(step, Math.abs(limiter.getPower(0)), 1e-12);
+    }
+}
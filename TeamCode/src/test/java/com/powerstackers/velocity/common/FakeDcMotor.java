@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * A motor that counts bus transactions instead of talking to a controller.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.DcMotor;
+import com.qualcomm.robotcore.hardware.DcMotorController;
+
+/**
+ * Stands in for a motor on a controller. Every setter counts as a bus write and every getter as a
+ * bus read, the same as on the real hardware.
+ *
+ * @author Powerstackers
+ */
+class FakeDcMotor implements DcMotor {
+
+    int writes = 0;
+    int reads = 0;
+
+    private double power = 0.0;
+    private Direction direction = Direction.FORWARD;
+    private RunMode mode = RunMode.RUN_WITHOUT_ENCODER;
+    private ZeroPowerBehavior zeroPowerBehavior = ZeroPowerBehavior.FLOAT;
+    private int targetPosition = 0;
+    private int currentPosition = 0;
+    private int maxSpeed = 0;
+
+    void setCurrentPosition(int position) {
+        currentPosition = position;
+    }
+
+    @Override
+    public void setPower(double power) {
+        writes++;
+        this.power = power;
+    }
+
+    @Override
+    public double getPower() {
+        reads++;
+        return power;
+    }
+
+    @Override
+    public void setDirection(Direction direction) {
+        writes++;
+        this.direction = direction;
+    }
+
+    @Override
+    public Direction getDirection() {
+        reads++;
+        return direction;
+    }
+
+    @Override
+    public void setMode(RunMode mode) {
+        writes++;
+        this.mode = mode;
+    }
+
+    @Override
+    public RunMode getMode() {
+        reads++;
+        return mode;
+    }
+
+    @Override
+    public void setZeroPowerBehavior(ZeroPowerBehavior zeroPowerBehavior) {
+        writes++;
+        this.zeroPowerBehavior = zeroPowerBehavior;
+    }
+
+    @Override
+    public ZeroPowerBehavior getZeroPowerBehavior() {
+        reads++;
+        return zeroPowerBehavior;
+    }
+
+    @Deprecated
+    @Override
+    public void setPowerFloat() {
+        writes++;
+        power = 0.0;
+    }
+
+    @Override
+    public boolean getPowerFloat() {
+        reads++;
+        return power == 0.0 && zeroPowerBehavior == ZeroPowerBehavior.FLOAT;
+    }
+
+    @Override
+    public void setTargetPosition(int position) {
+        writes++;
+        targetPosition = position;
+    }
+
+    @Override
+    public int getTargetPosition() {
+        reads++;
+        return targetPosition;
+    }
+
+    @Override
+    public boolean isBusy() {
+        reads++;
+        return mode == RunMode.RUN_TO_POSITION && currentPosition != targetPosition;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        reads++;
+        return currentPosition;
+    }
+
+    @Override
+    public void setMaxSpeed(int encoderTicksPerSecond) {
+        writes++;
+        maxSpeed = encoderTicksPerSecond;
+    }
+
+    @Override
+    public int getMaxSpeed() {
+        reads++;
+        return maxSpeed;
+    }
+
+    @Override
+    public DcMotorController getController() {
+        return null;
+    }
+
+    @Override
+    public int getPortNumber() {
+        return 1;
+    }
+
+    @Override
+    public Manufacturer getManufacturer() {
+        return Manufacturer.Other;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return "Fake motor";
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return "none";
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public void resetDeviceConfigurationForOpMode() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
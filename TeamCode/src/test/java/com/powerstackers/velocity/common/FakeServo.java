@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * A servo that remembers where it was sent instead of talking to a controller.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.qualcomm.robotcore.hardware.Servo;
+import com.qualcomm.robotcore.hardware.ServoController;
+
+/**
+ * Stands in for a servo on a controller. It keeps the last position sent and the highest one,
+ * so a test can tell whether the servo was ever opened.
+ *
+ * @author Powerstackers
+ */
+class FakeServo implements Servo {
+
+    int writes = 0;
+    double highestPosition = Double.NEGATIVE_INFINITY;
+
+    private double position = 0.0;
+    private Direction direction = Direction.FORWARD;
+
+    @Override
+    public void setPosition(double position) {
+        writes++;
+        this.position = position;
+        highestPosition = Math.max(highestPosition, position);
+    }
+
+    @Override
+    public double getPosition() {
+        return position;
+    }
+
+    @Override
+    public void setDirection(Direction direction) {
+        writes++;
+        this.direction = direction;
+    }
+
+    @Override
+    public Direction getDirection() {
+        return direction;
+    }
+
+    @Override
+    public void scaleRange(double min, double max) {
+        writes++;
+    }
+
+    @Override
+    public ServoController getController() {
+        return null;
+    }
+
+    @Override
+    public int getPortNumber() {
+        return 1;
+    }
+
+    @Override
+    public Manufacturer getManufacturer() {
+        return Manufacturer.Other;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return "Fake servo";
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return "none";
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public void resetDeviceConfigurationForOpMode() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the field localizer.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.AllianceColor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a simulated robot up the red beacon wall and feeds {@link FieldLocalizer#update} the
+ * readings it would see: odometry that overcounts and wanders, a gyro that updates slowly from
+ * its own zero, noisy ultrasonic ranges to the wall with one stray echo 40 cm long, and a rise
+ * from each ODS as it crosses a beacon line.
+ *
+ * <p>The path strafes toward the wall for {@link #STRAFE_SEC}, then drives along it with a
+ * little weave.
+ *
+ * @author Powerstackers
+ */
+public class FieldLocalizerTest {
+
+    private static final long LOOP_NANOS = VelRobotConstants.LOCALIZER_PERIOD_MS * 1000000L;
+    private static final int GYRO_LOOPS = 3;
+    private static final int RANGE_LOOPS = (int) (VelRobotConstants.LOCALIZER_US_PERIOD_MS
+            / VelRobotConstants.LOCALIZER_PERIOD_MS);
+    private static final double STRAFE_SEC = 1.5;
+    private static final double DRIVE_SEC = 7.0;
+    /** Odometry counts this much more than the wheels really moved forward. */
+    private static final double ODOMETRY_FORWARD_SCALE = 1.05;
+    /** Odometry counts this much more than the robot really turned. */
+    private static final double ODOMETRY_TURN_SCALE = 1.03;
+    private static final double GYRO_ZERO = 0.3;
+    /** Loop on which the back ultrasonic sensor hears an echo from past the wall. */
+    private static final int STRAY_ECHO_LOOP = 200;
+
+    private final FieldMap map = FieldMap.forAlliance(AllianceColor.RED);
+    private final double minCosIncidence = Math.cos(VelRobotConstants.LOCALIZER_US_MAX_INCIDENCE);
+
+    private final Pose truth = new Pose(105.0, -150.0, 0.0);
+    private final Pose odometry = new Pose();
+    /** What the odometry alone would say, started from the same guess as the localizer. */
+    private final Pose deadReckoning = new Pose(truth.x + 8.0, truth.y + 10.0, 0.03);
+    private final Pose estimate = new Pose();
+    private final Random random = new Random(5029);
+
+    private FieldLocalizer localizer;
+    private long frontRise = 0;
+    private long backRise = 0;
+
+    /** Position error on each loop, in centimeters. */
+    private double[] error;
+    /** The localizer's own standard deviation on each loop, in centimeters. */
+    private double[] sigma;
+    /** Loop on which each ODS first found a line, or -1. */
+    private int frontCrossing = -1;
+    private int backCrossing = -1;
+
+    @Before
+    public void setUp() {
+        // update() doesn't touch the hardware, so none is needed
+        localizer = new FieldLocalizer(null, null, null, null, null, null, null, null, null, map);
+        localizer.setPose(new Pose(deadReckoning.x, deadReckoning.y, deadReckoning.heading));
+    }
+
+    /** Move a pose by a step in its own frame, the same way the odometry does. */
+    private static void move(Pose pose, double right, double forward, double deltaHeading) {
+        double mid = pose.heading + deltaHeading / 2.0;
+        pose.x += right * Math.cos(mid) - forward * Math.sin(mid);
+        pose.y += right * Math.sin(mid) + forward * Math.cos(mid);
+        pose.heading += deltaHeading;
+    }
+
+    /** Where a sensor is on the field, as {x, y}. */
+    private static double[] sensorAt(Pose pose, double[] mount) {
+        double cos = Math.cos(pose.heading);
+        double sin = Math.sin(pose.heading);
+        return new double[] {pose.x + mount[0] * cos - mount[1] * sin,
+                pose.y + mount[0] * sin + mount[1] * cos};
+    }
+
+    private double range(double[] mount) {
+        double[] sensor = sensorAt(truth, mount);
+        double beam = truth.heading + mount[2];
+        FieldMap.Wall wall = map.findWall(sensor[0], sensor[1], beam, minCosIncidence);
+        if (wall == null) {
+            return Double.NaN;
+        }
+        return wall.range(sensor[0], sensor[1], beam, minCosIncidence)
+                + 1.0 * random.nextGaussian();
+    }
+
+    /** @return True if the sensor crossed a line's middle during the last step. */
+    private boolean crossed(double[] before, double[] after) {
+        for (FieldMap.Line line : map.getLines()) {
+            if (line.isBeside(after[0], after[1], 0.0)
+                    && line.offset(before[0], before[1]) * line.offset(after[0], after[1]) <= 0.0
+                    && line.offset(before[0], before[1]) != 0.0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void run() {
+        int loops = (int) ((STRAFE_SEC + DRIVE_SEC) * 1e9 / LOOP_NANOS);
+        double dt = LOOP_NANOS / 1e9;
+        error = new double[loops];
+        sigma = new double[loops];
+        for (int i = 0; i < loops; i++) {
+            long nanos = (i + 1) * LOOP_NANOS;
+            double t = nanos / 1e9;
+            double right = t < STRAFE_SEC ? 30.0 * dt : 0.0;
+            double forward = t < STRAFE_SEC ? 0.0 : 40.0 * dt;
+            double turn = t < STRAFE_SEC ? 0.0 : 0.05 * Math.cos(t) * dt;
+
+            double[] frontBefore = sensorAt(truth, VelRobotConstants.LOCALIZER_FRONT_ODS_MOUNT);
+            double[] backBefore = sensorAt(truth, VelRobotConstants.LOCALIZER_BACK_ODS_MOUNT);
+            move(truth, right, forward, turn);
+
+            double odoRight = right + 0.05 * random.nextGaussian();
+            double odoForward = forward * ODOMETRY_FORWARD_SCALE + 0.05 * random.nextGaussian();
+            double odoTurn = turn * ODOMETRY_TURN_SCALE + 0.001 * random.nextGaussian();
+            move(odometry, odoRight, odoForward, odoTurn);
+            move(deadReckoning, odoRight, odoForward, odoTurn);
+
+            double gyro = i % GYRO_LOOPS == 0
+                    ? truth.heading - GYRO_ZERO + Math.toRadians(1.0) * random.nextGaussian()
+                    : Double.NaN;
+            double leftRange = Double.NaN;
+            double rightRange = Double.NaN;
+            if (i % RANGE_LOOPS == 0) {
+                leftRange = range(VelRobotConstants.LOCALIZER_LEFT_US_MOUNT);
+                rightRange = range(VelRobotConstants.LOCALIZER_RIGHT_US_MOUNT);
+                if (i == STRAY_ECHO_LOOP) {
+                    rightRange += 40.0;
+                }
+            }
+            double[] frontAfter = sensorAt(truth, VelRobotConstants.LOCALIZER_FRONT_ODS_MOUNT);
+            double[] backAfter = sensorAt(truth, VelRobotConstants.LOCALIZER_BACK_ODS_MOUNT);
+            if (crossed(frontBefore, frontAfter)) {
+                frontRise = nanos;
+                if (frontCrossing < 0) {
+                    frontCrossing = i;
+                }
+            }
+            if (crossed(backBefore, backAfter)) {
+                backRise = nanos;
+                if (backCrossing < 0) {
+                    backCrossing = i;
+                }
+            }
+
+            localizer.update(nanos, odometry, gyro, leftRange, rightRange, frontRise, backRise);
+            localizer.getPose(estimate);
+            error[i] = Math.hypot(estimate.x - truth.x, estimate.y - truth.y);
+            sigma[i] = localizer.getPositionSigma();
+        }
+    }
+
+    @Test
+    public void errorStaysBounded() {
+        run();
+        double worst = 0.0;
+        for (int i = 0; i < error.length; i++) {
+            worst = Math.max(worst, error[i]);
+            // The localizer's uncertainty has to cover its real error, or the gate would throw
+            // out good readings
+            assertTrue("error " + error[i] + " with sigma " + sigma[i] + " on loop " + i,
+                    error[i] < 3.0 * sigma[i]);
+        }
+        // The starting guess is 12.8 cm off, and the odometry overcounts until the first line
+        assertTrue("worst error " + worst, worst < 20.0);
+        assertTrue("heading error " + (estimate.heading - truth.heading),
+                Math.abs(estimate.heading - truth.heading) < Math.toRadians(3.0));
+    }
+
+    @Test
+    public void errorDropsAfterALineCrossing() {
+        run();
+        assertTrue("front ODS crossed a line", frontCrossing > 0);
+        assertTrue("back ODS crossed a line", backCrossing > 0);
+        // Driving along y, only a line says where the robot is along the wall
+        double before = error[frontCrossing - 1];
+        double after = error[frontCrossing];
+        assertTrue("error " + before + " before the line, " + after + " after",
+                after < before && after < 3.0);
+    }
+
+    @Test
+    public void beatsOdometryAlone() {
+        run();
+        double fused = error[error.length - 1];
+        double dead = Math.hypot(deadReckoning.x - truth.x, deadReckoning.y - truth.y);
+        assertTrue("fused " + fused + " cm, odometry alone " + dead + " cm",
+                fused < 5.0 && fused < dead / 3.0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the flywheel model fit.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fits {@link FlywheelModelFitter} to a simulated characterization run, recorded the same way
+ * the shooter characterization OpMode records one.
+ *
+ * @author Powerstackers
+ */
+public class FlywheelModelFitterTest {
+
+    private static final double KS = 0.25;
+    private static final double KV = 0.007;
+    private static final double KA = 0.002;
+    private static final double SAMPLE_SEC = 0.005;
+    private static final double[] POWERS = {0.3, 0.5, 0.7, 0.9};
+
+    private double[] time;
+    private double[] power;
+    private double[] battery;
+    private double[] position;
+    private int count;
+
+    /**
+     * Step the power up like the OpMode does, coasting between steps, and record every sample.
+     *
+     * @param batteryNoise Standard deviation of the battery reading, in volts.
+     */
+    private void simulate(double batteryNoise, double stepSec, double coastSec, long seed) {
+        Random random = new Random(seed);
+        int capacity = (int) (POWERS.length * (stepSec + coastSec) / SAMPLE_SEC) + 1;
+        time = new double[capacity];
+        power = new double[capacity];
+        battery = new double[capacity];
+        position = new double[capacity];
+        count = 0;
+
+        double rpm = 0.0;
+        double ticks = 0.0;
+        double t = 0.0;
+        for (double stepPower : POWERS) {
+            for (int phase = 0; phase < 2; phase++) {
+                double commanded = phase == 0 ? stepPower : 0.0;
+                int samples = (int) ((phase == 0 ? stepSec : coastSec) / SAMPLE_SEC);
+                for (int i = 0; i < samples; i++) {
+                    double volts = 12.5 + batteryNoise * random.nextGaussian();
+                    time[count] = t;
+                    power[count] = commanded;
+                    battery[count] = volts;
+                    position[count] = Math.floor(ticks);
+                    count++;
+
+                    // Friction only holds the wheel back while it turns
+                    double drive = commanded * volts - (rpm > 0.0 ? KS : 0.0) - KV * rpm;
+                    rpm = Math.max(0.0, rpm + drive / KA * SAMPLE_SEC);
+                    ticks += rpm / 60.0 * ShooterVelocityEstimator.SHOOTER_TICKS_PER_REV
+                            * SAMPLE_SEC;
+                    t += SAMPLE_SEC;
+                }
+            }
+        }
+    }
+
+    private void assertRecovered(FlywheelModel model) {
+        assertEquals("kS", KS, model.kS, 0.05);
+        assertEquals("kV", KV, model.kV, KV * 0.05);
+        assertEquals("kA", KA, model.kA, KA * 0.15);
+    }
+
+    @Test
+    public void fitsWithASteadyBattery() {
+        simulate(0.0, 1.5, 1.0, 1);
+        assertRecovered(FlywheelModelFitter.fit(time, power, battery, position, count));
+    }
+
+    @Test
+    public void fitsWithANoisyBattery() {
+        // Every battery reading differs, which used to make every sample look like a step
+        simulate(0.02, 1.5, 1.0, 2);
+        assertRecovered(FlywheelModelFitter.fit(time, power, battery, position, count));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAShortRun() {
+        simulate(0.02, 0.02, 0.02, 3);
+        FlywheelModelFitter.fit(time, power, battery, position, count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAFitThatIsNotPhysical() {
+        simulate(0.0, 1.5, 1.0, 4);
+        // Record the power with the wrong sign, as if the motor were wired backwards
+        for (int i = 0; i < count; i++) {
+            power[i] = -power[i];
+        }
+        FlywheelModelFitter.fit(time, power, battery, position, count);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * The drive math as it was before MecanumKinematics, kept for comparison.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+/**
+ * The body of the old VelRobot.setMovement, unchanged except that it returns the powers instead
+ * of sending them. {@link MecanumKinematicsTest} checks the new math against it and
+ * {@link MecanumKinematicsBenchmark} times the two.
+ *
+ * @author Powerstackers
+ */
+final class LegacyMecanum {
+
+    private LegacyMecanum() {
+    }
+
+    /**
+     * @return Powers for motorDrive1 through motorDrive4, in that order.
+     */
+    static double[] setMovement(double angle, double speed, double rotation, double scale) {
+        // Shift angle by 45 degrees, since our drive train is x-shaped and not cross-shaped
+        angle += PI / 4;
+
+        // Cut rotation in half because we don't want to spin THAT fast
+        rotation *= 0.5;
+
+        // Normalize magnitudes so that "straight forward" has a magnitude of 1
+        speed *= sqrt(2);
+
+        double sinDir = sin(angle);
+        double cosDir = cos(angle);
+
+        // None of this stuff should happen if the speed is 0.
+        if (speed == 0.0 && rotation == 0.0) {
+            return new double[4];
+        }
+
+        double multipliers[] = new double[4];
+        multipliers[0] = (speed * sinDir) + rotation;
+        multipliers[1] = (speed * cosDir) + rotation;
+        multipliers[2] = (speed * -cosDir) + rotation;
+        multipliers[3] = (speed * -sinDir) + rotation;
+
+        double largest = abs(multipliers[0]);
+        for (int i = 1; i < 4; i++) {
+            if (abs(multipliers[i]) > largest)
+                largest = abs(multipliers[i]);
+        }
+
+        // Only normalize multipliers if largest exceeds 1.0
+        if (largest > 1.0) {
+            for (int i = 0; i < 4; i++) {
+                multipliers[i] = multipliers[i] / largest;
+            }
+        }
+
+        // Motors 2 and 4 are plugged into each other's ports
+        double[] powers = new double[4];
+        powers[0] = multipliers[0] * scale;
+        powers[3] = multipliers[1] * scale;
+        powers[2] = multipliers[2] * scale;
+        powers[1] = multipliers[3] * scale;
+        return powers;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Times the mecanum drive math.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of one drive calculation: the old setMovement math in {@link LegacyMecanum}
+ * against {@link MecanumKinematics} with {@link Math#sin} and with the trig table. This is a
+ * desktop JVM, so it compares the three rather than predicting times on the phone.
+ *
+ * <p>Run it from the test classpath, after the JMH annotation processor has generated its
+ * harness:
+ *
+ * <pre>
+ * java -cp &lt;test classpath&gt; com.powerstackers.velocity.common.MecanumKinematicsBenchmark
+ * </pre>
+ *
+ * @author Powerstackers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MecanumKinematicsBenchmark {
+
+    private static final int INPUTS = 1024;
+
+    private final double[] angles = new double[INPUTS];
+    private final double[] speeds = new double[INPUTS];
+    private final double[] rotations = new double[INPUTS];
+    private int next = 0;
+
+    private MecanumKinematics sinKinematics;
+    private MecanumKinematics tableKinematics;
+
+    @Setup
+    public void setUp() {
+        // Stick inputs vary from loop to loop, so the JIT can't fold them into constants
+        Random random = new Random(1);
+        for (int i = 0; i < INPUTS; i++) {
+            angles[i] = random.nextDouble() * 2 * Math.PI;
+            speeds[i] = random.nextDouble();
+            rotations[i] = random.nextDouble() * 2 - 1;
+        }
+        sinKinematics = new MecanumKinematics(VelRobotConstants.DRIVE_MOTOR_ORDER, false,
+                Desaturation.PROPORTIONAL);
+        tableKinematics = new MecanumKinematics(VelRobotConstants.DRIVE_MOTOR_ORDER, true,
+                Desaturation.PROPORTIONAL);
+    }
+
+    private int nextInput() {
+        next = (next + 1) & (INPUTS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public void legacySetMovement(Blackhole blackhole) {
+        int i = nextInput();
+        blackhole.consume(LegacyMecanum.setMovement(angles[i], speeds[i], rotations[i], 1.0));
+    }
+
+    @Benchmark
+    public void kinematicsMathSin(Blackhole blackhole) {
+        int i = nextInput();
+        sinKinematics.calculate(angles[i], speeds[i], rotations[i], 1.0);
+        blackhole.consume(sinKinematics.getPower(0));
+        blackhole.consume(sinKinematics.getPower(3));
+    }
+
+    @Benchmark
+    public void kinematicsTrigTable(Blackhole blackhole) {
+        int i = nextInput();
+        tableKinematics.calculate(angles[i], speeds[i], rotations[i], 1.0);
+        blackhole.consume(tableKinematics.getPower(0));
+        blackhole.consume(tableKinematics.getPower(3));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MecanumKinematicsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
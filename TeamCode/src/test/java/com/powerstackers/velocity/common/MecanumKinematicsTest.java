@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the mecanum drive math.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.Desaturation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link MecanumKinematics} against the old setMovement math in {@link LegacyMecanum}, and
+ * checks how each desaturation brings powers over 1 back down.
+ *
+ * @author Powerstackers
+ */
+public class MecanumKinematicsTest {
+
+    /** Math.sin and Math.cos give the same doubles as before, give or take rounding. */
+    private static final double EXACT_TOLERANCE = 1e-12;
+    /**
+     * The table interpolates linearly between 4096 steps, which is off by at most step^2 / 8,
+     * about 3e-7, in sin. Scaled by sqrt(2) and normalized, that stays well under 1e-5.
+     */
+    private static final double TABLE_TOLERANCE = 1e-5;
+
+    private static final double[] SPEEDS = {-1.0, -0.5, 0.0, 0.3, 0.7, 1.0};
+    private static final double[] ROTATIONS = {-1.0, -0.4, 0.0, 0.25, 1.0};
+    private static final double[] SCALES = {0.0, 0.5, 1.0};
+    private static final int ANGLE_STEPS = 72;
+
+    private static MecanumKinematics rotationPriority() {
+        return new MecanumKinematics(VelRobotConstants.DRIVE_MOTOR_ORDER, false,
+                Desaturation.ROTATION_PRIORITY);
+    }
+
+    /**
+     * Undo the motor order and the +/- pairs: {translate0, translate1, rotation}. Motor 0 gets
+     * translate0 + rotation and motor 1 gets -translate0 + rotation; motors 3 and 2 are the same
+     * for translate1.
+     */
+    private static double[] terms(MecanumKinematics kinematics) {
+        double p0 = kinematics.getPower(0);
+        double p1 = kinematics.getPower(1);
+        double p2 = kinematics.getPower(2);
+        double p3 = kinematics.getPower(3);
+        return new double[] {(p0 - p1) / 2, (p3 - p2) / 2, (p0 + p1) / 2};
+    }
+
+    private static double largestPower(MecanumKinematics kinematics) {
+        double largest = 0.0;
+        for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+            largest = Math.max(largest, Math.abs(kinematics.getPower(m)));
+        }
+        return largest;
+    }
+
+    private static void assertMatchesLegacy(MecanumKinematics kinematics, double tolerance) {
+        int cases = 0;
+        for (int a = -ANGLE_STEPS; a <= 2 * ANGLE_STEPS; a++) {
+            // Covers negative angles and more than one turn, which the table has to wrap
+            double angle = a * 2 * Math.PI / ANGLE_STEPS;
+            for (double speed : SPEEDS) {
+                for (double rotation : ROTATIONS) {
+                    for (double scale : SCALES) {
+                        double[] expected = LegacyMecanum.setMovement(angle, speed, rotation,
+                                scale);
+                        kinematics.calculate(angle, speed, rotation, scale);
+                        for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+                            assertEquals("angle " + angle + " speed " + speed + " rotation "
+                                            + rotation + " scale " + scale + " motor " + m,
+                                    expected[m], kinematics.getPower(m), tolerance);
+                        }
+                        cases++;
+                    }
+                }
+            }
+        }
+        assertEquals(3 * ANGLE_STEPS + 1, cases / (SPEEDS.length * ROTATIONS.length
+                * SCALES.length));
+    }
+
+    @Test
+    public void mathSinMatchesOldSetMovement() {
+        assertMatchesLegacy(new MecanumKinematics(VelRobotConstants.DRIVE_MOTOR_ORDER, false,
+                Desaturation.PROPORTIONAL), EXACT_TOLERANCE);
+    }
+
+    @Test
+    public void trigTableMatchesOldSetMovement() {
+        assertMatchesLegacy(new MecanumKinematics(VelRobotConstants.DRIVE_MOTOR_ORDER, true,
+                Desaturation.PROPORTIONAL), TABLE_TOLERANCE);
+    }
+
+    @Test
+    public void fullRotationLeavesNoRoomForTranslation() {
+        MecanumKinematics kinematics = rotationPriority();
+        // calculate() halves rotation, so 2 asks for full rotation and 3 for more than full
+        double[] rotations = {2.0, 3.0, -2.0, -3.0};
+        for (double rotation : rotations) {
+            kinematics.calculate(Math.PI / 2, 1.0, rotation, 1.0);
+            double[] terms = terms(kinematics);
+            assertEquals("translate0 at " + rotation, 0.0, terms[0], 1e-12);
+            assertEquals("translate1 at " + rotation, 0.0, terms[1], 1e-12);
+            assertEquals("rotation at " + rotation, Math.signum(rotation), terms[2], 1e-12);
+            for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+                assertEquals(Math.signum(rotation), kinematics.getPower(m), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void zeroInputStopsEveryWheel() {
+        Desaturation[] modes = {Desaturation.ROTATION_PRIORITY, Desaturation.PROPORTIONAL};
+        for (Desaturation mode : modes) {
+            MecanumKinematics kinematics = new MecanumKinematics(
+                    VelRobotConstants.DRIVE_MOTOR_ORDER, false, mode);
+            // Leave something behind first, so a stale power would show
+            kinematics.calculate(1.0, 0.8, 0.5, 1.0);
+            kinematics.calculate(1.0, 0.0, 0.0, 1.0);
+            for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+                assertEquals(mode + " motor " + m, 0.0, kinematics.getPower(m), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void unequalDiagonalKeepsItsDirectionAndRotation() {
+        MecanumKinematics kinematics = rotationPriority();
+        // 60 degrees: after the 45 degree shift the two translation terms differ
+        double angle = Math.PI / 3;
+        double rotation = 0.6;
+        double shifted = angle + Math.PI / 4;
+        double wanted0 = Math.sqrt(2) * Math.sin(shifted);
+        double wanted1 = Math.sqrt(2) * Math.cos(shifted);
+
+        kinematics.calculate(angle, 1.0, rotation, 1.0);
+        double[] terms = terms(kinematics);
+        assertEquals("rotation is kept", rotation / 2, terms[2], 1e-12);
+        assertEquals("direction is kept", wanted0 / wanted1, terms[0] / terms[1], 1e-9);
+        assertEquals("largest wheel is at full power", 1.0, largestPower(kinematics), 1e-12);
+        assertEquals(1.0, Math.max(Math.abs(terms[0]), Math.abs(terms[1])) + rotation / 2,
+                1e-12);
+    }
+
+    @Test
+    public void unsaturatedInputIsLeftAlone() {
+        MecanumKinematics priority = rotationPriority();
+        MecanumKinematics proportional = new MecanumKinematics(
+                VelRobotConstants.DRIVE_MOTOR_ORDER, false, Desaturation.PROPORTIONAL);
+        priority.calculate(Math.PI / 3, 0.3, 0.4, 0.8);
+        proportional.calculate(Math.PI / 3, 0.3, 0.4, 0.8);
+        for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+            assertEquals(proportional.getPower(m), priority.getPower(m), 1e-12);
+        }
+    }
+
+    @Test
+    public void proportionalMatchesOldNormalizationWhenSaturated() {
+        MecanumKinematics kinematics = new MecanumKinematics(
+                VelRobotConstants.DRIVE_MOTOR_ORDER, false, Desaturation.PROPORTIONAL);
+        double[][] inputs = {
+                {Math.PI / 2, 1.0, 2.0, 1.0},
+                {Math.PI / 3, 1.0, 0.6, 1.0},
+                {0.0, 1.0, -1.0, 0.7},
+                {Math.PI / 4, 1.0, 0.0, 1.0},
+        };
+        for (double[] input : inputs) {
+            double[] expected = LegacyMecanum.setMovement(input[0], input[1], input[2],
+                    input[3]);
+            kinematics.calculate(input[0], input[1], input[2], input[3]);
+            for (int m = 0; m < MecanumKinematics.MOTOR_COUNT; m++) {
+                assertEquals(expected[m], kinematics.getPower(m), 1e-12);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the flywheel control loop.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import com.powerstackers.velocity.common.enums.PublicEnums.ShooterPowerState;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link Shooter} control loop on a test clock, with a flywheel encoder that turns at
+ * whatever speed the test asks for, and watches the feed servo.
+ *
+ * @author Powerstackers
+ */
+public class ShooterTest {
+
+    private static final long PERIOD_NANOS =
+            VelRobotConstants.SHOOTER_CONTROL_PERIOD_MS * 1000000L;
+
+    private final FakeDcMotor motor = new FakeDcMotor();
+    private final FakeServo servo = new FakeServo();
+    private Shooter shooter;
+    private ShooterPowerManager power;
+    private long nanos = 1000000000L;
+    private double ticks = 0.0;
+
+    @Before
+    public void setUp() {
+        // No battery sensor, so nothing is compensated
+        shooter = new Shooter(motor, servo, null, FlywheelModel.defaults());
+        power = new ShooterPowerManager(shooter);
+    }
+
+    /**
+     * Spin the wheel at a speed for a while, running the control loop every period.
+     */
+    private void spin(double rpm, int periods) {
+        double ticksPerPeriod = rpm * ShooterVelocityEstimator.SHOOTER_TICKS_PER_REV / 60.0
+                * PERIOD_NANOS / 1e9;
+        for (int i = 0; i < periods; i++) {
+            nanos += PERIOD_NANOS;
+            ticks += ticksPerPeriod;
+            motor.setCurrentPosition((int) Math.floor(ticks));
+            shooter.step(nanos);
+        }
+    }
+
+    @Test
+    public void idleFeedingNeverOpensTheServo() {
+        power.setState(ShooterPowerState.IDLE);
+        shooter.setFeeding(true);
+        // Right on the idle speed, which would be in tolerance if it counted as a target
+        spin(VelRobotConstants.SHOOTER_IDLE_RPM, 200);
+        assertFalse(shooter.isReady());
+        assertTrue("servo went to " + servo.highestPosition,
+                servo.highestPosition < VelRobotConstants.SHOOT_SERVO_OPEN);
+        assertEquals(0, shooter.getShotCount());
+    }
+
+    @Test
+    public void readyFeedingOpensTheServo() {
+        power.setState(ShooterPowerState.READY);
+        shooter.setFeeding(true);
+        spin(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM, 200);
+        assertTrue(shooter.isReady());
+        assertEquals(VelRobotConstants.SHOOT_SERVO_OPEN, servo.getPosition(), 0.0);
+    }
+
+    @Test
+    public void droppingToIdleClosesTheServo() {
+        power.setState(ShooterPowerState.READY);
+        shooter.setFeeding(true);
+        spin(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM, 200);
+        power.setState(ShooterPowerState.IDLE);
+        spin(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM, 1);
+        assertFalse(shooter.isReady());
+        assertEquals(VelRobotConstants.SHOOT_SERVO_CLOSED, servo.getPosition(), 0.0);
+    }
+
+    @Test
+    public void idleNeverCountsAsReady() throws InterruptedException {
+        power.setState(ShooterPowerState.IDLE);
+        spin(VelRobotConstants.SHOOTER_IDLE_RPM, 200);
+        // Returns at once instead of waiting out the timeout
+        assertFalse(shooter.awaitReady(10000));
+    }
+
+    @Test
+    public void callersDoNotWaitOnTheBus() throws InterruptedException {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FakeDcMotor slowMotor = new FakeDcMotor() {
+            @Override
+            public int getCurrentPosition() {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getCurrentPosition();
+            }
+        };
+        final Shooter slow = new Shooter(slowMotor, servo, null, FlywheelModel.defaults());
+        Thread control = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                slow.step(nanos);
+            }
+        });
+        control.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        // The control thread is stuck in an encoder read; none of these should wait for it
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                slow.setTargetRpm(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM);
+                slow.setFeeding(true);
+                slow.stop();
+                done.countDown();
+            }
+        });
+        caller.start();
+        boolean returned = done.await(5, TimeUnit.SECONDS);
+        release.countDown();
+        control.join();
+        caller.join();
+        assertTrue("caller blocked behind the encoder read", returned);
+    }
+
+    @Test
+    public void stopIsSentAgainOnTheNextStep() {
+        power.setState(ShooterPowerState.READY);
+        spin(VelRobotConstants.MOTOR_SHOOTER_TARGET_RPM, 50);
+        shooter.stop();
+        // As if a step that had already decided on full power sent it after the stop
+        motor.setPower(1.0);
+        spin(0.0, 1);
+        assertEquals(0.0, motor.getPower(), 0.0);
+    }
+}
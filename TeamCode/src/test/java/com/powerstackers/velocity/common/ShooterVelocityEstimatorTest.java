@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the shooter RPM estimator.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds {@link ShooterVelocityEstimator} a simulated shooter encoder and checks the RPM it
+ * settles on.
+ *
+ * @author Powerstackers
+ */
+public class ShooterVelocityEstimatorTest {
+
+    private static final double TARGET_RPM = 750.0;
+    private static final double TICKS_PER_NANO =
+            TARGET_RPM * ShooterVelocityEstimator.SHOOTER_TICKS_PER_REV / (60.0 * 1e9);
+
+    /**
+     * Run the simulated encoder at {@link #TARGET_RPM}, sampled every 15-25 ms like a busy
+     * teleop loop.
+     *
+     * @return The estimate after each sample.
+     */
+    private static double[] simulate(ShooterVelocityEstimator estimator, int startTicks,
+                                     int samples, long seed) {
+        Random random = new Random(seed);
+        double[] estimates = new double[samples];
+        long nanos = 1000000000L;
+        double ticks = 0.0;
+        for (int i = 0; i < samples; i++) {
+            long step = (15 + random.nextInt(11)) * 1000000L;
+            nanos += step;
+            ticks += step * TICKS_PER_NANO;
+            // Adding in int arithmetic wraps past Integer.MAX_VALUE, like the encoder register
+            estimator.addSample(nanos, startTicks + (int) Math.floor(ticks));
+            estimates[i] = estimator.getRpm();
+        }
+        return estimates;
+    }
+
+    @Test
+    public void convergesWithJitteredSamples() {
+        double[] estimates = simulate(new ShooterVelocityEstimator(), 0, 100, 1);
+        for (int i = 10; i < estimates.length; i++) {
+            assertEquals("sample " + i, TARGET_RPM, estimates[i], 25.0);
+        }
+        assertEquals(TARGET_RPM, estimates[estimates.length - 1], 15.0);
+    }
+
+    @Test
+    public void handlesEncoderWraparound() {
+        // Starts a few ticks short of the largest int, so the position wraps negative
+        double[] estimates = simulate(new ShooterVelocityEstimator(), Integer.MAX_VALUE - 100,
+                100, 2);
+        for (int i = 10; i < estimates.length; i++) {
+            assertEquals("sample " + i, TARGET_RPM, estimates[i], 25.0);
+        }
+    }
+
+    @Test
+    public void settlesToZeroAfterAGap() {
+        ShooterVelocityEstimator estimator = new ShooterVelocityEstimator();
+        simulate(estimator, 0, 50, 3);
+        // The wheel stopped while nobody was sampling; the old samples must not hold the RPM up
+        long nanos = 60000000000L;
+        for (int i = 0; i < 10; i++) {
+            estimator.addSample(nanos + i * 20000000L, 12345);
+        }
+        assertEquals(0.0, estimator.getRpm(), 5.0);
+    }
+
+    @Test
+    public void measuresFromTheGivenTimesAlone() {
+        // The old measurement slept 100 ms inside the call to count ticks. Here the time comes
+        // only from the caller, so two calls a simulated 50 ms apart are enough for a reading,
+        // and the same samples give the same answer whenever they are replayed.
+        int ticks = 37;
+        double expectedRpm = ticks / ShooterVelocityEstimator.SHOOTER_TICKS_PER_REV / (0.05 / 60.0);
+        long[] starts = {1000000000L, 3600L * 1000000000L};
+        for (long start : starts) {
+            ShooterVelocityEstimator estimator = new ShooterVelocityEstimator();
+            estimator.addSample(start, 0);
+            assertEquals("one sample is not a speed", 0.0, estimator.getRpm(), 0.0);
+            estimator.addSample(start + 50000000L, ticks);
+            assertEquals("starting at " + start, expectedRpm, estimator.getRpm(), 1e-9);
+        }
+    }
+}
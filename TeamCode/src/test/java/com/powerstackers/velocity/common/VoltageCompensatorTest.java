@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Powerstackers
+ *
+ * Tests for the battery voltage compensator.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.powerstackers.velocity.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link VoltageCompensator} against a simulated battery that sags under the load the
+ * compensated power puts on it.
+ *
+ * @author Powerstackers
+ */
+public class VoltageCompensatorTest {
+
+    private static final long LOOP_NANOS = 20000000L;
+    /** Volts the simulated battery loses at full power on every drive motor. */
+    private static final double SAG_AT_FULL_POWER = 2.0;
+    private static final double COMMAND = 0.6;
+
+    /**
+     * Drive the battery with the compensated command for a while.
+     *
+     * @return The compensator's scale after each loop.
+     */
+    private static double[] run(VoltageCompensator compensator, double openCircuitVoltage,
+                                int loops, double noise, long startNanos, Random random) {
+        double[] scales = new double[loops];
+        double applied = compensator.compensate(COMMAND);
+        for (int i = 0; i < loops; i++) {
+            double voltage = openCircuitVoltage - SAG_AT_FULL_POWER * applied
+                    + noise * random.nextGaussian();
+            compensator.update(startNanos + i * LOOP_NANOS, voltage);
+            applied = compensator.compensate(COMMAND);
+            scales[i] = compensator.getScale();
+        }
+        return scales;
+    }
+
+    @Test
+    public void settlesWithoutOscillatingAfterAVoltageDrop() {
+        VoltageCompensator compensator = new VoltageCompensator(null);
+        Random random = new Random(1);
+        run(compensator, 13.0, 200, 0.0, 0, random);
+        // The battery tires: step the open circuit voltage down
+        double[] scales = run(compensator, 11.5, 300, 0.0, 200 * LOOP_NANOS, random);
+
+        for (int i = 1; i < scales.length; i++) {
+            assertTrue("scale fell back at loop " + i, scales[i] >= scales[i - 1] - 1e-12);
+        }
+        double last = scales[scales.length - 1];
+        double loaded = 11.5 - SAG_AT_FULL_POWER * COMMAND * last;
+        assertEquals(VelRobotConstants.NOMINAL_BATTERY_VOLTAGE / loaded, last, 0.01);
+    }
+
+    @Test
+    public void filtersOutVoltageNoise() {
+        VoltageCompensator compensator = new VoltageCompensator(null);
+        double[] scales = run(compensator, 12.0, 500, 0.2, 0, new Random(2));
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 250; i < scales.length; i++) {
+            min = Math.min(min, scales[i]);
+            max = Math.max(max, scales[i]);
+        }
+        // Unfiltered, 0.2 V of noise would swing the ratio by about 0.1 over these loops
+        assertTrue("scale ripple " + (max - min), max - min < 0.025);
+    }
+
+    @Test
+    public void scalesEveryWheelWhenNoneSaturates() {
+        VoltageCompensator compensator = new VoltageCompensator(null);
+        compensator.update(0, VelRobotConstants.NOMINAL_BATTERY_VOLTAGE / 1.1);
+        double[] powers = {0.5, -0.25, 0.125, -0.5};
+        compensator.compensate(powers);
+        assertEquals(0.55, powers[0], 1e-9);
+        assertEquals(-0.275, powers[1], 1e-9);
+        assertEquals(0.1375, powers[2], 1e-9);
+        assertEquals(-0.55, powers[3], 1e-9);
+    }
+
+    @Test
+    public void desaturatingKeepsTheWheelRatios() {
+        VoltageCompensator compensator = new VoltageCompensator(null);
+        compensator.update(0, VelRobotConstants.NOMINAL_BATTERY_VOLTAGE / 1.2);
+        double[] command = {0.9, -0.45, 0.3, -0.9};
+        double[] powers = command.clone();
+        compensator.compensate(powers);
+
+        double largest = 0.0;
+        for (int i = 0; i < powers.length; i++) {
+            largest = Math.max(largest, Math.abs(powers[i]));
+            assertEquals("wheel " + i, command[i] / command[0], powers[i] / powers[0], 1e-9);
+        }
+        assertEquals(1.0, largest, 1e-9);
+    }
+}